@@ -0,0 +1,107 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.DownloadLimiter;
+import fr.rg.ignrando.tile.TileArea;
+import fr.rg.ignrando.tile.TilePrefetcher;
+
+/**
+ * Simulation du téléchargement d'une zone de 8x8 tuiles du niveau 16 par 16
+ * fils, selon la connexion simulée par le serveur local:
+ * <ul>
+ * <li>good: bonne connexion 4G (30 ms, 32 requêtes simultanées sans
+ * ralentissement),</li>
+ * <li>poor: connexion médiocre (200 ms, débit de 2 requêtes simultanées,
+ * erreur 504 au-delà d'une seconde),</li>
+ * <li>flaky: bonne connexion mais 2 % d'erreurs 503.</li>
+ * </ul>
+ * Avec adaptive=true, le nombre de requêtes simultanées est adapté (AIMD,
+ * départ à 4); sinon il est fixé à {@link DownloadLimiter#MAX_LIMIT}. Le
+ * paramètre requestsPerSecond borne le débit des requêtes (0 pour
+ * illimité). Le résultat est le nombre de tuiles téléchargées: les tuiles
+ * en échec ne sont pas redemandées.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AdaptiveDownloadBenchmark {
+
+    private static final int SIDE = 8;
+    private static final int POOL_SIZE = 16;
+
+    @Param({"good", "poor", "flaky"})
+    public String profile;
+
+    @Param({"true", "false"})
+    public boolean adaptive;
+
+    @Param({"0", "20"})
+    public double requestsPerSecond;
+
+    private PipelineFixture fixture;
+    private DownloadLimiter limiter;
+    private TilePrefetcher prefetcher;
+    private long[] tiles;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        fixture = new PipelineFixture(0, false);
+        if ("good".equals(profile)) {
+            fixture.server.setLatencyMs(30);
+            fixture.server.setCapacity(32, Long.MAX_VALUE);
+        } else if ("poor".equals(profile)) {
+            fixture.server.setLatencyMs(200);
+            fixture.server.setCapacity(2, 1000);
+        } else {
+            fixture.server.setLatencyMs(30);
+            fixture.server.setErrorRate(0.02);
+        }
+        limiter = fixture.pipeline.getDownloadLimiter();
+        if (adaptive) {
+            limiter.configure(4, DownloadLimiter.MIN_LIMIT, DownloadLimiter.MAX_LIMIT);
+        } else {
+            limiter.configure(DownloadLimiter.MAX_LIMIT, DownloadLimiter.MAX_LIMIT,
+                    DownloadLimiter.MAX_LIMIT);
+        }
+        limiter.setRequestsPerSecond(requestsPerSecond);
+
+        prefetcher = new TilePrefetcher(new TilePrefetcher.TileLoader() {
+            @Override
+            public int load(int zoom, int row, int col) {
+                return fixture.pipeline.prefetchTile(col, row, zoom);
+            }
+        }, POOL_SIZE);
+        tiles = new long[SIDE * SIDE];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = TileArea.pack(PipelineFixture.ROW16 + i / SIDE,
+                    PipelineFixture.COL16 + i % SIDE);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        prefetcher.shutdown();
+        limiter.setRequestsPerSecond(0);
+        fixture.close();
+    }
+
+    @Benchmark
+    public int area() {
+        prefetcher.setTotal(tiles.length);
+        prefetcher.prefetch(16, tiles);
+        return prefetcher.getLoadedCount();
+    }
+}
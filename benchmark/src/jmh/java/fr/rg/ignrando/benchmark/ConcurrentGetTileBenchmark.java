@@ -0,0 +1,82 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.TileMemoryCache;
+
+/**
+ * Demandes simultanées de tuiles de niveaux 13 à 18 autour d'un même point,
+ * comme celles des fils d'exécution de la carte pendant les déplacements et
+ * changements de zoom. Le cache mémoire est réduit pour que les demandes
+ * mêlent lectures en mémoire, sur disque, téléchargements et
+ * reconstitutions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class ConcurrentGetTileBenchmark {
+
+    // Demi-côté de la zone parcourue (en tuiles du niveau 16)
+    private static final int AREA = 16;
+    private static final int[] ZOOMS = {13, 14, 15, 16, 16, 16, 17, 17, 18};
+
+    @Param({"10"})
+    public long latencyMs;
+
+    @Param({"4"})
+    public long memoryCacheMb;
+
+    private PipelineFixture fixture;
+    private long savedMaxBytes;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        final Random random = new Random(Thread.currentThread().getId());
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new PipelineFixture(latencyMs, false);
+        TileMemoryCache cache = TileMemoryCache.getInstance();
+        savedMaxBytes = cache.maxBytes();
+        cache.resize(memoryCacheMb * 1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        TileMemoryCache.getInstance().resize(savedMaxBytes);
+        fixture.close();
+    }
+
+    @Benchmark
+    public byte[] mixedZoom(Cursor cursor) {
+        int zoom = ZOOMS[cursor.random.nextInt(ZOOMS.length)];
+        int r16 = PipelineFixture.ROW16 + cursor.random.nextInt(2 * AREA) - AREA;
+        int c16 = PipelineFixture.COL16 + cursor.random.nextInt(2 * AREA) - AREA;
+        int r, c;
+        if (zoom <= 16) {
+            r = r16 >> (16 - zoom);
+            c = c16 >> (16 - zoom);
+        } else {
+            int n = 1 << (zoom - 16);
+            r = r16 * n + cursor.random.nextInt(n);
+            c = c16 * n + cursor.random.nextInt(n);
+        }
+        return fixture.pipeline.getTileImage(c, r, zoom);
+    }
+}
@@ -0,0 +1,162 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.HybridTilePipeline;
+import fr.rg.ignrando.tile.TileKey;
+import fr.rg.ignrando.tile.TileMemoryCache;
+import fr.rg.ignrando.tile.TilePipeline;
+import fr.rg.ignrando.tile.TileStore;
+import fr.rg.ignrando.tile.WmtsClient;
+
+/**
+ * Reconstitution des tuiles dérivées, les tuiles sources étant dans le cache
+ * mémoire:
+ * <ul>
+ * <li>upperScale: tuile de niveau 14 assemblée depuis 4 tuiles du niveau
+ * 15,</li>
+ * <li>highResZ15: tuile 512x512 de niveau 15 assemblée depuis le niveau
+ * 16,</li>
+ * <li>lowerScale: tuile de niveau 17 découpée dans une tuile du niveau 16
+ * (écriture sur disque comprise),</li>
+ * <li>overzoom: tuile de niveau 19 (cache mémoire uniquement),</li>
+ * <li>overview: tuile de niveau 10 de la vue d'ensemble, reconstituée (avec
+ * les niveaux 12 et 11) depuis une tuile du niveau 13,</li>
+ * <li>empty: tuile vide (hors des niveaux disponibles),</li>
+ * <li>hybrid: tuile de niveau 16 de la vue hybride, mélange des tuiles
+ * (photographie et carte) du cache mémoire, écriture sur disque
+ * comprise.</li>
+ * </ul>
+ * Les mesures stitch et zoomIn isolent les traitements d'images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DerivedTileBenchmark {
+
+    private static final int R15 = PipelineFixture.ROW16 / 2;
+    private static final int C15 = PipelineFixture.COL16 / 2;
+    private static final int R14 = R15 / 2;
+    private static final int C14 = C15 / 2;
+    private static final int R13 = R14 / 2;
+    private static final int C13 = C14 / 2;
+
+    private PipelineFixture fixture;
+    private PipelineFixture highResFixture;
+    private JavaTileCodec codec;
+    private HybridTilePipeline hybrid;
+    private byte[] tile;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new PipelineFixture(0, false);
+        highResFixture = new PipelineFixture(0, true);
+        codec = new JavaTileCodec(85);
+        tile = fixture.server.cannedTile(16, 0, 0);
+        // Tuiles sources dans les deux caches
+        for (int i = 0; i < 4; i++) {
+            int r = 2 * R14 + i / 2, c = 2 * C14 + i % 2;
+            fixture.pipeline.readRealTileImage(c, r, 15);
+            r = 2 * R15 + i / 2;
+            c = 2 * C15 + i % 2;
+            highResFixture.pipeline.readRealTileImage(c, r, 16);
+        }
+        fixture.pipeline.readRealTileImage(PipelineFixture.COL16, PipelineFixture.ROW16, 16);
+        fixture.store.put(TileStore.LAYER_MAP, 13, R13, C13, tile);
+        // Vue hybride (carte à 50 %) sur le cache de la première chaîne
+        TilePipeline ortho = new TilePipeline(fixture.store,
+                new WmtsClient(fixture.server.getBaseUrl(), "bench"), codec, false, true);
+        ortho.readRealTileImage(PipelineFixture.COL16, PipelineFixture.ROW16, 16);
+        hybrid = new HybridTilePipeline(fixture.pipeline, ortho, 50);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+        highResFixture.close();
+    }
+
+    /**
+     * Oublier une tuile reconstituée (caches mémoire et disque).
+     */
+    private void forget(PipelineFixture f, int layer, int zoom, int r, int c) {
+        TileMemoryCache.getInstance().remove(TileKey.pack(layer, zoom, r, c));
+        f.store.remove(layer, zoom, r, c);
+    }
+
+    @Benchmark
+    public byte[] upperScale() {
+        forget(fixture, TileStore.LAYER_MAP, 14, R14, C14);
+        return fixture.pipeline.getTileImage(C14, R14, 14);
+    }
+
+    @Benchmark
+    public byte[] highResZ15() {
+        forget(highResFixture, TileStore.LAYER_MAP_HR, 15, R15, C15);
+        return highResFixture.pipeline.getTileImage(C15, R15, 15);
+    }
+
+    @Benchmark
+    public byte[] lowerScale() {
+        int r = 2 * PipelineFixture.ROW16 + (index & 1);
+        int c = 2 * PipelineFixture.COL16 + (index++ >> 1 & 1);
+        forget(fixture, TileStore.LAYER_MAP, 17, r, c);
+        return fixture.pipeline.getTileImage(c, r, 17);
+    }
+
+    @Benchmark
+    public byte[] overzoom() {
+        int r = 8 * PipelineFixture.ROW16 + (index & 7);
+        int c = 8 * PipelineFixture.COL16 + (index++ >> 3 & 7);
+        TileMemoryCache.getInstance().remove(TileKey.pack(TileStore.LAYER_MAP, 19, r, c));
+        return fixture.pipeline.getTileImage(c, r, 19);
+    }
+
+    @Benchmark
+    public byte[] overview() {
+        for (int z = 10; z <= 12; z++) {
+            forget(fixture, TileStore.LAYER_MAP, z, R13 >> (13 - z), C13 >> (13 - z));
+        }
+        return fixture.pipeline.getTileImage(C13 >> 3, R13 >> 3, 10);
+    }
+
+    @Benchmark
+    public byte[] empty() {
+        return fixture.pipeline.getTileImage(index++ & 31, 0, 5);
+    }
+
+    @Benchmark
+    public byte[] hybrid() {
+        forget(fixture, TileStore.LAYER_HYBRID + 5, 16, PipelineFixture.ROW16,
+                PipelineFixture.COL16);
+        return hybrid.getTileImage(PipelineFixture.COL16, PipelineFixture.ROW16, 16);
+    }
+
+    @Benchmark
+    public byte[] stitch() {
+        return codec.stitch(tile, tile, tile, tile, 512, 14);
+    }
+
+    @Benchmark
+    public byte[] zoomIn() {
+        return codec.zoomIn(TileKey.NONE, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return tile;
+            }
+        }, 1, index++ & 1, 0, 0, 17);
+    }
+}
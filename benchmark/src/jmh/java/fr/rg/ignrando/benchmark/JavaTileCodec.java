@@ -0,0 +1,247 @@
+package fr.rg.ignrando.benchmark;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import fr.rg.ignrando.tile.TileImageCodec;
+import fr.rg.ignrando.tile.TileKey;
+
+/**
+ * Traitements d'images des tuiles avec ImageIO, équivalent sur une machine
+ * virtuelle ordinaire de l'implémentation Android (BitmapTileCodec).
+ * <p/>
+ * Les durées absolues diffèrent de celles d'un téléphone, mais la part des
+ * traitements d'images dans la fourniture des tuiles reste comparable d'une
+ * version à l'autre.
+ * <p/>
+ * Les tuiles produites sont encodées selon un format décrit comme ceux de
+ * TileEncoding ({@code jpeg:85}, {@code png}…), parmi ceux pour lesquels
+ * ImageIO dispose d'un encodeur: WebP n'est disponible qu'avec un greffon
+ * ImageIO ajouté au chemin des classes.
+ */
+public class JavaTileCodec implements TileImageCodec {
+
+    // Format ImageIO des tuiles produites
+    private final String format;
+    private final float quality;
+    // Dernières tuiles découpées (décodées), comme les décodeurs de régions
+    private final Map<Long, BufferedImage> decoded =
+            new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+                    return size() > 8;
+                }
+            };
+
+    /**
+     * @param quality Qualité JPEG des tuiles produites (0 à 100)
+     */
+    public JavaTileCodec(int quality) {
+        this("jpeg", quality);
+    }
+
+    /**
+     * @param format  Format ImageIO des tuiles produites ({@code jpeg},
+     *                {@code png}…)
+     * @param quality Qualité des tuiles produites (0 à 100, ignorée pour PNG)
+     * @throws IllegalArgumentException si ImageIO ne dispose d'aucun encodeur
+     *                                  pour ce format
+     */
+    public JavaTileCodec(String format, int quality) {
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            throw new IllegalArgumentException("Format non disponible avec ImageIO: " + format);
+        }
+        this.format = format;
+        this.quality = quality / 100f;
+    }
+
+    /**
+     * Analyser la description d'un format ({@code <format>[:<qualité>]},
+     * qualité 100 par défaut).
+     *
+     * @throws IllegalArgumentException si la description est invalide
+     */
+    public static JavaTileCodec parse(String spec) {
+        String[] parts = spec.trim().toLowerCase(Locale.US).split(":");
+        int quality = parts.length > 1 ? Integer.parseInt(parts[1]) : 100;
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Qualité invalide: " + spec);
+        }
+        return new JavaTileCodec("jpg".equals(parts[0]) ? "jpeg" : parts[0], quality);
+    }
+
+    @Override
+    public boolean isOriginal(int zoom) {
+        return false;
+    }
+
+    @Override
+    public byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22, int dim,
+                         int zoom) {
+        int half = dim / 2;
+        BufferedImage b = new BufferedImage(dim, dim, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = b.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setColor(Color.WHITE);
+        try {
+            if (!drawSubTile(g, img11, 0, 0, half) || !drawSubTile(g, img12, half, 0, half)
+                    || !drawSubTile(g, img21, 0, half, half)
+                    || !drawSubTile(g, img22, half, half, half)) {
+                return null;
+            }
+        } finally {
+            g.dispose();
+        }
+        return encode(b);
+    }
+
+    private static boolean drawSubTile(Graphics2D g, byte[] data, int x, int y, int dim) {
+        if (data == null) { // Sous-tuile absente
+            g.fillRect(x, y, dim, dim);
+            return true;
+        }
+        BufferedImage sub = decode(data);
+        if (sub == null) {
+            return false;
+        }
+        g.drawImage(sub, x, y, dim, dim, null);
+        return true;
+    }
+
+    @Override
+    public byte[] blend(byte[] base, byte[] overlay, float alpha, int dim, int zoom) {
+        BufferedImage b = new BufferedImage(dim, dim, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = b.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setColor(Color.WHITE);
+        try {
+            if (!drawSubTile(g, base, 0, 0, dim)) {
+                return null;
+            }
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+            if (!drawSubTile(g, overlay, 0, 0, dim)) {
+                return null;
+            }
+        } finally {
+            g.dispose();
+        }
+        return encode(b);
+    }
+
+    @Override
+    public byte[] zoomIn(long key, Callable<byte[]> source, int shift, int col, int row,
+                         int dim, int zoom) {
+        BufferedImage parent = null;
+        if (key != TileKey.NONE) {
+            synchronized (decoded) {
+                parent = decoded.get(key);
+            }
+        }
+        if (parent == null) {
+            byte[] data;
+            try {
+                data = source.call();
+            } catch (CancellationException e) {
+                throw e;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+            if (data == null || (parent = decode(data)) == null) {
+                return null;
+            }
+            if (key != TileKey.NONE) {
+                synchronized (decoded) {
+                    decoded.put(key, parent);
+                }
+            }
+        }
+
+        int w = parent.getWidth() >> shift;
+        if (w == 0) {
+            return null;
+        }
+        int mask = (1 << shift) - 1;
+        BufferedImage sub = parent.getSubimage((col & mask) * w, (row & mask) * w, w, w);
+        int size = dim > 0 ? dim : w;
+        BufferedImage b = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = b.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(sub, 0, 0, size, size, null);
+        g.dispose();
+        return encode(b);
+    }
+
+    @Override
+    public byte[] emptyTile(int dim) {
+        BufferedImage b = new BufferedImage(dim, dim, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = b.createGraphics();
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(3));
+        g.drawRect(0, 0, dim, dim);
+        g.dispose();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(b, "png", buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return buffer.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] data) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Encoder une tuile produite.
+     */
+    private byte[] encode(BufferedImage b) {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(buffer);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!"png".equals(format) && param.canWriteCompressed()) { // PNG: sans perte
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(b, null, null), param);
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            writer.dispose();
+        }
+        return buffer.toByteArray();
+    }
+}
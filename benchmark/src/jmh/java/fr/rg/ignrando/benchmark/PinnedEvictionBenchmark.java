@@ -0,0 +1,94 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.BoundedTileStore;
+import fr.rg.ignrando.tile.FileTileStore;
+import fr.rg.ignrando.tile.PinnedRegions;
+import fr.rg.ignrando.tile.TileArea;
+import fr.rg.ignrando.tile.TileStore;
+
+/**
+ * Simulation d'une consultation de la carte après le téléchargement d'une
+ * zone: les tuiles de la zone (niveau 16) sont enregistrées en premier, puis
+ * quatre fois le budget du cache en tuiles consultées ailleurs. Avec
+ * pinned=true, la zone est épinglée. Le résultat est le nombre de tuiles de
+ * la zone encore présentes une fois le cache revenu sous son budget (le
+ * temps mesuré comprend le nettoyage).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PinnedEvictionBenchmark {
+
+    // Tuiles consultées hors de la zone (en multiples du budget)
+    private static final int BROWSE_FACTOR = 4;
+
+    @Param({"true", "false"})
+    public boolean pinned;
+
+    private File dir;
+    private BoundedTileStore store;
+    private byte[] tile;
+    private long[] area;
+    private int budgetTiles;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("ignmaps-pins").toFile();
+        tile = WmtsStandIn.createJpegTile(0);
+        area = TileArea.box(45.10, 45.15, 5.70, 5.78, 16);
+        budgetTiles = 2 * area.length;
+        store = new BoundedTileStore(new FileTileStore(new File(dir, "tiles")),
+                new File(dir, "tiles.idx"), (long) budgetTiles * tile.length);
+        if (pinned) {
+            PinnedRegions pins = new PinnedRegions(new File(dir, "tiles.pins"));
+            pins.add(PinnedRegions.Region.box("zone", 45.10, 45.15, 5.70, 5.78, 16, 16));
+            store.setPinnedRegions(pins);
+        }
+        while (!store.isIndexLoaded()) {
+            Thread.sleep(10);
+        }
+        for (long t : area) {
+            store.put(TileStore.LAYER_MAP, 16, TileArea.row(t), TileArea.col(t), tile);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        store.flush();
+        PipelineFixture.delete(dir);
+    }
+
+    @Benchmark
+    public int browse() throws InterruptedException {
+        for (int i = 0; i < BROWSE_FACTOR * budgetTiles; i++) {
+            store.put(TileStore.LAYER_MAP, 16, PipelineFixture.ROW16 + i / 64,
+                    PipelineFixture.COL16 + i % 64, tile);
+        }
+        while (store.size() > store.getMaxBytes()) {
+            Thread.sleep(1);
+        }
+        int present = 0;
+        for (long t : area) {
+            if (store.contains(TileStore.LAYER_MAP, 16, TileArea.row(t), TileArea.col(t))) {
+                present++;
+            }
+        }
+        return present;
+    }
+}
@@ -0,0 +1,77 @@
+package fr.rg.ignrando.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import fr.rg.ignrando.tile.DownloadLimiter;
+import fr.rg.ignrando.tile.FileTileStore;
+import fr.rg.ignrando.tile.TileMemoryCache;
+import fr.rg.ignrando.tile.TilePipeline;
+import fr.rg.ignrando.tile.TileScheduler;
+import fr.rg.ignrando.tile.TileStore;
+import fr.rg.ignrando.tile.WmtsClient;
+
+/**
+ * Chaîne de fourniture des tuiles complète pour les mesures: serveur WMTS
+ * local, cache disque dans un répertoire temporaire et traitements d'images
+ * ImageIO.
+ */
+public class PipelineFixture {
+
+    // Tuile de niveau 16 au centre de la zone mesurée (Grenoble)
+    public static final int ROW16 = 23327;
+    public static final int COL16 = 33820;
+
+    public final WmtsStandIn server;
+    public final File cacheDir;
+    public final TileStore store;
+    public final TilePipeline pipeline;
+
+    /**
+     * @param latencyMs      Délai de réponse du serveur (en ms)
+     * @param highResolution Écran haute densité
+     * @throws IOException si le serveur ou le répertoire ne peuvent être créés
+     */
+    public PipelineFixture(long latencyMs, boolean highResolution) throws IOException {
+        server = new WmtsStandIn(latencyMs);
+        cacheDir = Files.createTempDirectory("ignmaps-bench").toFile();
+        store = new FileTileStore(cacheDir);
+        pipeline = new TilePipeline(store, new WmtsClient(server.getBaseUrl(), "bench"),
+                new JavaTileCodec(85), highResolution);
+        // État partagé par le processus (mesures précédentes)
+        TileMemoryCache.getInstance().evictAll();
+        pipeline.getDownloadBackoff().onSuccess();
+        pipeline.getDownloadLimiter().configure(TileScheduler.DEFAULT_MAX_CONCURRENT,
+                DownloadLimiter.MIN_LIMIT, DownloadLimiter.MAX_LIMIT);
+    }
+
+    /**
+     * Vider le cache mémoire.
+     */
+    public void clearMemory() {
+        TileMemoryCache.getInstance().evictAll();
+    }
+
+    /**
+     * Arrêter le serveur et supprimer le cache disque.
+     */
+    public void close() {
+        server.stop();
+        TileMemoryCache.getInstance().evictAll();
+        delete(cacheDir);
+    }
+
+    /**
+     * Supprimer un fichier ou un répertoire et son contenu.
+     */
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,71 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.TileArea;
+import fr.rg.ignrando.tile.TilePrefetcher;
+
+/**
+ * Téléchargement anticipé d'une zone de 16x16 tuiles du niveau 16 selon le
+ * nombre de fils de téléchargement (cache disque vide à chaque mesure).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PrefetchBenchmark {
+
+    private static final int SIDE = 16;
+
+    @Param({"1", "4", "8"})
+    public int poolSize;
+
+    @Param({"30"})
+    public long latencyMs;
+
+    private PipelineFixture fixture;
+    private TilePrefetcher prefetcher;
+    private long[] tiles;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        fixture = new PipelineFixture(latencyMs, false);
+        // Un téléchargement par fil (pas d'adaptation à la connexion)
+        fixture.pipeline.getDownloadLimiter().configure(poolSize, poolSize, poolSize);
+        prefetcher = new TilePrefetcher(new TilePrefetcher.TileLoader() {
+            @Override
+            public int load(int zoom, int row, int col) {
+                return fixture.pipeline.prefetchTile(col, row, zoom);
+            }
+        }, poolSize);
+        tiles = new long[SIDE * SIDE];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = TileArea.pack(PipelineFixture.ROW16 + i / SIDE,
+                    PipelineFixture.COL16 + i % SIDE);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        prefetcher.shutdown();
+        fixture.close();
+    }
+
+    @Benchmark
+    public int area() {
+        prefetcher.setTotal(tiles.length);
+        prefetcher.prefetch(16, tiles);
+        return prefetcher.getLoadedCount();
+    }
+}
@@ -0,0 +1,152 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.TileKey;
+import fr.rg.ignrando.tile.TileMemoryCache;
+import fr.rg.ignrando.tile.TilePipeline;
+import fr.rg.ignrando.tile.TileStore;
+import fr.rg.ignrando.tile.WmtsClient;
+
+/**
+ * Lecture d'une tuile réelle (niveau 16) selon son origine:
+ * <ul>
+ * <li>cold: tuile absente des caches (téléchargement et écriture sur
+ * disque),</li>
+ * <li>disk: tuile présente uniquement dans le cache disque,</li>
+ * <li>memory: tuile présente dans le cache mémoire,</li>
+ * <li>progressive: tuile absente des caches fournie en mode progressif
+ * (agrandissement de la tuile parente du niveau 15, téléchargement en
+ * arrière-plan).</li>
+ * </ul>
+ * Le gain des connexions persistantes est mesuré sur le seul téléchargement
+ * (sans les caches):
+ * <ul>
+ * <li>keepAlive: requête WmtsClient sur une connexion réutilisée,</li>
+ * <li>newConnection: même requête sur une connexion ouverte puis fermée pour
+ * chaque tuile (« Connection: close »), comme avant la réutilisation des
+ * connexions.</li>
+ * </ul>
+ * Le serveur local ajoute {@value #CONNECT_DELAY_MS} ms à la première requête
+ * de chaque connexion (établissement TCP et TLS vers le serveur de l'IGN).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadRealTileBenchmark {
+
+    // Tuiles déjà en cache pour les lectures « chaudes »
+    private static final int WARM_TILES = 64;
+    // Coût simulé de l'établissement d'une connexion (en ms)
+    static final long CONNECT_DELAY_MS = 30;
+
+    @Param({"0", "20"})
+    public long latencyMs;
+
+    private PipelineFixture fixture;
+    private WmtsClient client;
+    private final byte[] buffer = new byte[16 * 1024];
+    // Prochaine colonne jamais demandée (lectures « froides »)
+    private int nextColdCol;
+    private int warmIndex;
+    private int progressiveIndex;
+    private final TilePipeline.RefineListener refineListener =
+            new TilePipeline.RefineListener() {
+                @Override
+                public void onTileRefined(int ignScale, int row, int col) {
+                }
+            };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new PipelineFixture(latencyMs, false);
+        fixture.server.setConnectDelayMs(CONNECT_DELAY_MS);
+        client = new WmtsClient(fixture.server.getBaseUrl(), "bench");
+        for (int i = 0; i < WARM_TILES; i++) {
+            fixture.store.put(TileStore.LAYER_MAP, 16, PipelineFixture.ROW16,
+                    PipelineFixture.COL16 + i,
+                    fixture.server.cannedTile(16, PipelineFixture.ROW16, i));
+        }
+        nextColdCol = PipelineFixture.COL16 + WARM_TILES;
+        // Tuiles parentes (niveau 15) des tuiles demandées en mode progressif
+        for (int i = 0; i < WARM_TILES / 2; i++) {
+            fixture.store.put(TileStore.LAYER_MAP, 15, (PipelineFixture.ROW16 + 2) / 2,
+                    PipelineFixture.COL16 / 2 + i, fixture.server.cannedTile(15, 0, i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public byte[] cold() {
+        return fixture.pipeline.readRealTileImage(nextColdCol++, PipelineFixture.ROW16, 16);
+    }
+
+    @Benchmark
+    public byte[] disk() {
+        int col = PipelineFixture.COL16 + (warmIndex++ % WARM_TILES);
+        TileMemoryCache.getInstance().remove(TileKey.pack(TileStore.LAYER_MAP, 16,
+                PipelineFixture.ROW16, col));
+        return fixture.pipeline.readRealTileImage(col, PipelineFixture.ROW16, 16);
+    }
+
+    @Benchmark
+    public byte[] progressive() {
+        int row = PipelineFixture.ROW16 + 2;
+        int col = PipelineFixture.COL16 + (progressiveIndex++ % WARM_TILES);
+        // Oublier la tuile (éventuellement chargée en arrière-plan)
+        TileMemoryCache.getInstance().remove(TileKey.pack(TileStore.LAYER_MAP, 16, row, col));
+        fixture.store.remove(TileStore.LAYER_MAP, 16, row, col);
+        return fixture.pipeline.getTileImage(col, row, 16, refineListener);
+    }
+
+    @Benchmark
+    public byte[] memory() {
+        int col = PipelineFixture.COL16 + (warmIndex++ % WARM_TILES);
+        return fixture.pipeline.readRealTileImage(col, PipelineFixture.ROW16, 16);
+    }
+
+    @Benchmark
+    public byte[] keepAlive() throws IOException {
+        int col = PipelineFixture.COL16 + (warmIndex++ % WARM_TILES);
+        return client.getTile(WmtsClient.LAYER_MAPS, 16, PipelineFixture.ROW16, col);
+    }
+
+    @Benchmark
+    public int newConnection() throws IOException {
+        int col = PipelineFixture.COL16 + (warmIndex++ % WARM_TILES);
+        HttpURLConnection connection = (HttpURLConnection) new URL(client.tileUrl(
+                WmtsClient.LAYER_MAPS, 16, PipelineFixture.ROW16, col)).openConnection();
+        connection.setRequestProperty("Referer", "http://localhost/IGN/");
+        connection.setRequestProperty("Connection", "close");
+        InputStream in = connection.getInputStream();
+        int length = 0;
+        try {
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                length += n;
+            }
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,147 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.TileScheduler;
+
+/**
+ * Rejeu d'un déplacement rapide de la carte: 6 écrans successifs (de 6x4
+ * tuiles du niveau 16) sont demandés sans attendre leur chargement, comme
+ * lors d'un glissement du doigt. La mesure est le temps nécessaire pour
+ * obtenir toutes les tuiles du dernier écran.
+ * <p/>
+ * Avec la zone affichée (viewport=true), les demandes des écrans quittés
+ * sont abandonnées et les téléchargements du dernier écran passent en
+ * premier; sans elle, les demandes sont servies dans un ordre quelconque.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+public class SchedulerReplayBenchmark {
+
+    private static final int STEPS = 6;
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final int ZOOM = 16;
+
+    @Param({"true", "false"})
+    public boolean viewport;
+
+    @Param({"4"})
+    public int maxConcurrent;
+
+    @Param({"30"})
+    public long latencyMs;
+
+    private PipelineFixture fixture;
+    private ExecutorService mapThreads;
+    private TileScheduler scheduler;
+    // Première colonne du déplacement (jamais demandée auparavant)
+    private int startCol = PipelineFixture.COL16;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new PipelineFixture(latencyMs, false);
+        mapThreads = Executors.newCachedThreadPool();
+        scheduler = TileScheduler.getInstance();
+        scheduler.setMaxConcurrent(maxConcurrent);
+        // Nombre de téléchargements fixe (pas d'adaptation à la connexion)
+        fixture.pipeline.getDownloadLimiter().configure(maxConcurrent, maxConcurrent,
+                maxConcurrent);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mapThreads.shutdown();
+        mapThreads.awaitTermination(1, TimeUnit.MINUTES);
+        fixture.close();
+    }
+
+    @Benchmark
+    public int pan() throws InterruptedException {
+        List<Future<byte[]>> last = new ArrayList<Future<byte[]>>();
+        int row = PipelineFixture.ROW16;
+        for (int step = 0; step < STEPS; step++) {
+            int col = startCol + step * WIDTH;
+            if (viewport) { // Déplacement de la caméra puis demandes de la carte
+                setViewport(col, row);
+            }
+            last.clear();
+            for (int r = row; r < row + HEIGHT; r++) {
+                for (int c = col; c < col + WIDTH; c++) {
+                    last.add(request(c, r));
+                }
+            }
+        }
+        startCol += (STEPS + 2) * WIDTH;
+
+        // Attendre le dernier écran
+        int loaded = 0;
+        for (Future<byte[]> f : last) {
+            try {
+                if (f.get() != null) {
+                    loaded++;
+                }
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Demander une tuile comme un fil d'exécution de la carte (null si la
+     * demande a été abandonnée).
+     */
+    private Future<byte[]> request(final int c, final int r) {
+        return mapThreads.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                try {
+                    return fixture.pipeline.getTileImage(c, r, ZOOM);
+                } catch (CancellationException e) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Zone affichée correspondant à un écran de tuiles.
+     */
+    private void setViewport(int col, int row) {
+        double n = 1 << ZOOM;
+        double latMax = latitude(row / n), latMin = latitude((row + HEIGHT) / n);
+        double longMin = col / n * 360 - 180, longMax = (col + WIDTH) / n * 360 - 180;
+        scheduler.setViewport((latMin + latMax) / 2, (longMin + longMax) / 2, ZOOM,
+                latMin, latMax, longMin, longMax);
+    }
+
+    private static double latitude(double mercatorY) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * mercatorY))));
+    }
+}
@@ -0,0 +1,125 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.BoundedTileStore;
+import fr.rg.ignrando.tile.FileTileStore;
+import fr.rg.ignrando.tile.PinnedRegions;
+import fr.rg.ignrando.tile.SingleFlight;
+import fr.rg.ignrando.tile.TileKey;
+import fr.rg.ignrando.tile.TileMemoryCache;
+import fr.rg.ignrando.tile.TileStore;
+
+/**
+ * Coût unitaire des caches, sans téléchargement: lecture et écriture d'un
+ * fichier de tuile (avec ou sans limitation de taille), recherche d'une tuile
+ * absente (système de fichiers ou index de présence), lecture dans le cache
+ * mémoire, passage par le chargement unique et test d'appartenance à une
+ * zone épinglée.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TileCacheBenchmark {
+
+    private static final int TILES = 256;
+
+    private File dir;
+    private FileTileStore fileStore;
+    private BoundedTileStore boundedStore;
+    private TileMemoryCache memoryCache;
+    private PinnedRegions pins;
+    private final SingleFlight<Long, byte[]> inFlight = new SingleFlight<Long, byte[]>();
+    private byte[] tile;
+    private long[] keys;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("ignmaps-bench").toFile();
+        tile = WmtsStandIn.createJpegTile(0);
+        fileStore = new FileTileStore(new File(dir, "files"));
+        boundedStore = new BoundedTileStore(new FileTileStore(new File(dir, "bounded")),
+                new File(dir, "bounded.idx"), 1024L * 1024 * 1024);
+        memoryCache = new TileMemoryCache(64L * 1024 * 1024);
+        pins = new PinnedRegions(new File(dir, "pins"));
+        pins.add(PinnedRegions.Region.corridor("trace", new double[]{45.10, 45.15, 45.20},
+                new double[]{5.70, 5.80, 5.75}, 500, 12, 17));
+        keys = new long[TILES];
+        for (int i = 0; i < TILES; i++) {
+            fileStore.put(TileStore.LAYER_MAP, 16, 0, i, tile);
+            boundedStore.put(TileStore.LAYER_MAP, 16, 0, i, tile);
+            keys[i] = TileKey.pack(TileStore.LAYER_MAP, 16, 0, i);
+            memoryCache.put(keys[i], tile);
+        }
+        while (!boundedStore.isIndexLoaded()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        boundedStore.flush();
+        PipelineFixture.delete(dir);
+    }
+
+    @Benchmark
+    public byte[] fileGet() {
+        return fileStore.get(TileStore.LAYER_MAP, 16, 0, index++ % TILES);
+    }
+
+    @Benchmark
+    public boolean filePut() {
+        return fileStore.put(TileStore.LAYER_MAP, 16, 1, index++ % TILES, tile);
+    }
+
+    @Benchmark
+    public byte[] boundedGet() {
+        return boundedStore.get(TileStore.LAYER_MAP, 16, 0, index++ % TILES);
+    }
+
+    @Benchmark
+    public boolean fileMiss() {
+        return fileStore.contains(TileStore.LAYER_MAP, 16, 2, index++ % TILES);
+    }
+
+    @Benchmark
+    public boolean boundedMiss() {
+        return boundedStore.contains(TileStore.LAYER_MAP, 16, 2, index++ % TILES);
+    }
+
+    @Benchmark
+    public byte[] memoryGet() {
+        return memoryCache.get(keys[index++ % TILES]);
+    }
+
+    @Benchmark
+    public boolean pinnedContains() {
+        return pins.contains(keys[index++ % TILES]);
+    }
+
+    @Benchmark
+    public byte[] singleFlight() {
+        final int i = index++ % TILES;
+        return inFlight.execute(keys[i], new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return memoryCache.get(keys[i]);
+            }
+        });
+    }
+}
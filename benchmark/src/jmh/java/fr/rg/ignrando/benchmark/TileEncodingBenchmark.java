@@ -0,0 +1,150 @@
+package fr.rg.ignrando.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.tile.FileTileStore;
+import fr.rg.ignrando.tile.TileKey;
+
+/**
+ * Taille et durée d'encodage des tuiles reconstituées selon leur format
+ * (préférence « Format des tuiles reconstituées »):
+ * <ul>
+ * <li>stitch: tuile de niveau 14 assemblée depuis 4 tuiles du niveau 15,</li>
+ * <li>stitchHighRes: tuile 512x512 de niveau 15 des écrans haute
+ * densité,</li>
+ * <li>zoomIn: tuile de niveau 17 découpée dans une tuile du niveau 16.</li>
+ * </ul>
+ * Les compteurs bytes et tiles donnent la taille moyenne d'une tuile produite
+ * (bytes / tiles), à comparer à celle des tuiles sources (sourceBytes /
+ * tiles).
+ * <p/>
+ * Les tuiles sources sont celles d'un répertoire (paramètre tileDir, par
+ * exemple une copie du cache disque d'un téléphone: seules les tuiles
+ * réelles IGN donnent des tailles représentatives) ou, à défaut, les tuiles
+ * générées du serveur WMTS local. WebP n'est mesurable qu'avec un greffon
+ * ImageIO: ses tailles et durées sont relevées sur un appareil Android par
+ * le test instrumenté TileEncodingBenchmarkTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TileEncodingBenchmark {
+
+    // Nombre maximal de tuiles sources
+    private static final int MAX_SOURCES = 64;
+
+    @Param({"jpeg:100", "jpeg:90", "jpeg:85", "jpeg:75", "png"})
+    public String encoding;
+
+    // Répertoire des tuiles sources (tuiles générées si vide)
+    @Param({""})
+    public String tileDir;
+
+    private JavaTileCodec codec;
+    private final List<byte[]> sources = new ArrayList<byte[]>();
+    private int index;
+
+    /**
+     * Tailles cumulées des tuiles produites et de leurs sources.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long tiles;
+        public long bytes;
+        public long sourceBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tiles = 0;
+            bytes = 0;
+            sourceBytes = 0;
+        }
+
+        byte[] add(byte[] tile, long source) {
+            tiles++;
+            bytes += tile.length;
+            sourceBytes += source;
+            return tile;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = JavaTileCodec.parse(encoding);
+        if (!tileDir.isEmpty()) {
+            collect(new File(tileDir));
+            if (sources.size() < 4) {
+                throw new IOException("Moins de 4 tuiles dans " + tileDir);
+            }
+        } else {
+            for (int i = 0; i < 16; i++) {
+                sources.add(WmtsStandIn.createJpegTile(i));
+            }
+        }
+    }
+
+    /**
+     * Rassembler les tuiles JPEG d'une arborescence.
+     */
+    private void collect(File f) {
+        File[] children = f.listFiles();
+        if (children == null) {
+            if (f.getName().endsWith(".jpg") && sources.size() < MAX_SOURCES) {
+                byte[] data = FileTileStore.readFile(f);
+                if (data != null) {
+                    sources.add(data);
+                }
+            }
+            return;
+        }
+        for (File c : children) {
+            collect(c);
+        }
+    }
+
+    private byte[] next() {
+        return sources.get(index++ % sources.size());
+    }
+
+    @Benchmark
+    public byte[] stitch(Sizes sizes) {
+        byte[] a = next(), b = next(), c = next(), d = next();
+        return sizes.add(codec.stitch(a, b, c, d, 256, 14),
+                (a.length + b.length + c.length + d.length) / 4);
+    }
+
+    @Benchmark
+    public byte[] stitchHighRes(Sizes sizes) {
+        byte[] a = next(), b = next(), c = next(), d = next();
+        return sizes.add(codec.stitch(a, b, c, d, 512, 15),
+                a.length + b.length + c.length + d.length);
+    }
+
+    @Benchmark
+    public byte[] zoomIn(Sizes sizes) {
+        final byte[] source = next();
+        return sizes.add(codec.zoomIn(TileKey.NONE, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return source;
+            }
+        }, 1, index & 1, index >> 1 & 1, 256, 17), source.length);
+    }
+}
@@ -0,0 +1,321 @@
+package fr.rg.ignrando.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Serveur WMTS local renvoyant des tuiles JPEG préparées à l'avance, avec un
+ * temps de réponse réglable.
+ * <p/>
+ * Toutes les requêtes GetTile sont acceptées: la tuile renvoyée ne dépend que
+ * de ses indices (parmi quelques images de 256x256 d'un poids comparable à
+ * celui des tuiles IGN). Les tuiles dont la ligne est négative donnent une
+ * erreur 404.
+ * <p/>
+ * Une connexion médiocre peut être simulée: au-delà de sa capacité, les
+ * requêtes simultanées se partagent le débit (le délai de réponse croît avec
+ * leur nombre) et celles qui dépasseraient le délai maximal reçoivent une
+ * erreur 504 à son expiration. Une proportion de réponses peut aussi être
+ * remplacée par des erreurs 503. L'établissement d'une connexion (TCP et TLS
+ * vers un serveur distant) peut être simulé par un délai ajouté à la
+ * première requête de chaque connexion.
+ */
+public class WmtsStandIn {
+
+    // Nombre d'images différentes servies
+    private static final int CANNED_TILES = 16;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[][] tiles;
+    private volatile long latencyMs;
+    // Connexion simulée: requêtes simultanées sans ralentissement, délai
+    // maximal (en ms) et proportion d'erreurs 503
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile long timeoutMs = Long.MAX_VALUE;
+    private volatile double errorRate;
+    // Délai (en ms) de la première requête d'une connexion
+    private volatile long connectDelayMs;
+    // Dernières connexions vues (adresse et port du client)
+    private final Set<InetSocketAddress> connections = Collections.newSetFromMap(
+            Collections.synchronizedMap(new LinkedHashMap<InetSocketAddress, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Boolean> e) {
+                    return size() > 1024;
+                }
+            }));
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final Random errors = new Random(1);
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    // Nombre de requêtes par tuile (clé "zoom/ligne/colonne")
+    private final ConcurrentHashMap<String, AtomicInteger> tileRequests =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * @param latencyMs Délai ajouté avant chaque réponse (en ms)
+     * @throws IOException si le serveur ne peut pas être démarré
+     */
+    public WmtsStandIn(long latencyMs) throws IOException {
+        // Sans cette option, l'algorithme de Nagle retarde chaque réponse
+        // (en-têtes et corps envoyés séparément) d'environ 40 ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.latencyMs = latencyMs;
+        tiles = new byte[CANNED_TILES][];
+        for (int i = 0; i < CANNED_TILES; i++) {
+            tiles[i] = createJpegTile(i);
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                64);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Adresse du serveur, à utiliser comme adresse de base du client WMTS.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * Simuler une connexion limitée.
+     *
+     * @param capacity  Nombre de requêtes simultanées servies sans
+     *                  ralentissement
+     * @param timeoutMs Délai au-delà duquel la requête échoue (erreur 504)
+     */
+    public void setCapacity(int capacity, long timeoutMs) {
+        this.capacity = capacity;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param connectDelayMs Délai ajouté à la première requête de chaque
+     *                       connexion (établissement de la connexion)
+     */
+    public void setConnectDelayMs(long connectDelayMs) {
+        this.connectDelayMs = connectDelayMs;
+    }
+
+    /**
+     * @param errorRate Proportion de requêtes recevant une erreur 503
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Nombre maximal de requêtes simultanées observé.
+     */
+    public int getMaxActive() {
+        return maxActive.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Nombre de connexions ouvertes par les clients.
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Nombre de requêtes reçues pour une tuile.
+     */
+    public int getRequestCount(int zoom, int row, int col) {
+        AtomicInteger count = tileRequests.get(tileName(zoom, row, col));
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Nombre de requêtes reçues pour chaque tuile demandée (clé
+     * "zoom/ligne/colonne").
+     */
+    public Map<String, Integer> getTileRequestCounts() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> e : tileRequests.entrySet()) {
+            counts.put(e.getKey(), e.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Données d'une des tuiles servies (par exemple pour remplir un cache).
+     */
+    public byte[] cannedTile(int zoom, int row, int col) {
+        return tiles[index(zoom, row, col)];
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        String query = exchange.getRequestURI().getRawQuery();
+        int zoom = intParam(query, "TILEMATRIX");
+        int row = intParam(query, "TILEROW");
+        int col = intParam(query, "TILECOL");
+        String tile = tileName(zoom, row, col);
+        AtomicInteger count = tileRequests.get(tile);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = tileRequests.putIfAbsent(tile, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        int n = active.incrementAndGet();
+        int max;
+        while (n > (max = maxActive.get()) && !maxActive.compareAndSet(max, n)) {
+            // réessayer
+        }
+        // Débit partagé entre les requêtes au-delà de la capacité
+        long delay = latencyMs * ((n - 1) / capacity + 1);
+        if (connections.add(exchange.getRemoteAddress())) { // Nouvelle connexion
+            connectionCount.incrementAndGet();
+            delay += connectDelayMs;
+        }
+        boolean timeout = delay > timeoutMs;
+        if (delay > 0) {
+            try {
+                Thread.sleep(Math.min(delay, timeoutMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        active.decrementAndGet();
+
+        try {
+            boolean error;
+            synchronized (errors) {
+                error = errorRate > 0 && errors.nextDouble() < errorRate;
+            }
+            if (timeout || error) {
+                byte[] body = (timeout ? "Gateway Timeout" : "Service Unavailable")
+                        .getBytes("UTF-8");
+                exchange.sendResponseHeaders(timeout ? 504 : 503, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+            if (row < 0 || col < 0) {
+                byte[] body = "Not found".getBytes("UTF-8");
+                exchange.sendResponseHeaders(404, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+            byte[] body = tiles[index(zoom, row, col)];
+            exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            bytesSent.addAndGet(body.length);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String tileName(int zoom, int row, int col) {
+        return zoom + "/" + row + "/" + col;
+    }
+
+    private static int index(int zoom, int row, int col) {
+        int h = zoom * 31 + row * 17 + col;
+        return (h % CANNED_TILES + CANNED_TILES) % CANNED_TILES;
+    }
+
+    private static int intParam(String query, String name) {
+        if (query == null) {
+            return -1;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).equalsIgnoreCase(name)) {
+                try {
+                    return Integer.parseInt(param.substring(eq + 1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Créer une tuile JPEG ressemblant à une carte (aplats, lignes et bruit),
+     * pour obtenir une taille et un temps de décodage réalistes.
+     */
+    static byte[] createJpegTile(int seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage b = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = b.createGraphics();
+        g.setColor(new Color(0xf2efe9));
+        g.fillRect(0, 0, 256, 256);
+        for (int i = 0; i < 12; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.fillOval(random.nextInt(256), random.nextInt(256), 20 + random.nextInt(80),
+                    20 + random.nextInt(80));
+        }
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.drawLine(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256));
+        }
+        g.dispose();
+        for (int i = 0; i < 4000; i++) { // Grain des scans
+            int x = random.nextInt(256), y = random.nextInt(256);
+            b.setRGB(x, y, b.getRGB(x, y) ^ random.nextInt(0x202020));
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ImageIO.write(b, "jpeg", buffer);
+        return buffer.toByteArray();
+    }
+}
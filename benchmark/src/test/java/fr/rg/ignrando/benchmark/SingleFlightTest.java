@@ -0,0 +1,126 @@
+package fr.rg.ignrando.benchmark;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Chargement unique des tuiles: des milliers de demandes simultanées et
+ * superposées d'un même ensemble de tuiles (niveaux 16 et 17, ce dernier
+ * reconstitué à partir de la tuile parente) ne doivent donner lieu qu'à une
+ * seule requête par tuile auprès du serveur WMTS.
+ */
+public class SingleFlightTest {
+
+    // Fils d'exécution simultanés
+    private static final int THREADS = 32;
+    // Demandes par fil d'exécution
+    private static final int REQUESTS_PER_THREAD = 200;
+    // Côté du bloc de tuiles du niveau 16 demandé
+    private static final int SIDE = 8;
+
+    private PipelineFixture fixture;
+
+    @Before
+    public void setUp() throws IOException {
+        // Réponses lentes: les demandes d'une même tuile se chevauchent
+        fixture = new PipelineFixture(20, false);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Test
+    public void eachTileIsDownloadedOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            results.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    List<int[]> requests = requests(seed);
+                    start.await();
+                    for (int[] req : requests) {
+                        byte[] image = req[0] == 16 && req[3] == 0
+                                ? fixture.pipeline.readRealTileImage(req[2], req[1], 16)
+                                : fixture.pipeline.getTileImage(req[2], req[1], req[0]);
+                        assertNotNull("Tuile " + req[0] + "/" + req[1] + "/" + req[2], image);
+                    }
+                    return requests.size();
+                }
+            }));
+        }
+        start.countDown();
+        int total = 0;
+        for (Future<Integer> f : results) {
+            total += f.get(120, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        assertEquals(THREADS * REQUESTS_PER_THREAD, total);
+
+        Map<String, Integer> counts = fixture.server.getTileRequestCounts();
+        assertEquals(SIDE * SIDE, counts.size());
+        for (int r = 0; r < SIDE; r++) {
+            for (int c = 0; c < SIDE; c++) {
+                assertEquals("Tuile 16/" + (PipelineFixture.ROW16 + r) + "/"
+                                + (PipelineFixture.COL16 + c), 1,
+                        fixture.server.getRequestCount(16, PipelineFixture.ROW16 + r,
+                                PipelineFixture.COL16 + c));
+            }
+        }
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            assertTrue("Tuile " + e.getKey() + " demandée " + e.getValue() + " fois",
+                    e.getValue() == 1);
+        }
+    }
+
+    /**
+     * Demandes d'un fil d'exécution, dans un ordre qui lui est propre: chaque
+     * tuile du bloc (lecture directe ou par la chaîne complète) et ses tuiles
+     * filles du niveau 17.
+     *
+     * @return Tableaux {zoom, ligne, colonne, lecture directe (0) ou non}
+     */
+    private static List<int[]> requests(int seed) {
+        List<int[]> requests = new ArrayList<int[]>();
+        for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+            int tile = i % (SIDE * SIDE);
+            int r = PipelineFixture.ROW16 + tile / SIDE;
+            int c = PipelineFixture.COL16 + tile % SIDE;
+            switch ((i / (SIDE * SIDE) + seed) % 3) {
+                case 0:
+                    requests.add(new int[]{16, r, c, 0});
+                    break;
+                case 1:
+                    requests.add(new int[]{16, r, c, 1});
+                    break;
+                default:
+                    requests.add(new int[]{17, 2 * r + (i & 1), 2 * c + (seed & 1), 1});
+                    break;
+            }
+        }
+        Collections.shuffle(requests, new Random(seed));
+        return requests;
+    }
+}
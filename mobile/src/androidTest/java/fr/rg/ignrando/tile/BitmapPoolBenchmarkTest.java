@@ -0,0 +1,207 @@
+package fr.rg.ignrando.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Assemblage des tuiles reconstituées avec et sans la réserve d'images
+ * ({@link BitmapPool}), sur l'appareil: durée par tuile, mémoire allouée
+ * par la machine virtuelle, nombre de passages du ramasse-miettes et images
+ * allouées.
+ * <p/>
+ * L'assemblage sans réserve reproduit l'ancienne construction des tuiles:
+ * image ARGB_8888 neuve, sous-tuiles décodées à leur taille d'origine, tuile
+ * de niveau 13 de 1024 pixels. Les deux versions compressent en JPEG de
+ * qualité 100, pour ne mesurer que l'effet de la réserve et du décodage à la
+ * taille voulue. Les résultats sont écrits dans le journal (étiquette
+ * BitmapPoolBenchmark).
+ */
+public class BitmapPoolBenchmarkTest extends TestCase {
+
+    private static final String TAG = "BitmapPoolBenchmark";
+    // Tuiles assemblées avant et pendant la mesure
+    private static final int WARMUP = 10;
+    private static final int ITERATIONS = 50;
+
+    private final byte[][] tiles = new byte[8][];
+    private BitmapTileCodec codec;
+    private int index;
+
+    /**
+     * Mesures d'une série d'assemblages.
+     */
+    private static class Result {
+        double msPerTile;
+        long gcCount;
+        long bytesAllocated;
+        long bitmapsAllocated;
+
+        @Override
+        public String toString() {
+            return String.format("%.2f ms/tuile, %d ko alloués/tuile, %d passages du GC, "
+                            + "%d images allouées", msPerTile, bytesAllocated / ITERATIONS / 1024,
+                    gcCount, bitmapsAllocated);
+        }
+    }
+
+    /**
+     * Assemblage d'une tuile.
+     */
+    private interface Stitcher {
+        byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = createJpegTile(i);
+        }
+        codec = new BitmapTileCodec(TileEncoding.Policy.parse("jpeg:100"));
+        BitmapPool.getInstance().evictAll();
+    }
+
+    /**
+     * Tuile de niveau 15 des écrans haute densité (512 pixels) assemblée
+     * depuis 4 tuiles du niveau 16.
+     */
+    public void testHighResZ15() {
+        compare("z15 512px", 512, new Stitcher() {
+            @Override
+            public byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22) {
+                return codec.stitch(img11, img12, img21, img22, 512, 15);
+            }
+        });
+    }
+
+    /**
+     * Tuile de niveau 13 de la vue d'ensemble: 1024 pixels sans réserve, 512
+     * pixels (sous-tuiles décodées à demi-taille) avec la réserve.
+     */
+    public void testOverviewZ13() {
+        compare("z13 1024px -> 512px", 1024, new Stitcher() {
+            @Override
+            public byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22) {
+                return codec.stitch(img11, img12, img21, img22, 512, 13);
+            }
+        });
+    }
+
+    /**
+     * Mesurer l'assemblage sans puis avec la réserve.
+     *
+     * @param name      Nom de la mesure
+     * @param legacyDim Dimension de la tuile sans réserve (en pixels)
+     * @param withPool  Assemblage avec la réserve
+     */
+    private void compare(String name, final int legacyDim, Stitcher withPool) {
+        Result before = measure(new Stitcher() {
+            @Override
+            public byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22) {
+                return legacyStitch(img11, img12, img21, img22, legacyDim);
+            }
+        });
+        // Sans réserve: l'image de destination et les 4 sous-tuiles
+        before.bitmapsAllocated = 5L * ITERATIONS;
+        Result after = measure(withPool);
+        Log.i(TAG, name + " sans réserve: " + before);
+        Log.i(TAG, name + " avec réserve: " + after + " " + BitmapPool.getInstance());
+        // Une fois la réserve remplie, plus aucune image n'est allouée
+        assertEquals(name + ": images allouées avec la réserve", 0, after.bitmapsAllocated);
+    }
+
+    private Result measure(Stitcher stitcher) {
+        for (int i = 0; i < WARMUP; i++) {
+            assertNotNull(stitchNext(stitcher));
+        }
+        BitmapPool pool = BitmapPool.getInstance();
+        Result r = new Result();
+        long gc = runtimeStat("art.gc.gc-count");
+        long allocated = runtimeStat("art.gc.bytes-allocated");
+        long bitmaps = pool.getAllocationCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(stitchNext(stitcher));
+        }
+        r.msPerTile = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        r.gcCount = runtimeStat("art.gc.gc-count") - gc;
+        r.bytesAllocated = runtimeStat("art.gc.bytes-allocated") - allocated;
+        r.bitmapsAllocated = pool.getAllocationCount() - bitmaps;
+        return r;
+    }
+
+    private byte[] stitchNext(Stitcher stitcher) {
+        int i = index++;
+        return stitcher.stitch(tiles[i % tiles.length], tiles[(i + 1) % tiles.length],
+                tiles[(i + 2) % tiles.length], tiles[(i + 3) % tiles.length]);
+    }
+
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * Assemblage sans réserve (construction antérieure à BitmapPool).
+     */
+    private static byte[] legacyStitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22,
+                                       int dim) {
+        Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Bitmap b = Bitmap.createBitmap(dim, dim, Bitmap.Config.ARGB_8888);
+        Canvas cv = new Canvas(b);
+        int half = dim / 2;
+        drawScaled(cv, img11, 0, 0, half, p);
+        drawScaled(cv, img12, half, 0, half, p);
+        drawScaled(cv, img21, 0, half, half, p);
+        drawScaled(cv, img22, half, half, half, p);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        b.compress(Bitmap.CompressFormat.JPEG, 100, buffer);
+        b.recycle();
+        return buffer.toByteArray();
+    }
+
+    private static void drawScaled(Canvas cv, byte[] data, int x, int y, int dim, Paint p) {
+        Bitmap sub = BitmapFactory.decodeByteArray(data, 0, data.length);
+        cv.drawBitmap(sub, null, new Rect(x, y, x + dim, y + dim), p);
+        sub.recycle();
+    }
+
+    /**
+     * Créer une tuile JPEG ressemblant à une carte (aplats, lignes et bruit).
+     */
+    static byte[] createJpegTile(int seed) {
+        Random random = new Random(seed);
+        Bitmap b = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        Canvas cv = new Canvas(b);
+        Paint p = new Paint();
+        cv.drawColor(0xfff2efe9);
+        for (int i = 0; i < 12; i++) {
+            p.setColor(0xff000000 | random.nextInt(0xffffff));
+            cv.drawCircle(random.nextInt(256), random.nextInt(256), 10 + random.nextInt(40), p);
+        }
+        p.setStrokeWidth(2);
+        for (int i = 0; i < 40; i++) {
+            p.setColor(0xff000000 | random.nextInt(0xffffff));
+            cv.drawLine(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), p);
+        }
+        for (int i = 0; i < 4000; i++) { // Grain des scans
+            int x = random.nextInt(256), y = random.nextInt(256);
+            b.setPixel(x, y, b.getPixel(x, y) ^ random.nextInt(0x202020));
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        b.compress(Bitmap.CompressFormat.JPEG, 90, buffer);
+        b.recycle();
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+package fr.rg.ignrando.tile;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Taille et durée d'encodage des tuiles reconstituées selon leur format, sur
+ * l'appareil: WebP (avec et sans perte) n'est mesurable qu'avec l'encodeur
+ * d'Android, que la mesure JMH (TileEncodingBenchmark) ne peut pas utiliser.
+ * <p/>
+ * Pour chaque format, des tuiles de niveau 14 sont assemblées depuis 4 tuiles
+ * du niveau 15 et des tuiles de niveau 17 découpées dans une tuile du niveau
+ * 16. Les résultats (taille moyenne d'une tuile produite, rapportée à celle
+ * des tuiles sources, et durée par tuile) sont écrits dans le journal
+ * (étiquette TileEncodingBenchmark).
+ */
+public class TileEncodingBenchmarkTest extends TestCase {
+
+    private static final String TAG = "TileEncodingBenchmark";
+    // Formats comparés (préférence « Format des tuiles reconstituées »)
+    private static final String[] ENCODINGS = {"jpeg:100", "jpeg:90", "jpeg:85", "jpeg:75",
+            "webp:90", "webp:80", "webp:100", "png"};
+    // Tuiles produites avant et pendant la mesure
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 30;
+
+    private final byte[][] tiles = new byte[8][];
+    private long sourceBytes;
+    private int index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = BitmapPoolBenchmarkTest.createJpegTile(i);
+            sourceBytes += tiles[i].length;
+        }
+        BitmapPool.getInstance().evictAll();
+    }
+
+    public void testStitch() {
+        for (String spec : ENCODINGS) {
+            final BitmapTileCodec codec = new BitmapTileCodec(TileEncoding.Policy.parse(spec));
+            measure("stitch " + spec, new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    int i = index++;
+                    return codec.stitch(tiles[i % tiles.length], tiles[(i + 1) % tiles.length],
+                            tiles[(i + 2) % tiles.length], tiles[(i + 3) % tiles.length],
+                            256, 14);
+                }
+            });
+        }
+    }
+
+    public void testZoomIn() {
+        for (String spec : ENCODINGS) {
+            final BitmapTileCodec codec = new BitmapTileCodec(TileEncoding.Policy.parse(spec));
+            measure("zoomIn " + spec, new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    final int i = index++;
+                    return codec.zoomIn(TileKey.NONE, new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return tiles[i % tiles.length];
+                        }
+                    }, 1, i & 1, i >> 1 & 1, 256, 17);
+                }
+            });
+        }
+    }
+
+    /**
+     * Mesurer la production d'une série de tuiles.
+     *
+     * @param name     Nom de la mesure
+     * @param producer Production d'une tuile
+     */
+    private void measure(String name, Callable<byte[]> producer) {
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                producer.call();
+            }
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                byte[] tile = producer.call();
+                assertTrue(name + ": tuile incomplète", TileIntegrity.isComplete(tile));
+                bytes += tile.length;
+            }
+            double msPerTile = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+            long average = bytes / ITERATIONS;
+            Log.i(TAG, String.format("%s: %d octets/tuile (%.0f %% des sources), %.2f ms/tuile",
+                    name, average, 100.0 * average * tiles.length / sourceBytes, msPerTile));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package fr.rg.ignrando;
+
+
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceFragment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import fr.rg.ignrando.tile.TileMemoryCache;
+import fr.rg.ignrando.tile.TileMetrics;
+import fr.rg.ignrando.tile.TileScheduler;
+
+/**
+ * Affichage des statistiques de fourniture des tuiles (débogage).
+ */
+public class DebugSettingsFragment extends PreferenceFragment {
+
+    // Fichier d'export des statistiques
+    public static final String METRICS_FILE = "tile-metrics.json";
+
+    private PreferenceCategory tiers;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        addPreferencesFromResource(R.xml.debug_preferences);
+        tiers = (PreferenceCategory) findPreference("TILE_METRICS_TIERS");
+
+        findPreference("TILE_METRICS_EXPORT").setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        File file = exportMetrics();
+                        if (file != null) {
+                            preference.setSummary(getString(R.string.tile_metrics_exported,
+                                    file.getPath()));
+                        }
+                        refresh();
+                        return true;
+                    }
+                });
+        findPreference("TILE_METRICS_RESET").setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        TileMetrics.getInstance().reset();
+                        refresh();
+                        return true;
+                    }
+                });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    /**
+     * Mettre à jour les valeurs affichées.
+     */
+    private void refresh() {
+        TileMetrics metrics = TileMetrics.getInstance();
+        tiers.removeAll();
+        for (int tier = 0; tier < TileMetrics.TIER_COUNT; tier++) {
+            Preference p = new Preference(getActivity());
+            p.setTitle(TileMetrics.tierName(tier));
+            p.setSummary(metrics.summary(tier));
+            p.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    refresh();
+                    return true;
+                }
+            });
+            tiers.addPreference(p);
+        }
+        findPreference("TILE_METRICS_TRANSFERS").setSummary(getString(
+                R.string.tile_metrics_transfers_summary,
+                metrics.getBytesDownloaded() / 1024, metrics.getBytesWritten() / 1024,
+                metrics.getLockWaitMillis()));
+        findPreference("TILE_METRICS_STATE").setSummary(TileMemoryCache.getInstance()
+                + "\n" + TileScheduler.getInstance());
+    }
+
+    /**
+     * Écrire les statistiques au format JSON dans le répertoire de
+     * l'application (et au format texte dans le journal).
+     *
+     * @return Le fichier écrit ou null en cas d'erreur.
+     */
+    private File exportMetrics() {
+        TileMetrics metrics = TileMetrics.getInstance();
+        Log.d(MainActivity.DEBUG_TAG, metrics.toText());
+        File file = new File(getActivity().getExternalFilesDir(null), METRICS_FILE);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(metrics.toJson().getBytes("UTF-8"));
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+}
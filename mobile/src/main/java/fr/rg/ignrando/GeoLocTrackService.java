@@ -35,7 +35,10 @@ import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
 
+import fr.rg.ignrando.tile.HeadingPrefetcher;
+import fr.rg.ignrando.tile.TilePrefetcher;
 import fr.rg.ignrando.util.GeoLocation;
 import fr.rg.ignrando.util.KMLReader;
 import fr.rg.ignrando.util.KMLWriter;
@@ -129,6 +132,8 @@ public class GeoLocTrackService extends Service implements LocationListener {
 
     // Récupération des tuiles IGN pour notifications
     private IGNTileProvider tileProvider;
+    // Téléchargement anticipé des tuiles dans la direction de la marche
+    private HeadingPrefetcher headingPrefetcher;
 
     /**
      * Écouter les données issues du capteur de pression (si disponible).
@@ -139,6 +144,16 @@ public class GeoLocTrackService extends Service implements LocationListener {
         super.onCreate();
 
         tileProvider = new IGNTileProvider(this);
+        headingPrefetcher = new HeadingPrefetcher(new TilePrefetcher.TileLoader() {
+            @Override
+            public int load(int zoom, int row, int col) {
+                try {
+                    return tileProvider.prefetchTile(col, row, zoom);
+                } catch (CancellationException e) { // Serveur saturé ou tuile abandonnée
+                    return TilePrefetcher.RESULT_FAILED;
+                }
+            }
+        }, tileProvider.getDownloadBackoff());
 
         // Pour dessiner les images de la notification
         paint = new Paint();
@@ -207,6 +222,28 @@ public class GeoLocTrackService extends Service implements LocationListener {
         return mBinder;
     }
 
+    /**
+     * Libérer le cache mémoire des tuiles à la demande du système.
+     *
+     * @param level Niveau de libération de mémoire demandé
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        IGNTileProvider.onTrimMemory(level);
+    }
+
+    /**
+     * Abandonner les téléchargements anticipés et sauvegarder le cache des
+     * tuiles.
+     */
+    @Override
+    public void onDestroy() {
+        headingPrefetcher.cancel();
+        IGNTileProvider.flushTileCache();
+        super.onDestroy();
+    }
+
     /**
      * Démarrer un nouvel enregistrement:
      * <ul>
@@ -238,6 +275,7 @@ public class GeoLocTrackService extends Service implements LocationListener {
 
         // État du service
         rstate = RecordingState.STARTED;
+        headingPrefetcher.reset();
 
         // Sauvegardes automatiques périodiques, toutes les 2mn
         saveTimer = new Timer("Automatic saving", true);
@@ -282,6 +320,7 @@ public class GeoLocTrackService extends Service implements LocationListener {
      */
     public void stopRecording() {
         rstate = RecordingState.STOPPED;
+        headingPrefetcher.cancel();
 
         try { // Sauvegarder les données
             String name = recordBundle.getString(KMLReader.PATHNAME_KEY);
@@ -453,6 +492,9 @@ public class GeoLocTrackService extends Service implements LocationListener {
         // Sauvegarder la géolocalisation dans le bundle
         locList.add(loc);
 
+        // Préparer les tuiles des notifications suivantes
+        headingPrefetcher.onLocation(loc.latitude, loc.longitude, loc.timeStampS * 1000);
+
         // Prévenir les écouteurs
         sendBroadcast(new Intent(PATH_UPDATED));
 
@@ -606,45 +648,45 @@ public class GeoLocTrackService extends Service implements LocationListener {
             if (y <= 128) { // Tuile inférieure droite
                 mapOrigWmtsY -= 256;
                 y += 256;
-                tileBytes = tileProvider.readRealTileImage(c, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
                 // Les 3 autres
-                tileBytes = tileProvider.readRealTileImage(c - 1, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c - 1, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c, r - 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r - 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c - 1, r - 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c - 1, r - 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
             } else { // Tuile supérieure droite
-                tileBytes = tileProvider.readRealTileImage(c, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
                 // Les 3 autres
-                tileBytes = tileProvider.readRealTileImage(c - 1, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c - 1, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c, r + 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r + 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c - 1, r + 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c - 1, r + 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
@@ -654,45 +696,45 @@ public class GeoLocTrackService extends Service implements LocationListener {
             if (y <= 128) { // Tuile inférieure gauche
                 mapOrigWmtsY -= 256;
                 y += 256;
-                tileBytes = tileProvider.readRealTileImage(c, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
                 // Les 3 autres
-                tileBytes = tileProvider.readRealTileImage(c + 1, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c + 1, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c, r - 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r - 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c + 1, r - 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c + 1, r - 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
             } else { // Tuile supérieure gauche
-                tileBytes = tileProvider.readRealTileImage(c, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
                 // Les 3 autres
-                tileBytes = tileProvider.readRealTileImage(c + 1, r, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c + 1, r, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[0][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c, r + 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c, r + 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][0] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
                 }
-                tileBytes = tileProvider.readRealTileImage(c + 1, r + 1, zoom);
+                tileBytes = tileProvider.readCachedTileImage(c + 1, r + 1, zoom);
                 if (tileBytes != null && tileBytes.length != 0) {
                     tileImg[1][1] = BitmapFactory.decodeByteArray(tileBytes, 0,
                             tileBytes.length);
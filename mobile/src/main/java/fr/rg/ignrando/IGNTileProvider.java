@@ -1,12 +1,9 @@
 package fr.rg.ignrando;
 
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
@@ -22,26 +19,30 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.HashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CancellationException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import fr.rg.ignrando.tile.BitmapTileCodec;
+import fr.rg.ignrando.tile.BoundedTileStore;
+import fr.rg.ignrando.tile.DownloadBackoff;
+import fr.rg.ignrando.tile.FileTileStore;
+import fr.rg.ignrando.tile.HybridTilePipeline;
+import fr.rg.ignrando.tile.MBTilesTileStore;
+import fr.rg.ignrando.tile.PinnedRegions;
+import fr.rg.ignrando.tile.TileEncoding;
+import fr.rg.ignrando.tile.TileMemoryCache;
+import fr.rg.ignrando.tile.TilePipeline;
+import fr.rg.ignrando.tile.TileStore;
+import fr.rg.ignrando.tile.WmtsClient;
 import fr.rg.ignrando.util.GeoLocation;
 
 
@@ -50,28 +51,135 @@ import fr.rg.ignrando.util.GeoLocation;
  * <p/>
  * <p/>
  * Toutes les tuiles sont dérivées des niveaux 15 et 16 de la base de données
- * IGN , ceux-ci correspondant aux scan de cartes 1:25000.
+ * IGN , ceux-ci correspondant aux scan de cartes 1:25000. Leur fourniture
+ * est confiée à un {@link TilePipeline}, les traitements d'images à un
+ * {@link BitmapTileCodec}. La vue hybride (photographies aériennes
+ * recouvertes de la carte) est fournie par un {@link HybridTilePipeline}.
  */
 public class IGNTileProvider implements TileProvider {
-    private HashMap<String, Lock> locks = new HashMap<String, Lock>();
 
-    // Clé de développement IGN pour le service WMTS
-    private final String cleIGNWeb;
     public static final String IGNKEY_KEY = "IGN_DEVELOPMENT_KEY";
+    // Préférence: stockage des tuiles dans un fichier MBTiles unique
+    public static final String MBTILES_STORE_KEY = "MBTILES_TILE_STORE";
+    // Préférence: taille maximale du cache disque (en Mo, 0 pour illimité)
+    public static final String TILE_CACHE_BUDGET_KEY = "TILE_CACHE_BUDGET";
+    public static final String DEFAULT_TILE_CACHE_BUDGET = "1024";
+    // Préférence: format de compression des tuiles reconstituées (voir
+    // TileEncoding.Policy)
+    public static final String DERIVED_TILE_ENCODING_KEY = "DERIVED_TILE_ENCODING";
+    public static final String DEFAULT_DERIVED_TILE_ENCODING = "jpeg:85,15=jpeg:90";
+    // Préférence: tuiles provisoires (agrandissement d'une tuile ancêtre)
+    // pendant le téléchargement des tuiles réelles
+    public static final String PROGRESSIVE_TILES_KEY = "PROGRESSIVE_TILES";
+    // Préférence: opacité de la carte dans la vue hybride (en pourcents)
+    public static final String HYBRID_MAP_ALPHA_KEY = "HYBRID_MAP_ALPHA";
+    public static final String DEFAULT_HYBRID_MAP_ALPHA = "50";
+    // Préférence: nombre maximal de requêtes WMTS par seconde (quota de la clé
+    // IGN, 0 pour illimité)
+    public static final String WMTS_REQUESTS_PER_SECOND_KEY = "WMTS_REQUESTS_PER_SECOND";
+    public static final String DEFAULT_WMTS_REQUESTS_PER_SECOND = "20";
+    // Préférence (sans interface): adresse du serveur WMTS, pour les tests
+    public static final String WMTS_BASE_URL_KEY = "WMTS_BASE_URL";
     // Dimension d'une tuile
-    public static final int TILE_PIXEL_DIM = 256;
-    // Taille du tampon de lecture/écriture
-    public static final int BUFFER_SIZE = 16 * 1024;
-    // Types de tuiles (vues aérienne)
-    private boolean orthoimage;
-    // Cache disque pour les tuiles
-    private File cacheDir;
-    // pinceaux pour dessiner les tuiles
-    Paint pText = new Paint();
-    Paint pGraph = new Paint();
-    private boolean highResolution;
+    public static final int TILE_PIXEL_DIM = TilePipeline.TILE_PIXEL_DIM;
+    // Niveau de zoom maximal des tuiles de sur-zoom (reconstituées depuis le
+    // niveau 16)
+    public static final int MAX_OVERZOOM_SCALE = TilePipeline.MAX_OVERZOOM_SCALE;
+    // Stockages des tuiles (uniques pour le processus)
+    private static BoundedTileStore fileStore;
+    private static BoundedTileStore mbtilesStore;
+    // Stockage utilisé par la fourniture partagée
+    private static BoundedTileStore sharedStore;
+    // Zones épinglées (communes aux deux stockages)
+    private static PinnedRegions pinnedRegions;
+    // Fourniture des tuiles partagée par le processus et préférences avec
+    // lesquelles elle a été construite
+    private static TilePipeline sharedPipeline;
+    private static String sharedConfig;
+    // Photographies aériennes et mélange de la vue hybride (mêmes préférences)
+    private static TilePipeline sharedOrthoPipeline;
+    private static HybridTilePipeline sharedHybridPipeline;
+    // Fourniture des tuiles (caches, téléchargement, reconstitution)
+    private final TilePipeline pipeline;
+    // Fourniture des tuiles de la vue hybride (null pour la carte seule)
+    private final HybridTilePipeline hybrid;
+    // Mode progressif et objet à prévenir à l'arrivée des tuiles réelles
+    private final boolean progressive;
+    private volatile TilePipeline.RefineListener refineListener;
 
+    /**
+     * Créer un fournisseur de tuiles. Tous les fournisseurs du processus
+     * (surcouche de la carte, services) partagent la même chaîne de
+     * fourniture: un même téléchargement n'est jamais effectué deux fois en
+     * parallèle.
+     *
+     * @param context Contexte (seul le contexte de l'application est conservé)
+     */
     public IGNTileProvider(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * Créer un fournisseur de tuiles de la carte ou de la vue hybride. Les
+     * tuiles de la vue hybride sont toujours fournies à la fin de leur
+     * chargement (pas de mode progressif).
+     *
+     * @param context Contexte (seul le contexte de l'application est conservé)
+     * @param hybrid  Photographies aériennes recouvertes de la carte
+     */
+    public IGNTileProvider(Context context, boolean hybrid) {
+        pipeline = getSharedPipeline(context.getApplicationContext());
+        this.hybrid = hybrid ? getSharedHybridPipeline(context.getApplicationContext())
+                : null;
+        progressive = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PROGRESSIVE_TILES_KEY, true);
+    }
+
+    /**
+     * Suivre l'arrivée des tuiles réelles remplaçant des tuiles provisoires
+     * (par exemple pour rafraîchir la surcouche). Sans cet objet (ou si la
+     * préférence est désactivée), chaque tuile est fournie à la fin de son
+     * téléchargement.
+     *
+     * @param listener Objet à prévenir ou null
+     */
+    public void setRefineListener(TilePipeline.RefineListener listener) {
+        refineListener = listener;
+    }
+
+    /**
+     * Récupérer la chaîne de fourniture des tuiles du processus, créée lors
+     * du premier appel. Elle est reconstruite si les préférences dont elle
+     * dépend (clé IGN, serveur, stockage, format) ont changé depuis, et le
+     * cache mémoire est alors vidé; le budget du cache disque et le quota de
+     * requêtes sont appliqués à chaque appel.
+     *
+     * @param context Contexte de l'application
+     */
+    private static synchronized TilePipeline getSharedPipeline(Context context) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        long budget;
+        try {
+            budget = Long.parseLong(settings.getString(TILE_CACHE_BUDGET_KEY,
+                    DEFAULT_TILE_CACHE_BUDGET)) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            budget = Long.parseLong(DEFAULT_TILE_CACHE_BUDGET) * 1024 * 1024;
+        }
+        double requestsPerSecond;
+        try {
+            requestsPerSecond = Double.parseDouble(settings.getString(
+                    WMTS_REQUESTS_PER_SECOND_KEY, DEFAULT_WMTS_REQUESTS_PER_SECOND));
+        } catch (NumberFormatException e) {
+            requestsPerSecond = Double.parseDouble(DEFAULT_WMTS_REQUESTS_PER_SECOND);
+        }
+        boolean mbtiles = settings.getBoolean(MBTILES_STORE_KEY, false);
+        // Récupérer la clé IGN
+        String cleIGNWeb = settings.getString(IGNKEY_KEY,
+                "7xng6yu8534gew6uufl28pp4"); // -> novembre 2017 ?
+        String baseUrl = settings.getString(WMTS_BASE_URL_KEY, WmtsClient.DEFAULT_BASE_URL);
+        String encodingSpec = settings.getString(DERIVED_TILE_ENCODING_KEY,
+                DEFAULT_DERIVED_TILE_ENCODING);
+
         // Activer le cache disque sur support externe (de préférence)
         String cachePath;
         if (Environment.MEDIA_MOUNTED.equals(Environment
@@ -81,17 +189,16 @@ public class IGNTileProvider implements TileProvider {
         } else { // Stockage en interne
             cachePath = context.getCacheDir().getPath();
         }
-        cacheDir = new File(cachePath + File.separator + "ignmaps" + File.separator);
-        if (!cacheDir.exists()) {
-            cacheDir.mkdir();
-        }
+        File cacheDir = new File(cachePath + File.separator + "ignmaps" + File.separator);
+        TileStore store = openTileStore(context, cacheDir, mbtiles, budget);
 
-        pGraph.setStyle(Paint.Style.STROKE);
-        pGraph.setStrokeWidth(3);
-        pText.setAntiAlias(true);
-        pText.setFakeBoldText(true);
-        pText.setTextSize(12);
+        String config = mbtiles + "|" + cleIGNWeb + "|" + baseUrl + "|" + encodingSpec;
+        if (sharedPipeline != null && config.equals(sharedConfig)) {
+            sharedPipeline.getDownloadLimiter().setRequestsPerSecond(requestsPerSecond);
+            return sharedPipeline;
+        }
 
+        boolean highResolution;
         WindowManager wm = (WindowManager) context
                 .getSystemService(Context.WINDOW_SERVICE);
         DisplayMetrics metrics = new DisplayMetrics();
@@ -102,10 +209,109 @@ public class IGNTileProvider implements TileProvider {
             highResolution = true;
         }
 
-        // Récupérer la clé IGN
+        WmtsClient wmts = new WmtsClient(baseUrl, cleIGNWeb);
+
+        // Format des tuiles reconstituées
+        TileEncoding.Policy policy;
+        try {
+            policy = TileEncoding.Policy.parse(encodingSpec);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            policy = TileEncoding.Policy.parse(DEFAULT_DERIVED_TILE_ENCODING);
+        }
+
+        Log.d(MainActivity.DEBUG_TAG, "Nouvelle fourniture de tuiles: " + config);
+        if (sharedPipeline != null) {
+            // Tuiles de l'ancien stockage ou reconstituées dans l'ancien format
+            TileMemoryCache.getInstance().evictAll();
+        }
+        BitmapTileCodec codec = new BitmapTileCodec(policy);
+        sharedPipeline = new TilePipeline(store, wmts, codec, highResolution);
+        sharedOrthoPipeline = new TilePipeline(store, wmts, codec, highResolution, true);
+        sharedHybridPipeline = null;
+        sharedConfig = config;
+        sharedPipeline.getDownloadLimiter().setRequestsPerSecond(requestsPerSecond);
+        return sharedPipeline;
+    }
+
+    /**
+     * Récupérer la fourniture des tuiles de la vue hybride du processus. Elle
+     * est reconstruite si la chaîne des cartes l'a été ou si l'opacité de la
+     * carte a changé.
+     *
+     * @param context Contexte de l'application
+     */
+    private static synchronized HybridTilePipeline getSharedHybridPipeline(Context context) {
+        TilePipeline map = getSharedPipeline(context);
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        cleIGNWeb = settings.getString(IGNKEY_KEY,
-                "7xng6yu8534gew6uufl28pp4"); // -> novembre 2017 ?
+        int alpha;
+        try {
+            alpha = Integer.parseInt(settings.getString(HYBRID_MAP_ALPHA_KEY,
+                    DEFAULT_HYBRID_MAP_ALPHA));
+        } catch (NumberFormatException e) {
+            alpha = Integer.parseInt(DEFAULT_HYBRID_MAP_ALPHA);
+        }
+        if (sharedHybridPipeline == null || sharedHybridPipeline.getMapAlphaPercent() != alpha) {
+            sharedHybridPipeline = new HybridTilePipeline(map, sharedOrthoPipeline, alpha);
+        }
+        return sharedHybridPipeline;
+    }
+
+    /**
+     * Ouvrir le cache disque des tuiles: un fichier par tuile dans le
+     * répertoire de cache ou, si la préférence correspondante est activée, un
+     * fichier MBTiles unique. Dans ce dernier cas, les tuiles du répertoire
+     * sont importées (une seule fois) en arrière-plan.
+     * <p/>
+     * Le stockage est limité en taille: au-delà du budget, les tuiles les
+     * moins récemment utilisées sont supprimées, sauf celles des zones
+     * épinglées.
+     *
+     * @param context  Contexte de l'application
+     * @param cacheDir Répertoire des fichiers de tuiles
+     * @param mbtiles  Utiliser le stockage MBTiles
+     * @param budget   Taille maximale du cache (en octets, 0 pour illimité)
+     */
+    private static TileStore openTileStore(Context context, File cacheDir,
+                                          boolean mbtiles, long budget) {
+        BoundedTileStore bounded;
+        if (pinnedRegions == null) {
+            // Zones chargées par le fil de nettoyage du stockage
+            pinnedRegions = new PinnedRegions(new File(cacheDir.getParentFile(), "ignmaps.pins"));
+        }
+        if (!mbtiles) {
+            if (fileStore == null) {
+                FileTileStore files = new FileTileStore(cacheDir);
+                // Déplacer les tuiles de l'ancien format (répertoire unique)
+                files.migrateLegacyFilesInBackground();
+                fileStore = new BoundedTileStore(files,
+                        new File(cacheDir.getParentFile(), "ignmaps.idx"), budget, pinnedRegions);
+            }
+            bounded = fileStore;
+        } else {
+            if (mbtilesStore == null) {
+                MBTilesTileStore mbt = new MBTilesTileStore(context,
+                        new File(cacheDir.getParentFile(), "ignmaps.mbtiles"));
+                final BoundedTileStore bmt = new BoundedTileStore(mbt,
+                        new File(cacheDir.getParentFile(), "ignmaps.mbtiles.idx"), budget,
+                        pinnedRegions);
+                // Importer les fichiers (file d'écriture) en complétant l'index
+                mbt.importFilesInBackground(cacheDir, new TileStore.TileVisitor() {
+                    @Override
+                    public void visit(int layer, int zoom, int row, int col, int size) {
+                        bmt.onTileAdded(layer, zoom, row, col, size);
+                    }
+                });
+                mbtilesStore = bmt;
+            }
+            bounded = mbtilesStore;
+        }
+        bounded.setPinnedRegions(pinnedRegions);
+        if (bounded.getMaxBytes() != budget) {
+            bounded.setMaxBytes(budget);
+        }
+        sharedStore = bounded;
+        return bounded;
     }
 
     /**
@@ -116,614 +322,141 @@ public class IGNTileProvider implements TileProvider {
     @Override
     public Tile getTile(int c, int r, int ignScale) {
         byte[] image;
-        double factor = 1;
-
-        switch (ignScale) {
-            case 17:
-                image = createTileFromLowerScale(c, r, ignScale);
-                break;
-            case 16:
-                image = readRealTileImage(c, r, ignScale);
-                break;
-            case 15:
-                if (highResolution) {
-                    image = createHighResZ15Tile(c, r);
-                    factor = 2;
-                } else {
-                    image = readRealTileImage(c, r, 15);
-                }
-                break;
-            case 14:
-            case 13:
-                image = createTileFromUpperScale(c, r, ignScale);
-                factor = Math.pow(2, 15 - ignScale);
-                break;
-            case 12:
-                image = createTileFromUpperScale(c, r, ignScale);
-                factor = Math.pow(2, 15 - ignScale);
-            default:
-                image = createEmptyTile(c, r, ignScale);
-                factor = highResolution ? 2 : 1;
-                break;
+        try {
+            if (hybrid != null) {
+                image = hybrid.getTileImage(c, r, ignScale);
+            } else {
+                image = pipeline.getTileImage(c, r, ignScale,
+                        progressive ? refineListener : null);
+            }
+        } catch (CancellationException e) { // Hors de la zone affichée ou serveur saturé
+            return null; // Redemandée plus tard par la carte
         }
 
         if (image == null) {
             return NO_TILE;
         } else {
-            Tile t = new Tile((int) (factor * TILE_PIXEL_DIM),
-                    (int) (factor * TILE_PIXEL_DIM), image);
+            int dim = hybrid != null ? hybrid.getTileDim(ignScale)
+                    : pipeline.getTileDim(ignScale);
+            Tile t = new Tile(dim, dim, image);
             return t;
         }
 
     }
 
     /**
-     * Récupérer les données d'une tuile existant dans la base de données IGN.
-     * Deux cas peuvent se présenter:
-     * <ol>
-     * <li>La tuile est déjà présente dans le cache disque: lire les données
-     * depuis le disque.</li>
-     * <li>La tuile ne se trouve pas encore dans le cache disque: télécharger les
-     * données puis les écrire dans le cache.</li>
-     * </ol>
-     * Un mécanisme de verrous (un pour chaque tuile) est mis en place afin
-     * d'éviter des résultats aléatoires lorsque cette méthode est appelée pour
-     * une même tuile par plusieurs fils d'exécution distincts.
+     * Suivre le mode hors ligne (par exemple pour rafraîchir la surcouche
+     * lorsque les téléchargements peuvent reprendre).
      *
-     * @param c        Indice de colonne.
-     * @param r        Indice de ligne.
-     * @param ignScale Niveau de zoom.
-     * @return Tableau d'octet contenant les données (compressées) de la tuile.
+     * @param listener Objet à prévenir ou null
      */
-    public byte[] readRealTileImage(int c, int r, int ignScale) {
-        // +--------------------------------+
-        // | Acquérir le verrou de la tuile |
-        // +--------------------------------+
-        String baseName = (orthoimage ? "ortho-" : "") + "z" + ignScale + "-r" + r
-                + "-c" + c;
-        Lock tLock;
-        synchronized (this) {
-            tLock = locks.get(baseName);
-            if (locks.get(baseName) == null) {
-                locks.put(baseName, new ReentrantLock());
-                tLock = locks.get(baseName);
-            }
-        }
-        tLock.lock();
-
-        InputStream in = null;
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        FileOutputStream out = null;
-        boolean notInCache = true;
-
-        File cacheFile = new File(cacheDir, baseName + ".jpg");
-
-        try {
-            if (cacheFile.exists()) { // Récupérer depuis le cache disque
-                in = new FileInputStream(cacheFile);
-                notInCache = false;
-            } else { // Télécharger les données
-//                Log.d(MainActivity.DEBUG_TAG, "Download r=" + r + ", c=" + c + ", " +
-//                        "z=" + ignScale);
-                URL url = new URL("https://wxs.ign.fr/"
-                        + cleIGNWeb
-                        + "/wmts/?"
-                        + "SERVICE=WMTS&REQUEST=GetTile&VERSION=1.0.0"
-                        + (orthoimage ? "&LAYER=ORTHOIMAGERY.ORTHOPHOTOS"
-                        : "&LAYER=GEOGRAPHICALGRIDSYSTEMS.MAPS") + "&STYLE=normal"
-                        + "&TILEMATRIXSET=PM&TILEMATRIX=" + ignScale + "&TILEROW=" + r
-                        + "&TILECOL=" + c + "&FORMAT=image/jpeg");
-                URLConnection connection = url.openConnection();
-                connection.setRequestProperty("Referer", "http://localhost/IGN/");
-                in = connection.getInputStream();
-            }
-
-            // Lire les octets (du cache disque ou depuis le réseau)
-            int nRead;
-            byte[] data = new byte[BUFFER_SIZE];
-            while ((nRead = in.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, nRead);
-            }
-            in.close();
-            buffer.flush();
+    public void setOfflineListener(DownloadBackoff.Listener listener) {
+        pipeline.getDownloadBackoff().setListener(listener);
+    }
 
-            if (notInCache) { // Enregistrer l'image dans le cache disque
-                out = new FileOutputStream(cacheFile);
-                out.write(buffer.toByteArray(), 0, buffer.size());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Suivi des échecs de téléchargement.
+     */
+    public DownloadBackoff getDownloadBackoff() {
+        return pipeline.getDownloadBackoff();
+    }
 
-            // +-------------------------------+
-            // | Libérer le verrou de la tuile |
-            // +-------------------------------+
-            if (locks.get(baseName) != null) {
-                locks.remove(baseName);
-            }
-            tLock.unlock();
-            return null;
-        } finally { // fermer les flux
-            if (in != null)
-                try {
-                    in.close();
-                } catch (Exception ignored) {
-                }
-            if (buffer != null)
-                try {
-                    buffer.close();
-                } catch (Exception ignored) {
-                }
-            if (out != null)
-                try {
-                    out.close();
-                } catch (Exception ignored) {
-                }
+    /**
+     * Zones épinglées du cache disque (tuiles jamais supprimées pour
+     * respecter le budget).
+     */
+    public PinnedRegions getPinnedRegions() {
+        synchronized (IGNTileProvider.class) {
+            return pinnedRegions;
         }
+    }
 
-        // +-------------------------------+
-        // | Libérer le verrou de la tuile |
-        // +-------------------------------+
-        if (locks.get(baseName) != null) {
-            locks.remove(baseName);
+    /**
+     * Cache disque des tuiles (occupation et zones épinglées).
+     */
+    public BoundedTileStore getTileCache() {
+        synchronized (IGNTileProvider.class) {
+            return sharedStore;
         }
-        tLock.unlock();
-        return buffer.toByteArray();
     }
 
     /**
-     * Créer une tuile vide indiquant son nom
-     *
-     * @param c        Indice de colonne.
-     * @param r        Indice de ligne.
-     * @param ignScale Niveau de zoom.
-     * @return
+     * Sauvegarder en arrière-plan le cache disque des tuiles et son index,
+     * pour que le prochain démarrage n'ait pas à parcourir le stockage (à
+     * appeler lorsque l'application ou un service peut être arrêté).
      */
-    private byte[] createEmptyTile(int c, int r, int ignScale) {
-        // Log.d(MainActivity.DEBUG_TAG, "createEmptyTile " + c + "," + r + "," + ignScale);
-        // +--------------------------------+
-        // | Acquérir le verrou de la tuile |
-        // +--------------------------------+
-        String baseName = (orthoimage ? "ortho-" : "") + "z" + ignScale + "-r" + r
-                + "-c" + c;
-        Lock tLock;
-        synchronized (this) {
-            tLock = locks.get(baseName);
-            if (locks.get(baseName) == null) {
-                locks.put(baseName, new ReentrantLock());
-                tLock = locks.get(baseName);
-            }
+    public static void flushTileCache() {
+        BoundedTileStore store;
+        synchronized (IGNTileProvider.class) {
+            store = sharedStore;
         }
-        tLock.lock();
-
-        // Créer l'image vierge
-        Bitmap b;
-        if (highResolution) {
-            b = Bitmap.createBitmap(2 * TILE_PIXEL_DIM, 2 * TILE_PIXEL_DIM,
-                    Bitmap.Config.ARGB_8888);
-            Canvas cv = new Canvas(b);
-            // Dessiner le cadre
-            cv.drawRect(0, 0, 2 * TILE_PIXEL_DIM, 2 * TILE_PIXEL_DIM, pGraph);
-            // Placer le texte
-            cv.drawText(baseName, 2 * TILE_PIXEL_DIM / 3, TILE_PIXEL_DIM, pText);
-        } else {
-            b = Bitmap.createBitmap(TILE_PIXEL_DIM, TILE_PIXEL_DIM,
-                    Bitmap.Config.ARGB_8888);
-            Canvas cv = new Canvas(b);
-            // Dessiner le cadre
-            cv.drawRect(0, 0, 2 * TILE_PIXEL_DIM, 2 * TILE_PIXEL_DIM, pGraph);
-            // Placer le texte
-            cv.drawText(baseName, TILE_PIXEL_DIM / 3, TILE_PIXEL_DIM / 2, pText);
+        if (store != null) {
+            store.flushInBackground();
         }
+    }
 
-        // Générer le tableau d'octets
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        b.compress(Bitmap.CompressFormat.PNG, 100, buffer);
-
-        // +-------------------------------+
-        // | Libérer le verrou de la tuile |
-        // +-------------------------------+
-        if (locks.get(baseName) != null) {
-            locks.remove(baseName);
+    /**
+     * Réduire le cache mémoire des tuiles suite à une demande du système.
+     *
+     * @param level Niveau de libération de mémoire demandé (voir
+     *              {@link ComponentCallbacks2}).
+     */
+    public static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) { // Arrêt possible
+            flushTileCache();
         }
-        tLock.unlock();
-        return buffer.toByteArray();
+        TileMemoryCache cache = TileMemoryCache.getInstance();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cache.evictAll();
+            BitmapTileCodec.trimMemory();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            cache.trimToSize(cache.maxBytes() / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.maxBytes() / 2);
+        }
+        Log.d(MainActivity.DEBUG_TAG, "onTrimMemory(" + level + "): " + cache);
     }
 
     /**
-     * Créer une nouvelle tuile contenant les 4 tuiles correspondantes du niveau
-     * supérieur.
+     * Télécharger ou reconstituer une tuile dans le cache disque, sans passer
+     * par le cache mémoire (téléchargement anticipé d'une zone).
      *
      * @param c        Indice de colonne.
      * @param r        Indice de ligne.
-     * @param ignScale Niveau de zoom.
-     * @return
+     * @param ignScale Niveau de zoom (12 à 17).
+     * @return Une des constantes TilePrefetcher.RESULT_*
+     * @see TilePipeline#prefetchTile
      */
-    private byte[] createTileFromUpperScale(int c, int r, int ignScale) {
-        // Log.d(MainActivity.DEBUG_TAG, "createFromUpper " + c + "," + r + "," + ignScale);
-        // +--------------------------------+
-        // | Acquérir le verrou de la tuile |
-        // +--------------------------------+
-        String baseName = (orthoimage ? "ortho-" : "") + "z" + ignScale + "-r" + r
-                + "-c" + c;
-        Lock tLock;
-        synchronized (this) {
-            tLock = locks.get(baseName);
-            if (locks.get(baseName) == null) {
-                locks.put(baseName, new ReentrantLock());
-                tLock = locks.get(baseName);
-            }
-        }
-        tLock.lock();
-
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        File cacheFile = new File(cacheDir, baseName + ".jpg");
-
-        if (cacheFile.exists()) { // Récupérer depuis le cache disque
-            InputStream in = null;
-            try { // Remplir le tampon en lisant le fichier
-                in = new FileInputStream(cacheFile);
-                int nRead;
-                byte[] data = new byte[BUFFER_SIZE];
-                while ((nRead = in.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
-                }
-                in.close();
-                buffer.flush();
-
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                // Retourner le tableau d'octets
-                return buffer.toByteArray();
-            } catch (IOException e) {
-                e.printStackTrace();
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                return null;
-            } finally { // fermer les flux
-                if (in != null)
-                    try {
-                        in.close();
-                    } catch (Exception ignored) {
-                    }
-                if (buffer != null)
-                    try {
-                        buffer.close();
-                    } catch (Exception ignored) {
-                    }
-            }
-        } else {
-            // Lire les 4 sous-images
-            byte[] img11, img12, img21, img22;
-            if (ignScale == 14) {
-                img11 = readRealTileImage(2 * c, 2 * r, ignScale + 1);
-                img12 = readRealTileImage(2 * c + 1, 2 * r, ignScale + 1);
-                img21 = readRealTileImage(2 * c, 2 * r + 1, ignScale + 1);
-                img22 = readRealTileImage(2 * c + 1, 2 * r + 1, ignScale + 1);
-            } else {
-                img11 = createTileFromUpperScale(2 * c, 2 * r, ignScale + 1);
-                img12 = createTileFromUpperScale(2 * c + 1, 2 * r, ignScale + 1);
-                img21 = createTileFromUpperScale(2 * c, 2 * r + 1, ignScale + 1);
-                img22 = createTileFromUpperScale(2 * c + 1, 2 * r + 1, ignScale + 1);
-            }
-
-            // Créer la nouvelle image vierge
-            Bitmap b;
-            Canvas cv;
-            int factor;
-
-            factor = 1 << (15 - ignScale);
-            b = Bitmap.createBitmap(factor * TILE_PIXEL_DIM, factor * TILE_PIXEL_DIM,
-                    Bitmap.Config.ARGB_8888);
-            cv = new Canvas(b);
-
-            // Placer les 4 sous-images
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img11, 0, img11.length), 0,
-                    0, pGraph);
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img12, 0, img12.length),
-                    factor * TILE_PIXEL_DIM / 2, 0, pGraph);
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img21, 0, img21.length), 0,
-                    factor * TILE_PIXEL_DIM / 2, pGraph);
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img22, 0, img22.length),
-                    factor * TILE_PIXEL_DIM / 2, factor * TILE_PIXEL_DIM / 2, pGraph);
-
-            // Remplir le tampon
-            b.compress(Bitmap.CompressFormat.JPEG, 100, buffer);
-            // if(highResolution && ignScale==15) {
-            // Log.d(MainActivity.DEBUG_TAG,
-            // "Factor="+factor+", img="+b.getWidth()+"x"+b.getHeight()+", buf="+buffer.size());
-            // }
-            try { // Sauvegarder l'image dans le cache disque
-                b.compress(Bitmap.CompressFormat.JPEG, 100, new FileOutputStream(
-                        cacheFile));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                return null;
-            }
-
-            // +-------------------------------+
-            // | Libérer le verrou de la tuile |
-            // +-------------------------------+
-            if (locks.get(baseName) != null) {
-                locks.remove(baseName);
-            }
-            tLock.unlock();
-            // Renvoyer le tableau d'octets
-            return buffer.toByteArray();
-        }
+    public int prefetchTile(int c, int r, int ignScale) {
+        return pipeline.prefetchTile(c, r, ignScale);
     }
 
     /**
-     * Créer une nouvelle tuile contenant les 4 tuiles correspondantes du niveau
-     * supérieur.
+     * Récupérer les données d'une tuile existant dans la base de données IGN
+     * (cache mémoire, cache disque ou téléchargement).
      *
-     * @param c Indice de colonne.
-     * @param r Indice de ligne.
-     * @return
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return Tableau d'octet contenant les données (compressées) de la tuile.
      */
-    private byte[] createHighResZ15Tile(int c, int r) {
-        // Log.d(MainActivity.DEBUG_TAG, "createFromUpper " + c + "," + r + "," + ignScale);
-        // +--------------------------------+
-        // | Acquérir le verrou de la tuile |
-        // +--------------------------------+
-        String baseName = (orthoimage ? "ortho-" : "") + "z15_hr" + "-r" + r + "-c"
-                + c;
-        Lock tLock;
-        synchronized (this) {
-            tLock = locks.get(baseName);
-            if (locks.get(baseName) == null) {
-                locks.put(baseName, new ReentrantLock());
-                tLock = locks.get(baseName);
-            }
-        }
-        tLock.lock();
-
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        File cacheFile = new File(cacheDir, baseName + ".jpg");
-
-        if (cacheFile.exists()) { // Récupérer depuis le cache disque
-            InputStream in = null;
-            try { // Remplir le tampon en lisant le fichier
-                in = new FileInputStream(cacheFile);
-                int nRead;
-                byte[] data = new byte[BUFFER_SIZE];
-                while ((nRead = in.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
-                }
-                in.close();
-                buffer.flush();
-
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                // Retourner le tableau d'octets
-                return buffer.toByteArray();
-            } catch (IOException e) {
-                e.printStackTrace();
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                return null;
-            } finally { // fermer les flux
-                if (in != null)
-                    try {
-                        in.close();
-                    } catch (Exception ignored) {
-                    }
-                if (buffer != null)
-                    try {
-                        buffer.close();
-                    } catch (Exception ignored) {
-                    }
-            }
-        } else {
-            // Lire les 4 sous-images
-            byte[] img11, img12, img21, img22;
-            img11 = readRealTileImage(2 * c, 2 * r, 16);
-            img12 = readRealTileImage(2 * c + 1, 2 * r, 16);
-            img21 = readRealTileImage(2 * c, 2 * r + 1, 16);
-            img22 = readRealTileImage(2 * c + 1, 2 * r + 1, 16);
-
-            // Créer la nouvelle image vierge
-            Bitmap b;
-            Canvas cv;
-
-            b = Bitmap.createBitmap(2 * TILE_PIXEL_DIM, 2 * TILE_PIXEL_DIM,
-                    Bitmap.Config.ARGB_8888);
-            cv = new Canvas(b);
-
-            // Placer les 4 sous-images
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img11, 0, img11.length), 0,
-                    0, pGraph);
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img12, 0, img12.length),
-                    TILE_PIXEL_DIM, 0, pGraph);
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img21, 0, img21.length), 0,
-                    TILE_PIXEL_DIM, pGraph);
-            cv.drawBitmap(BitmapFactory.decodeByteArray(img22, 0, img22.length),
-                    TILE_PIXEL_DIM, TILE_PIXEL_DIM, pGraph);
-
-            // Remplir le tampon
-            b.compress(Bitmap.CompressFormat.JPEG, 100, buffer);
-            try { // Sauvegarder l'image dans le cache disque
-                b.compress(Bitmap.CompressFormat.JPEG, 100, new FileOutputStream(
-                        cacheFile));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                return null;
-            }
-
-            // +-------------------------------+
-            // | Libérer le verrou de la tuile |
-            // +-------------------------------+
-            if (locks.get(baseName) != null) {
-                locks.remove(baseName);
-            }
-            tLock.unlock();
-            // Renvoyer le tableau d'octets
-            return buffer.toByteArray();
-        }
+    public byte[] readRealTileImage(int c, int r, int ignScale) {
+        return pipeline.readRealTileImage(c, r, ignScale);
     }
 
     /**
-     * Créer une nouvelle sous-tuile depuis la tuile du niveau inférieur.
+     * Récupérer les données d'une tuile IGN uniquement si elle est déjà
+     * présente dans le cache mémoire ou dans le cache disque (aucun
+     * téléchargement).
      *
      * @param c        Indice de colonne.
      * @param r        Indice de ligne.
      * @param ignScale Niveau de zoom.
-     * @return
+     * @return Les données (compressées) de la tuile ou null si elle n'est pas
+     * dans le cache.
      */
-    private byte[] createTileFromLowerScale(int c, int r, int ignScale) {
-        // Log.d(MainActivity.DEBUG_TAG, "createFromLower " + c + "," + r + "," + ignScale);
-        // +--------------------------------+
-        // | Acquérir le verrou de la tuile |
-        // +--------------------------------+
-        String baseName = (orthoimage ? "ortho-" : "") + "z" + ignScale + "-r" + r
-                + "-c" + c;
-        Lock tLock;
-        synchronized (this) {
-            tLock = locks.get(baseName);
-            if (locks.get(baseName) == null) {
-                locks.put(baseName, new ReentrantLock());
-                tLock = locks.get(baseName);
-            }
-        }
-        tLock.lock();
-
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        File cacheFile = new File(cacheDir, baseName + ".jpg");
-
-        if (cacheFile.exists()) { // Récupérer depuis le cache disque
-            InputStream in = null;
-            try { // Remplir le tampon en lisant le fichier
-                in = new FileInputStream(cacheFile);
-                int nRead;
-                byte[] data = new byte[BUFFER_SIZE];
-                while ((nRead = in.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
-                }
-                in.close();
-                buffer.flush();
-
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                // Retourner le tableau d'octets
-                return buffer.toByteArray();
-            } catch (IOException e) {
-                e.printStackTrace();
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                return null;
-            } finally { // fermer les flux
-                if (in != null)
-                    try {
-                        in.close();
-                    } catch (Exception ignored) {
-                    }
-                if (buffer != null)
-                    try {
-                        buffer.close();
-                    } catch (Exception ignored) {
-                    }
-            }
-        } else {
-            // Lire l'image du niveau inférieur
-            byte[] imgSup;
-
-            if (ignScale == 17) {
-                imgSup = readRealTileImage(c / 2, r / 2, 16);
-            } else {
-                imgSup = createTileFromLowerScale(c / 2, r / 2, ignScale - 1);
-            }
-
-            // Créer la nouvelle image vierge
-            Bitmap b = null;
-            if ((c % 2 == 0) && (r % 2 == 0)) {
-                b = Bitmap.createBitmap(
-                        BitmapFactory.decodeByteArray(imgSup, 0, imgSup.length), 0, 0,
-                        TILE_PIXEL_DIM / 2, TILE_PIXEL_DIM / 2);
-            } else if ((c % 2 == 1) && (r % 2 == 0)) {
-                b = Bitmap.createBitmap(
-                        BitmapFactory.decodeByteArray(imgSup, 0, imgSup.length),
-                        TILE_PIXEL_DIM / 2, 0, TILE_PIXEL_DIM / 2, TILE_PIXEL_DIM / 2);
-            } else if ((c % 2 == 0) && (r % 2 == 1)) {
-                b = Bitmap.createBitmap(
-                        BitmapFactory.decodeByteArray(imgSup, 0, imgSup.length), 0,
-                        TILE_PIXEL_DIM / 2, TILE_PIXEL_DIM / 2, TILE_PIXEL_DIM / 2);
-            } else {
-                b = Bitmap.createBitmap(
-                        BitmapFactory.decodeByteArray(imgSup, 0, imgSup.length),
-                        TILE_PIXEL_DIM / 2, TILE_PIXEL_DIM / 2, TILE_PIXEL_DIM / 2,
-                        TILE_PIXEL_DIM / 2);
-            }
-
-            // Remplir le tampon
-            b.compress(Bitmap.CompressFormat.JPEG, 100, buffer);
-            try { // Sauvegarder l'image dans le cache disque
-                b.compress(Bitmap.CompressFormat.JPEG, 100, new FileOutputStream(
-                        cacheFile));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                // +-------------------------------+
-                // | Libérer le verrou de la tuile |
-                // +-------------------------------+
-                if (locks.get(baseName) != null) {
-                    locks.remove(baseName);
-                }
-                tLock.unlock();
-                return null;
-            }
-
-            // +-------------------------------+
-            // | Libérer le verrou de la tuile |
-            // +-------------------------------+
-            if (locks.get(baseName) != null) {
-                locks.remove(baseName);
-            }
-            tLock.unlock();
-            // Renvoyer le tableau d'octets
-            return buffer.toByteArray();
-        }
+    public byte[] readCachedTileImage(int c, int r, int ignScale) {
+        return pipeline.readCachedTileImage(c, r, ignScale);
     }
 
     /**
@@ -21,6 +21,7 @@ import android.graphics.Color;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
@@ -35,6 +36,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.widget.SearchView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
@@ -61,10 +63,15 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import fr.rg.ignrando.dialog.DeleteFileDialog;
 import fr.rg.ignrando.dialog.RecordDialog;
 import fr.rg.ignrando.dialog.RenameFileDialog;
+import fr.rg.ignrando.tile.DownloadBackoff;
+import fr.rg.ignrando.tile.TileArea;
+import fr.rg.ignrando.tile.TilePipeline;
+import fr.rg.ignrando.tile.TileScheduler;
 import fr.rg.ignrando.util.GeoLocation;
 import fr.rg.ignrando.util.KMLReader;
 import fr.rg.ignrando.util.Track;
@@ -105,6 +112,32 @@ public class MainActivity extends Activity implements
 
     // Surcouche IGN
     private TileOverlay ignOverlay;
+    // Rechargement des tuiles de la surcouche IGN à la fin du mode hors ligne
+    private final Handler handler = new Handler();
+    private final Runnable refreshIGNOverlay = new Runnable() {
+        @Override
+        public void run() {
+            if (ignOverlay != null) {
+                ignOverlay.clearTileCache();
+            }
+        }
+    };
+
+    // Rafraîchissement de la surcouche IGN à l'arrivée des tuiles réelles
+    // (mode progressif), regroupé pour les tuiles arrivant ensemble. La
+    // surcouche ne pouvant être rafraîchie que d'un bloc, seules les tuiles
+    // de la zone affichée le déclenchent
+    private static final long REFINE_REFRESH_DELAY_MS = 300;
+    private final AtomicBoolean refinePending = new AtomicBoolean();
+    private final Runnable refreshRefinedTiles = new Runnable() {
+        @Override
+        public void run() {
+            refinePending.set(false);
+            if (ignOverlay != null) {
+                ignOverlay.clearTileCache();
+            }
+        }
+    };
 
     private boolean configurationHasChanged = false;
 
@@ -120,7 +153,8 @@ public class MainActivity extends Activity implements
     // Traitement asynchone d'opérations sur la carte
     private enum MapOperation {
         SETUP_MAP_ON_RESUME, SAVE_MAP_INSTANCE, ADD_PATH_TO_MAP, SETUP_MAP_TYPE,
-        GEOLOC_INTERVAL_SELECTED, MOVE_CAMERA_TO_LOC, NONE
+        GEOLOC_INTERVAL_SELECTED, MOVE_CAMERA_TO_LOC, PREFETCH_VISIBLE_AREA,
+        PIN_VISIBLE_AREA, NONE
     }
 
     MapOperation nextOperation = MapOperation.NONE;
@@ -370,20 +404,36 @@ public class MainActivity extends Activity implements
 
         // surveillance des géolocalisations
         unregisterReceiver(mServiceUpdateReceiver);
+
+        handler.removeCallbacks(refreshIGNOverlay);
+        cancelRefinedTilesRefresh();
     }
 
     /**
-     * Se déconnecter du service d'enregistrement des géolocalisations
+     * Se déconnecter du service d'enregistrement des géolocalisations et
+     * sauvegarder le cache des tuiles.
      */
     @Override
     protected void onStop() {
         Log.d(DEBUG_TAG, "onStop");
 
         unbindService(mConnection);
+        IGNTileProvider.flushTileCache();
 
         super.onStop();
     }
 
+    /**
+     * Libérer le cache mémoire des tuiles à la demande du système.
+     *
+     * @param level Niveau de libération de mémoire demandé
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        IGNTileProvider.onTrimMemory(level);
+    }
+
     /**
      * Menus/actions de l'application.
      */
@@ -402,6 +452,9 @@ public class MainActivity extends Activity implements
             case 0: // IGN
                 ((MenuItem) menu.findItem(R.id.ign_maptype)).setChecked(true);
                 break;
+            case 6: // IGN hybrid
+                ((MenuItem) menu.findItem(R.id.ign_hybrid_maptype)).setChecked(true);
+                break;
             case 2: // Hybrid
                 ((MenuItem) menu.findItem(R.id.hybrid_maptype)).setChecked(true);
                 break;
@@ -448,6 +501,9 @@ public class MainActivity extends Activity implements
             case R.id.ign_maptype: // Afficher la carte IGN
                 handleMapTypeSelection(item, 0);
                 break;
+            case R.id.ign_hybrid_maptype: // Afficher les photographies IGN et la carte
+                handleMapTypeSelection(item, 6);
+                break;
             case R.id.hybrid_maptype: // Afficher la carte GoogleMap hybride
                 handleMapTypeSelection(item, 2);
                 break;
@@ -493,6 +549,39 @@ public class MainActivity extends Activity implements
                 addPathToFragments(true, false);
                 updateSubtitle();
                 return false;
+            case R.id.prefetchArea: // Télécharger les tuiles de la zone affichée
+                MapFragment gmf = (MapFragment) getFragmentManager().findFragmentByTag(
+                        FRAG_GMAP_TAG);
+                if (gmf != null) {
+                    setNextOperation(MapOperation.PREFETCH_VISIBLE_AREA);
+                    gmf.getMapAsync(this);
+                }
+                break;
+            case R.id.prefetchTrack: // Télécharger les tuiles autour de la trace KML
+                if (kmlTrack.b != null) {
+                    startService(new Intent(this, TilePrefetchService.class)
+                            .setAction(TilePrefetchService.ACTION_PREFETCH)
+                            .putExtra(KMLReader.PATHNAME_KEY,
+                                    kmlTrack.b.getString(KMLReader.PATHNAME_KEY)));
+                }
+                break;
+            case R.id.pinArea: // Épingler et télécharger la zone affichée
+                gmf = (MapFragment) getFragmentManager().findFragmentByTag(FRAG_GMAP_TAG);
+                if (gmf != null) {
+                    setNextOperation(MapOperation.PIN_VISIBLE_AREA);
+                    gmf.getMapAsync(this);
+                }
+                break;
+            case R.id.pinTrack: // Épingler et télécharger la trace KML
+                if (kmlTrack.b != null) {
+                    String pathName = kmlTrack.b.getString(KMLReader.PATHNAME_KEY);
+                    startService(new Intent(this, TilePrefetchService.class)
+                            .setAction(TilePrefetchService.ACTION_PREFETCH)
+                            .putExtra(KMLReader.PATHNAME_KEY, pathName)
+                            .putExtra(TilePrefetchService.PIN_NAME_KEY,
+                                    new File(pathName).getName()));
+                }
+                break;
             case R.id.preferences: // Fragment de préférences
                 if (getFragmentManager().findFragmentByTag(FRAG_PREFS_TAG) != null) {
                     // Fragment déjà afficher -> revenir à la carte
@@ -982,6 +1071,16 @@ public class MainActivity extends Activity implements
         if (ignOverlay != null) {
             ignOverlay.remove();
         }
+        cancelRefinedTilesRefresh();
+    }
+
+    /**
+     * Annuler le rafraîchissement programmé de la surcouche IGN (tuiles
+     * réelles arrivées), pour que le prochain soit de nouveau programmé.
+     */
+    private void cancelRefinedTilesRefresh() {
+        handler.removeCallbacks(refreshRefinedTiles);
+        refinePending.set(false);
     }
 
     /**
@@ -1141,12 +1240,30 @@ public class MainActivity extends Activity implements
         Log.d(DEBUG_TAG, "setupMapType = " + val);
         switch (val) {
             case 0: // IGN
+            case 6: // IGN hybride (photographies et carte)
                 googleMap.setMapType(GoogleMap.MAP_TYPE_NONE);
-                if (ignOverlay != null) {
-                    ignOverlay.remove();
-                }
+                removeIGNOverlay();
+                IGNTileProvider provider = new IGNTileProvider(getApplicationContext(),
+                        val == 6);
+                provider.setOfflineListener(new DownloadBackoff.Listener() {
+                    @Override
+                    public void onBackoff(long delayMs) {
+                        // Redemander les tuiles de remplacement après l'attente
+                        handler.removeCallbacks(refreshIGNOverlay);
+                        handler.postDelayed(refreshIGNOverlay, delayMs);
+                    }
+                });
+                provider.setRefineListener(new TilePipeline.RefineListener() {
+                    @Override
+                    public void onTileRefined(int ignScale, int row, int col) {
+                        if (TileScheduler.getInstance().isVisible(ignScale, row, col)
+                                && refinePending.compareAndSet(false, true)) {
+                            handler.postDelayed(refreshRefinedTiles, REFINE_REFRESH_DELAY_MS);
+                        }
+                    }
+                });
                 ignOverlay = googleMap.addTileOverlay(new TileOverlayOptions()
-                        .tileProvider(new IGNTileProvider(getApplicationContext()))
+                        .tileProvider(provider)
                         .fadeIn(true).zIndex(0.5f));
                 break;
             case 1: // Normale
@@ -1172,6 +1289,21 @@ public class MainActivity extends Activity implements
         }
     }
 
+    /**
+     * Transmettre la zone affichée à l'ordonnanceur des téléchargements de
+     * tuiles.
+     *
+     * @param googleMap carte Google Map.
+     */
+    private void updateTileViewport(GoogleMap googleMap) {
+        CameraPosition camera = googleMap.getCameraPosition();
+        LatLngBounds bounds = googleMap.getProjection().getVisibleRegion().latLngBounds;
+        TileScheduler.getInstance().setViewport(camera.target.latitude,
+                camera.target.longitude, camera.zoom, bounds.southwest.latitude,
+                bounds.northeast.latitude, bounds.southwest.longitude,
+                bounds.northeast.longitude);
+    }
+
     /**
      * Effectuer une opération particulière sur la carte Google Map.
      *
@@ -1234,6 +1366,21 @@ public class MainActivity extends Activity implements
                 // Gérer le clic long sur la carte
                 googleMap.setOnMapLongClickListener(MainActivity.this);
 
+                // Télécharger en priorité les tuiles de la zone affichée
+                final GoogleMap map = googleMap;
+                googleMap.setOnCameraMoveListener(new GoogleMap.OnCameraMoveListener() {
+                    @Override
+                    public void onCameraMove() {
+                        updateTileViewport(map);
+                    }
+                });
+                googleMap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
+                    @Override
+                    public void onCameraIdle() {
+                        updateTileViewport(map);
+                    }
+                });
+
 
                 if (canAccessFineLocation = ActivityCompat.checkSelfPermission(this,
                         Manifest.permission.ACCESS_FINE_LOCATION)
@@ -1369,6 +1516,31 @@ public class MainActivity extends Activity implements
                 googleMap.animateCamera(CameraUpdateFactory.newLatLngZoom(new LatLng(locToMoveTo.latitude,
                         locToMoveTo.longitude), zoom));
                 break;
+            case PREFETCH_VISIBLE_AREA:
+            case PIN_VISIBLE_AREA:
+                LatLngBounds bounds = googleMap.getProjection().getVisibleRegion().latLngBounds;
+                long size = TileArea.boxSize(bounds.southwest.latitude,
+                        bounds.northeast.latitude, bounds.southwest.longitude,
+                        bounds.northeast.longitude, 16);
+                if (size > TilePrefetchService.MAX_AREA_TILES) { // Zone trop grande
+                    Toast.makeText(this, getString(R.string.prefetch_too_large, size,
+                            TilePrefetchService.MAX_AREA_TILES), Toast.LENGTH_LONG).show();
+                    break;
+                }
+                Intent prefetch = new Intent(this, TilePrefetchService.class)
+                        .setAction(TilePrefetchService.ACTION_PREFETCH)
+                        .putExtra(KMLReader.LATMIN_KEY, bounds.southwest.latitude)
+                        .putExtra(KMLReader.LATMAX_KEY, bounds.northeast.latitude)
+                        .putExtra(KMLReader.LONGMIN_KEY, bounds.southwest.longitude)
+                        .putExtra(KMLReader.LONGMAX_KEY, bounds.northeast.longitude);
+                if (type == MapOperation.PIN_VISIBLE_AREA) { // Zone nommée par sa date
+                    prefetch.putExtra(TilePrefetchService.PIN_NAME_KEY,
+                            getString(R.string.pinned_area_name, DateFormat
+                                    .getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT)
+                                    .format(new Date())));
+                }
+                startService(prefetch);
+                break;
             default:
                 Log.d(DEBUG_TAG, "*** Unknown OnMapReady " + type + "***");
                 break;
@@ -0,0 +1,88 @@
+package fr.rg.ignrando;
+
+
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceFragment;
+
+import fr.rg.ignrando.tile.BoundedTileStore;
+import fr.rg.ignrando.tile.PinnedRegions;
+
+/**
+ * Gestion des zones épinglées du cache des tuiles: occupation de chaque zone
+ * et retrait de l'épinglage (les zones sont créées depuis le menu de la
+ * carte).
+ */
+public class PinnedRegionsFragment extends PreferenceFragment {
+
+    private PreferenceCategory list;
+    private IGNTileProvider tileProvider;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        addPreferencesFromResource(R.xml.pinned_regions_preferences);
+        list = (PreferenceCategory) findPreference("PINNED_REGIONS_LIST");
+        tileProvider = new IGNTileProvider(getActivity());
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    /**
+     * Mettre à jour la liste des zones et leur occupation.
+     */
+    private void refresh() {
+        BoundedTileStore cache = tileProvider.getTileCache();
+        final PinnedRegions pins = tileProvider.getPinnedRegions();
+        findPreference("PINNED_REGIONS_TOTAL").setSummary(getString(
+                R.string.pinned_regions_total_summary, cache.pinnedSize() / (1024 * 1024),
+                cache.size() / (1024 * 1024)));
+
+        list.removeAll();
+        for (final PinnedRegions.Region region : pins.getRegions()) {
+            long[] usage = cache.pinnedUsage(region);
+            Preference p = new Preference(getActivity());
+            p.setTitle(region.getName());
+            p.setSummary(getString(R.string.pinned_region_summary,
+                    getString(region.isCorridor() ? R.string.pinned_region_track
+                            : R.string.pinned_region_area),
+                    region.getMinZoom(), region.getMaxZoom(), usage[0],
+                    region.getTileCount(), usage[1] / (1024 * 1024)));
+            p.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    new AlertDialog.Builder(getActivity())
+                            .setTitle(getString(R.string.pinned_region_unpin,
+                                    region.getName()))
+                            .setMessage(R.string.pinned_region_unpin_desc)
+                            .setPositiveButton(android.R.string.ok,
+                                    new DialogInterface.OnClickListener() {
+                                        @Override
+                                        public void onClick(DialogInterface dialog, int which) {
+                                            pins.remove(region.getName());
+                                            refresh();
+                                        }
+                                    })
+                            .setNegativeButton(android.R.string.cancel, null)
+                            .show();
+                    return true;
+                }
+            });
+            list.addPreference(p);
+        }
+        if (list.getPreferenceCount() == 0) {
+            Preference p = new Preference(getActivity());
+            p.setTitle(R.string.pinned_regions_empty);
+            p.setSelectable(false);
+            list.addPreference(p);
+        }
+    }
+}
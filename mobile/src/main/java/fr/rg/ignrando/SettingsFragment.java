@@ -4,6 +4,7 @@ package fr.rg.ignrando;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
 
 public class SettingsFragment extends PreferenceFragment {
@@ -20,6 +21,30 @@ public class SettingsFragment extends PreferenceFragment {
         if(manager.getDefaultSensor(Sensor.TYPE_PRESSURE)!=null) {
             addPreferencesFromResource(R.xml.elevation_preferences);
         }
+
+        // Zones épinglées du cache des tuiles
+        findPreference("PINNED_REGIONS").setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        getFragmentManager().beginTransaction()
+                                .replace(R.id.container, new PinnedRegionsFragment())
+                                .addToBackStack(null).commit();
+                        return true;
+                    }
+                });
+
+        // Statistiques des tuiles
+        findPreference("TILE_METRICS").setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        getFragmentManager().beginTransaction()
+                                .replace(R.id.container, new DebugSettingsFragment())
+                                .addToBackStack(null).commit();
+                        return true;
+                    }
+                });
     }
 
 }
\ No newline at end of file
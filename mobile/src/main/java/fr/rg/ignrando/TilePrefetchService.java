@@ -0,0 +1,304 @@
+package fr.rg.ignrando;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fr.rg.ignrando.tile.DownloadBackoff;
+import fr.rg.ignrando.tile.PinnedRegions;
+import fr.rg.ignrando.tile.TileArea;
+import fr.rg.ignrando.tile.TilePrefetcher;
+import fr.rg.ignrando.util.GeoLocation;
+import fr.rg.ignrando.util.KMLReader;
+
+/**
+ * <p>Service de téléchargement anticipé des tuiles IGN d'une zone, avant de
+ * partir dans des régions sans couverture réseau.</p>
+ * <p>
+ * <p>La zone est soit un rectangle géographique (clés
+ * {@link KMLReader#LATMIN_KEY}…{@link KMLReader#LONGMAX_KEY}), soit un couloir
+ * autour d'une trace KML (clé {@link KMLReader#PATHNAME_KEY}), d'au plus
+ * {@link #MAX_AREA_TILES} tuiles du niveau 16. Les tuiles réelles des
+ * niveaux 16 et 15 sont téléchargées par un nombre limité de fils
+ * d'exécution, puis les niveaux 14 à 12 et 17 sont reconstitués à partir
+ * d'elles.</p>
+ * <p>
+ * <p>Si un nom est indiqué (clé {@link #PIN_NAME_KEY}), la zone est épinglée
+ * pour les niveaux 12 à 17 avant le téléchargement: ses tuiles ne seront pas
+ * supprimées pour respecter le budget du cache.</p>
+ * <p>
+ * <p>Les demandes sont traitées l'une après l'autre. Le service est relancé
+ * avec les demandes non terminées s'il est interrompu (START_REDELIVER_INTENT):
+ * les tuiles déjà présentes dans le cache n'étant pas rechargées, le
+ * téléchargement reprend là où il s'était arrêté.</p>
+ */
+public class TilePrefetchService extends Service {
+
+    // Actions
+    public static final String ACTION_PREFETCH = "fr.rg.ignrando.action.PREFETCH_TILES";
+    public static final String ACTION_CANCEL = "fr.rg.ignrando.action.CANCEL_PREFETCH";
+    // Largeur du couloir de part et d'autre de la trace (en m)
+    public static final String BUFFER_KEY = "prefetch_buffer_key";
+    public static final int DEFAULT_BUFFER = 500;
+    // Nombre de téléchargements simultanés
+    public static final String POOL_SIZE_KEY = "prefetch_pool_size_key";
+    public static final int DEFAULT_POOL_SIZE = 4;
+    // Nombre maximal de tuiles du niveau 16 d'une zone (environ 700 km² à
+    // nos latitudes, soit quelque 22000 requêtes avec les autres niveaux)
+    public static final int MAX_AREA_TILES = 4096;
+    // Nom de la zone épinglée (aucun épinglage si absent)
+    public static final String PIN_NAME_KEY = "prefetch_pin_name_key";
+
+    private static final int PREFETCH_NOTIFICATION_ID = 003;
+    // Ordre de traitement des niveaux: réels puis reconstitués
+    private static final int[] ZOOM_ORDER = {16, 15, 14, 13, 12, 17};
+    // Niveaux épinglés
+    private static final int PIN_MIN_ZOOM = 12;
+    private static final int PIN_MAX_ZOOM = 17;
+
+    // Traitement séquentiel des demandes
+    private ExecutorService jobs;
+    // Téléchargement en cours
+    private volatile TilePrefetcher current;
+    // Demandes antérieures à cet identifiant annulées
+    private volatile int cancelStartId = 0;
+
+    private IGNTileProvider tileProvider;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        tileProvider = new IGNTileProvider(this);
+        jobs = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Ajouter une demande de téléchargement ou annuler les demandes en cours.
+     *
+     * @param intent
+     * @param flags
+     * @param startId
+     * @return
+     */
+    @Override
+    public int onStartCommand(final Intent intent, int flags, final int startId) {
+        if (intent == null) {
+            stopSelfResult(startId);
+            return Service.START_NOT_STICKY;
+        }
+        if (ACTION_CANCEL.equals(intent.getAction())) {
+            cancelStartId = startId;
+            TilePrefetcher p = current;
+            if (p != null) {
+                p.cancel();
+            }
+            stopSelfResult(startId);
+            return Service.START_NOT_STICKY;
+        }
+
+        jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (startId > cancelStartId) {
+                    prefetch(intent);
+                }
+                stopSelfResult(startId);
+            }
+        });
+        return Service.START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        TilePrefetcher p = current;
+        if (p != null) {
+            p.cancel();
+        }
+        jobs.shutdown();
+        IGNTileProvider.flushTileCache();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        IGNTileProvider.onTrimMemory(level);
+    }
+
+    /**
+     * Refuser une zone trop grande (requêtes excessives pour la clé IGN ou
+     * tuiles épinglées trop nombreuses).
+     *
+     * @param reason Motif affiché
+     */
+    private void reject(String reason) {
+        Log.d(MainActivity.DEBUG_TAG, "Prefetch refused: " + reason);
+        Notification notification = new NotificationCompat.Builder(this)
+                .setAutoCancel(true)
+                .setContentTitle(getString(R.string.prefetch_cancelled))
+                .setContentText(reason)
+                .setSmallIcon(android.R.drawable.stat_sys_download_done)
+                .build();
+        NotificationManagerCompat.from(this).notify(PREFETCH_NOTIFICATION_ID, notification);
+    }
+
+    /**
+     * Télécharger les tuiles d'une zone.
+     *
+     * @param intent Description de la zone
+     */
+    private void prefetch(Intent intent) {
+        // Tuiles du niveau 16
+        long[] z16;
+        double[] lats, longs;
+        int buffer = 0;
+        String pinName = intent.getStringExtra(PIN_NAME_KEY);
+        String pathName = intent.getStringExtra(KMLReader.PATHNAME_KEY);
+        if (pathName != null) { // Couloir autour d'une trace
+            Bundle b = KMLReader.extractLocWithStaxCursor(pathName);
+            ArrayList<GeoLocation> list = b == null ? null
+                    : b.<GeoLocation>getParcelableArrayList(KMLReader.LOCATIONS_KEY);
+            if (list == null || list.isEmpty()) {
+                return;
+            }
+            lats = new double[list.size()];
+            longs = new double[list.size()];
+            for (int i = 0; i < lats.length; i++) {
+                lats[i] = list.get(i).latitude;
+                longs[i] = list.get(i).longitude;
+            }
+            buffer = intent.getIntExtra(BUFFER_KEY, DEFAULT_BUFFER);
+            z16 = TileArea.corridor(lats, longs, buffer, 16);
+            if (z16.length > MAX_AREA_TILES) {
+                reject(getString(R.string.prefetch_too_large, z16.length, MAX_AREA_TILES));
+                return;
+            }
+        } else { // Rectangle: {latMin, latMax} et {longMin, longMax}
+            lats = new double[]{intent.getDoubleExtra(KMLReader.LATMIN_KEY, 0),
+                    intent.getDoubleExtra(KMLReader.LATMAX_KEY, 0)};
+            longs = new double[]{intent.getDoubleExtra(KMLReader.LONGMIN_KEY, 0),
+                    intent.getDoubleExtra(KMLReader.LONGMAX_KEY, 0)};
+            long size = TileArea.boxSize(lats[0], lats[1], longs[0], longs[1], 16);
+            if (size > MAX_AREA_TILES) { // Tuiles non énumérées
+                reject(getString(R.string.prefetch_too_large, size, MAX_AREA_TILES));
+                return;
+            }
+            z16 = TileArea.box(lats[0], lats[1], longs[0], longs[1], 16);
+        }
+        // Épingler avant le téléchargement (tuiles protégées dès leur arrivée)
+        if (pinName != null) {
+            PinnedRegions.Region region;
+            try {
+                region = pathName != null
+                        ? PinnedRegions.Region.corridor(pinName, lats, longs, buffer,
+                        PIN_MIN_ZOOM, PIN_MAX_ZOOM)
+                        : PinnedRegions.Region.box(pinName, lats[0], lats[1], longs[0],
+                        longs[1], PIN_MIN_ZOOM, PIN_MAX_ZOOM);
+            } catch (IllegalArgumentException e) {
+                reject(getString(R.string.pin_too_large, PinnedRegions.MAX_REGION_TILES));
+                return;
+            }
+            tileProvider.getPinnedRegions().add(region);
+            Log.d(MainActivity.DEBUG_TAG, "Pinned " + region);
+        }
+
+        // Tuiles des autres niveaux
+        long[][] tiles = new long[ZOOM_ORDER.length][];
+        tiles[0] = z16;
+        for (int i = 1; i < ZOOM_ORDER.length; i++) {
+            tiles[i] = ZOOM_ORDER[i] == 17 ? TileArea.children(z16)
+                    : TileArea.parents(tiles[i - 1]);
+        }
+        int total = 0;
+        for (long[] t : tiles) {
+            total += t.length;
+        }
+        Log.d(MainActivity.DEBUG_TAG, "Prefetch " + total + " tiles");
+
+        // Téléchargement
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setContentTitle(getString(R.string.prefetch_title))
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                        getString(R.string.prefetch_cancel),
+                        PendingIntent.getService(this, 0,
+                                new Intent(this, TilePrefetchService.class)
+                                        .setAction(ACTION_CANCEL),
+                                PendingIntent.FLAG_UPDATE_CURRENT))
+                .setProgress(total, 0, false);
+        startForeground(PREFETCH_NOTIFICATION_ID, builder.build());
+
+        final int step = Math.max(1, total / 100);
+        TilePrefetcher prefetcher = new TilePrefetcher(new TilePrefetcher.TileLoader() {
+            @Override
+            public int load(int zoom, int row, int col) {
+                // Hors ligne: attendre la fin de l'attente plutôt que d'échouer
+                DownloadBackoff backoff = tileProvider.getDownloadBackoff();
+                TilePrefetcher p;
+                while (backoff.isOffline() && (p = current) != null && !p.isCancelled()) {
+                    try {
+                        Thread.sleep(Math.min(backoff.getRemainingBackoff(), 1000) + 1);
+                    } catch (InterruptedException e) {
+                        return TilePrefetcher.RESULT_FAILED;
+                    }
+                }
+                return tileProvider.prefetchTile(col, row, zoom);
+            }
+        }, intent.getIntExtra(POOL_SIZE_KEY, DEFAULT_POOL_SIZE));
+        prefetcher.setTotal(total);
+        prefetcher.setProgressListener(new TilePrefetcher.ProgressListener() {
+            @Override
+            public void onProgress(int done, int total, int failed) {
+                if (done % step == 0) { // Limiter les mises à jour
+                    NotificationManagerCompat.from(TilePrefetchService.this).notify(
+                            PREFETCH_NOTIFICATION_ID, builder.setProgress(total, done, false)
+                                    .setContentText(getString(R.string.prefetch_progress,
+                                            done, total)).build());
+                }
+            }
+        });
+        current = prefetcher;
+        try {
+            for (int i = 0; i < ZOOM_ORDER.length; i++) {
+                if (!prefetcher.prefetch(ZOOM_ORDER[i], tiles[i])) {
+                    break;
+                }
+            }
+        } finally {
+            current = null;
+            prefetcher.shutdown();
+        }
+
+        // Bilan
+        stopForeground(true);
+        Notification notification = new NotificationCompat.Builder(this)
+                .setAutoCancel(true)
+                .setContentTitle(getString(prefetcher.isCancelled()
+                        ? R.string.prefetch_cancelled : R.string.prefetch_done))
+                .setContentText(getString(R.string.prefetch_result,
+                        prefetcher.getLoadedCount(), prefetcher.getFailedCount()))
+                .setSmallIcon(android.R.drawable.stat_sys_download_done)
+                .build();
+        NotificationManagerCompat.from(this).notify(PREFETCH_NOTIFICATION_ID, notification);
+        Log.d(MainActivity.DEBUG_TAG, "Prefetch: " + prefetcher.getDoneCount() + "/" + total
+                + " tiles, " + prefetcher.getLoadedCount() + " loaded, "
+                + prefetcher.getFailedCount() + " failed");
+    }
+}
@@ -0,0 +1,182 @@
+package fr.rg.ignrando.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Réserve d'images (Bitmap) réutilisables, classées par dimensions et format.
+ * <p/>
+ * La construction des tuiles reconstituées alloue et abandonne de
+ * nombreuses images de même taille: les réutiliser (en tant qu'image de
+ * destination ou via {@link BitmapFactory.Options#inBitmap} lors du décodage)
+ * évite de solliciter le ramasse-miettes pendant les zooms.
+ */
+public class BitmapPool {
+
+    // Réserve partagée par le processus (4 Mo)
+    private static BitmapPool instance;
+
+    // Images disponibles, par clé (largeur, hauteur, format)
+    private final HashMap<Long, ArrayDeque<Bitmap>> pool =
+            new HashMap<Long, ArrayDeque<Bitmap>>();
+    // Taille maximale de la réserve (en octets)
+    private long maxBytes;
+    private long currentBytes;
+    // Statistiques
+    private long reuseCount, allocationCount;
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(4 * 1024 * 1024);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxBytes Taille maximale de la réserve (en octets)
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    /**
+     * Retirer une image disponible de la réserve.
+     *
+     * @return Une image modifiable de mêmes caractéristiques ou null si aucune
+     * n'est disponible.
+     */
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> list = pool.get(key(width, height, config));
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        Bitmap b = list.pop();
+        currentBytes -= b.getAllocationByteCount();
+        reuseCount++;
+        return b;
+    }
+
+    /**
+     * Obtenir une image modifiable, réutilisée si possible. Son contenu est
+     * indéfini.
+     *
+     * @param width  Largeur
+     * @param height Hauteur
+     * @param config Format des pixels
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap b = take(width, height, config);
+        if (b == null) {
+            countAllocation();
+            b = Bitmap.createBitmap(width, height, config);
+        }
+        return b;
+    }
+
+    /**
+     * Rendre une image à la réserve (ou la libérer si la réserve est pleine).
+     * L'image ne doit plus être utilisée par l'appelant.
+     *
+     * @param b Image à rendre
+     */
+    public void put(Bitmap b) {
+        if (b == null || b.isRecycled()) {
+            return;
+        }
+        if (b.isMutable()) {
+            synchronized (this) {
+                int size = b.getAllocationByteCount();
+                if (currentBytes + size <= maxBytes) {
+                    long k = key(b.getWidth(), b.getHeight(), b.getConfig());
+                    ArrayDeque<Bitmap> list = pool.get(k);
+                    if (list == null) {
+                        list = new ArrayDeque<Bitmap>();
+                        pool.put(k, list);
+                    }
+                    list.push(b);
+                    currentBytes += size;
+                    return;
+                }
+            }
+        }
+        b.recycle();
+    }
+
+    /**
+     * Décoder une image compressée en réutilisant si possible une image de la
+     * réserve.
+     *
+     * @param data       Données compressées
+     * @param sampleSize Facteur de réduction à appliquer lors du décodage
+     *                   (puissance de 2)
+     * @param width      Largeur de l'image décodée (après réduction)
+     * @param height     Hauteur de l'image décodée (après réduction)
+     * @param config     Format des pixels
+     * @return L'image décodée (à rendre à la réserve) ou null si les données
+     * sont invalides.
+     */
+    public Bitmap decode(byte[] data, int sampleSize, int width, int height,
+                         Bitmap.Config config) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sampleSize;
+        opts.inPreferredConfig = config;
+        opts.inMutable = true;
+        opts.inBitmap = take(width, height, config);
+        if (opts.inBitmap == null) {
+            countAllocation();
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (IllegalArgumentException e) {
+            // Image de la réserve incompatible: décoder sans réutilisation
+            put(opts.inBitmap);
+            opts.inBitmap = null;
+            countAllocation();
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        }
+    }
+
+    private synchronized void countAllocation() {
+        allocationCount++;
+    }
+
+    /**
+     * Vider la réserve.
+     */
+    public synchronized void evictAll() {
+        for (ArrayDeque<Bitmap> list : pool.values()) {
+            for (Bitmap b : list) {
+                b.recycle();
+            }
+        }
+        pool.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Nombre d'images obtenues de la réserve (directement ou par décodage).
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * Nombre d'images allouées faute d'image disponible dans la réserve.
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[" + currentBytes + "/" + maxBytes + " octets, reuses=" + reuseCount
+                + ", allocations=" + allocationCount + "]";
+    }
+}
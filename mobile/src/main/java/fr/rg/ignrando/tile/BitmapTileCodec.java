@@ -0,0 +1,207 @@
+package fr.rg.ignrando.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Traitements d'images des tuiles avec les {@link Bitmap} Android.
+ * <p/>
+ * Les images intermédiaires proviennent d'une réserve partagée
+ * ({@link BitmapPool}), sont décodées au format RGB_565 (pas de transparence)
+ * et dessinées avec un Canvas propre à chaque fil d'exécution. Les tuiles
+ * produites sont compressées selon la politique de format par niveau de zoom.
+ */
+public class BitmapTileCodec implements TileImageCodec {
+
+    // Décodeurs de régions des dernières tuiles découpées (sur-zoom)
+    private static final RegionDecoderCache regionDecoders = new RegionDecoderCache(8);
+    // Outils de dessin (un par fil d'exécution)
+    private static final ThreadLocal<Canvas> stitchCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            return new Canvas();
+        }
+    };
+    private static final ThreadLocal<Paint> stitchPaint = new ThreadLocal<Paint>() {
+        @Override
+        protected Paint initialValue() {
+            return new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+    };
+    private static final ThreadLocal<Paint> blendPaint = new ThreadLocal<Paint>() {
+        @Override
+        protected Paint initialValue() {
+            return new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+    };
+
+    private final TileEncoding.Policy encoding;
+    private final BitmapPool bitmapPool = BitmapPool.getInstance();
+    // pinceaux pour dessiner les tuiles vides et les carrés manquants
+    private final Paint pGraph = new Paint();
+    private final Paint pBlank = new Paint();
+
+    /**
+     * @param encoding Format de compression selon le niveau de zoom
+     */
+    public BitmapTileCodec(TileEncoding.Policy encoding) {
+        this.encoding = encoding;
+        pGraph.setStyle(Paint.Style.STROKE);
+        pGraph.setStrokeWidth(3);
+        pBlank.setColor(Color.WHITE);
+    }
+
+    /**
+     * Libérer les images et décodeurs conservés (demande de mémoire du
+     * système).
+     */
+    public static void trimMemory() {
+        BitmapPool.getInstance().evictAll();
+        regionDecoders.evictAll();
+    }
+
+    @Override
+    public boolean isOriginal(int zoom) {
+        return encoding.forZoom(zoom).isOriginal();
+    }
+
+    /**
+     * Chaque sous-tuile est décodée directement à la taille voulue
+     * (inSampleSize), dans une image de la réserve, et la tuile est dessinée
+     * dans une image de la réserve (dont le contenu précédent est recouvert
+     * en blanc dans les carrés sans sous-tuile).
+     */
+    @Override
+    public byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22, int dim,
+                         int zoom) {
+        int half = dim / 2;
+        Bitmap b = bitmapPool.get(dim, dim, Bitmap.Config.RGB_565);
+        Canvas cv = stitchCanvas.get();
+        cv.setBitmap(b);
+        try {
+            Paint p = stitchPaint.get();
+            if (!drawSubTile(cv, img11, 0, 0, half, p)
+                    || !drawSubTile(cv, img12, half, 0, half, p)
+                    || !drawSubTile(cv, img21, 0, half, half, p)
+                    || !drawSubTile(cv, img22, half, half, half, p)) {
+                return null;
+            }
+
+            return encoding.forZoom(zoom).encode(b);
+        } finally {
+            cv.setBitmap(null);
+            bitmapPool.put(b);
+        }
+    }
+
+    /**
+     * Dessiner une sous-tuile dans un carré de la tuile en construction.
+     *
+     * @param cv   Canvas de la tuile en construction.
+     * @param data Données compressées de la sous-tuile (ou null).
+     * @param x    Abscisse du carré.
+     * @param y    Ordonnée du carré.
+     * @param dim  Dimension du carré (en pixels).
+     * @param p    Pinceau (opacité) de la sous-tuile.
+     * @return false si la sous-tuile est invalide.
+     */
+    private boolean drawSubTile(Canvas cv, byte[] data, int x, int y, int dim, Paint p) {
+        if (data == null) { // Sous-tuile absente
+            cv.drawRect(x, y, x + dim, y + dim, pBlank);
+            return true;
+        }
+        // Facteur de réduction d'après les dimensions de la sous-tuile
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        if (bounds.outWidth <= 0) {
+            return false;
+        }
+        int sampleSize = Math.max(1, Integer.highestOneBit(bounds.outWidth / dim));
+        int w = bounds.outWidth / sampleSize, h = bounds.outHeight / sampleSize;
+
+        Bitmap sub = bitmapPool.decode(data, sampleSize, w, h, Bitmap.Config.RGB_565);
+        if (sub == null) {
+            return false;
+        }
+        if (w == dim && h == dim) {
+            cv.drawBitmap(sub, x, y, p);
+        } else { // Mise à l'échelle
+            cv.drawBitmap(sub, null, new Rect(x, y, x + dim, y + dim), p);
+        }
+        bitmapPool.put(sub);
+        return true;
+    }
+
+    /**
+     * Les deux tuiles sont décodées dans des images de la réserve et dessinées
+     * dans une image de la réserve: une seule composition par tuile, au lieu
+     * d'une à chaque affichage de deux couches superposées.
+     */
+    @Override
+    public byte[] blend(byte[] base, byte[] overlay, float alpha, int dim, int zoom) {
+        Bitmap b = bitmapPool.get(dim, dim, Bitmap.Config.RGB_565);
+        Canvas cv = stitchCanvas.get();
+        cv.setBitmap(b);
+        try {
+            Paint p = blendPaint.get();
+            p.setAlpha(Math.round(255 * alpha));
+            if (!drawSubTile(cv, base, 0, 0, dim, stitchPaint.get())
+                    || !drawSubTile(cv, overlay, 0, 0, dim, p)) {
+                return null;
+            }
+
+            return encoding.forZoom(zoom).encode(b);
+        } finally {
+            cv.setBitmap(null);
+            bitmapPool.put(b);
+        }
+    }
+
+    /**
+     * Seule la portion utile est décodée; le décodeur est conservé (si la
+     * tuile est identifiée) pour les autres portions de la même tuile.
+     */
+    @Override
+    public byte[] zoomIn(long key, Callable<byte[]> source, int shift, int col, int row,
+                         int dim, int zoom) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap b = regionDecoders.decodeRegion(key, source, shift, col, row, opts);
+        if (b == null) {
+            return null;
+        }
+        if (dim > 0 && b.getWidth() != dim) { // Agrandissement
+            Bitmap scaled = Bitmap.createScaledBitmap(b, dim, dim, true);
+            if (scaled != b) {
+                b.recycle();
+                b = scaled;
+            }
+        }
+
+        byte[] image = encoding.forZoom(zoom).encode(b);
+        b.recycle();
+        return image;
+    }
+
+    @Override
+    public byte[] emptyTile(int dim) {
+        Bitmap b = Bitmap.createBitmap(dim, dim, Bitmap.Config.ARGB_8888);
+        Canvas cv = new Canvas(b);
+        // Dessiner le cadre
+        cv.drawRect(0, 0, dim, dim, pGraph);
+
+        // Générer le tableau d'octets
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        b.compress(Bitmap.CompressFormat.PNG, 100, buffer);
+        b.recycle();
+        return buffer.toByteArray();
+    }
+}
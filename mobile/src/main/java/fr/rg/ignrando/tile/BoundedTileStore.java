@@ -0,0 +1,742 @@
+package fr.rg.ignrando.tile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache disque de tuiles de taille limitée.
+ * <p/>
+ * Ce stockage enveloppe un autre {@link TileStore} et tient à jour, en
+ * mémoire, un index des tuiles présentes (taille et ordre d'utilisation) au
+ * lieu d'examiner les dates de modification des fichiers. L'index est
+ * sauvegardé dans un fichier journal quelques secondes après chaque ajout ou
+ * suppression de tuile (et par {@link #flush()}) pour être relu au démarrage;
+ * il n'est reconstruit en parcourant le stockage que si ce journal est absent
+ * ou incomplet (tuiles ajoutées depuis sa dernière sauvegarde). Les simples
+ * lectures ne modifient que l'ordre d'utilisation: il n'est sauvegardé qu'avec
+ * la sauvegarde suivante ou par {@link #flush()} (mise en arrière-plan de
+ * l'application, manque de mémoire), pour ne pas réécrire le journal pendant
+ * les déplacements sur la carte.
+ * <p/>
+ * Une fois l'index chargé, la présence d'une tuile est connue sans accès au
+ * stockage ({@link TilePresenceIndex}): une tuile absente n'est jamais
+ * recherchée sur le disque.
+ * <p/>
+ * Lorsque le budget d'octets est dépassé, un fil d'exécution de faible
+ * priorité supprime les tuiles les moins récemment utilisées: d'abord les
+ * tuiles reconstituées (qui peuvent être recréées sans réseau), puis les
+ * tuiles IGN réelles des niveaux 15 et 16.
+ * <p/>
+ * Les tuiles des zones épinglées ({@link PinnedRegions}) forment un niveau à
+ * part de l'index, jamais parcouru par le nettoyage: elles occupent une
+ * partie du budget (comptée séparément) sans pouvoir être supprimées. Leur
+ * appartenance à une zone est testée en temps constant lors de l'ajout d'une
+ * tuile; l'index n'est reclassé en entier que lorsque les zones changent. Les
+ * zones sont chargées par le fil de nettoyage, avant l'index.
+ */
+public class BoundedTileStore implements TileStore {
+
+    // Identifiant du format du journal
+    private static final int JOURNAL_MAGIC = 0x49474e31; // "IGN1"
+    // Suffixe du fichier signalant des ajouts absents du journal
+    private static final String DIRTY_SUFFIX = ".dirty";
+    // Délai minimal entre une modification de l'index et la sauvegarde du
+    // journal (en ms), et multiple de la durée de la dernière sauvegarde
+    // (les gros journaux ne sont pas réécrits en permanence)
+    private static final long JOURNAL_SAVE_DELAY_MS = 5000;
+    private static final int JOURNAL_SAVE_DELAY_FACTOR = 20;
+    // Fraction du budget visée après un nettoyage (évite des nettoyages
+    // à chaque nouvelle tuile)
+    private static final double LOW_WATER_MARK = 0.9;
+
+    // Stockage effectif des tuiles
+    private final TileStore store;
+    // Fichier journal de l'index
+    private final File journalFile;
+    // Fichier présent tant que des tuiles ajoutées manquent dans le journal
+    private final File dirtyMarker;
+    private boolean dirtyMarked;
+
+    // Index des tuiles (clé -> taille), dans l'ordre d'utilisation
+    private final LinkedHashMap<Long, Integer> realTiles =
+            new LinkedHashMap<Long, Integer>(1024, 0.75f, true);
+    private final LinkedHashMap<Long, Integer> derivedTiles =
+            new LinkedHashMap<Long, Integer>(1024, 0.75f, true);
+    // Tuiles des zones épinglées (jamais supprimées par le nettoyage)
+    private final LinkedHashMap<Long, Integer> pinnedTiles =
+            new LinkedHashMap<Long, Integer>(1024, 0.75f, true);
+    private long realBytes, derivedBytes, pinnedBytes;
+    private boolean indexDirty = false;
+    // Ordre d'utilisation modifié depuis la dernière sauvegarde
+    private boolean recencyDirty = false;
+    private volatile boolean indexLoaded = false;
+    // Tuiles présentes (complet une fois l'index chargé)
+    private final TilePresenceIndex presence = new TilePresenceIndex();
+
+    // Zones épinglées (null si aucune)
+    private volatile PinnedRegions pins;
+    private final PinnedRegions.Listener pinsListener = new PinnedRegions.Listener() {
+        @Override
+        public void onPinsChanged() {
+            scheduleRepartition();
+        }
+    };
+
+    // Budget (en octets), 0 pour un cache illimité
+    private volatile long maxBytes;
+    // Nettoyage et sauvegarde en arrière-plan
+    private final ScheduledExecutorService janitor;
+    private boolean trimScheduled = false;
+    private boolean saveScheduled = false;
+    // Durée de la dernière sauvegarde du journal (en ms)
+    private long lastSaveMillis;
+    // Statistiques
+    private long evictedCount, evictedBytes;
+
+    /**
+     * @param store       Stockage effectif des tuiles
+     * @param journalFile Fichier de sauvegarde de l'index
+     * @param maxBytes    Budget en octets (0 pour un cache illimité)
+     */
+    public BoundedTileStore(TileStore store, File journalFile, long maxBytes) {
+        this(store, journalFile, maxBytes, null);
+    }
+
+    /**
+     * @param store       Stockage effectif des tuiles
+     * @param journalFile Fichier de sauvegarde de l'index
+     * @param maxBytes    Budget en octets (0 pour un cache illimité)
+     * @param pins        Zones épinglées (chargées avant l'index, de sorte
+     *                    que le premier nettoyage les respecte) ou null
+     */
+    public BoundedTileStore(TileStore store, File journalFile, long maxBytes,
+                            PinnedRegions pins) {
+        this.store = store;
+        this.journalFile = journalFile;
+        this.maxBytes = maxBytes;
+        dirtyMarker = new File(journalFile.getPath() + DIRTY_SUFFIX);
+        // Journal incomplet si l'application a été arrêtée avant sa sauvegarde
+        dirtyMarked = dirtyMarker.exists();
+        final boolean journalComplete = !dirtyMarked;
+        this.pins = pins;
+        if (pins != null) {
+            pins.addListener(pinsListener);
+        }
+        janitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TileCacheJanitor");
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // Charger l'index puis vérifier le budget
+        janitor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadPins();
+                loadIndex(journalComplete);
+                trim();
+            }
+        });
+    }
+
+    /**
+     * Modifier le budget du cache.
+     *
+     * @param maxBytes Budget en octets (0 pour un cache illimité)
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        scheduleTrim();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Protéger de la suppression les tuiles de zones épinglées (zones
+     * partagées avec d'autres stockages).
+     *
+     * @param pins Zones épinglées ou null pour aucune
+     */
+    public void setPinnedRegions(PinnedRegions pins) {
+        PinnedRegions previous = this.pins;
+        if (previous == pins) {
+            return;
+        }
+        if (previous != null) {
+            previous.removeListener(pinsListener);
+        }
+        this.pins = pins;
+        if (pins != null) {
+            pins.addListener(pinsListener);
+        }
+        scheduleRepartition();
+    }
+
+    public PinnedRegions getPinnedRegions() {
+        return pins;
+    }
+
+    /**
+     * Nombre d'octets occupés par les tuiles indexées (épinglées comprises).
+     */
+    public synchronized long size() {
+        return realBytes + derivedBytes + pinnedBytes;
+    }
+
+    /**
+     * Nombre d'octets occupés par les tuiles des zones épinglées.
+     */
+    public synchronized long pinnedSize() {
+        return pinnedBytes;
+    }
+
+    /**
+     * Occupation du cache par une zone épinglée.
+     *
+     * @param region Zone épinglée
+     * @return Nombre de tuiles présentes (toutes couches) et nombre d'octets
+     * occupés.
+     */
+    public synchronized long[] pinnedUsage(PinnedRegions.Region region) {
+        long count = 0, bytes = 0;
+        for (Map.Entry<Long, Integer> e : pinnedTiles.entrySet()) {
+            long k = e.getKey();
+            if (region.contains(TileKey.zoom(k), TileKey.row(k), TileKey.col(k))) {
+                count++;
+                bytes += e.getValue();
+            }
+        }
+        return new long[]{count, bytes};
+    }
+
+    /**
+     * Indiquer si l'index est chargé (présence des tuiles connue sans accès
+     * au stockage).
+     */
+    public boolean isIndexLoaded() {
+        return indexLoaded;
+    }
+
+    /**
+     * Stockage effectif des tuiles.
+     */
+    public TileStore getStore() {
+        return store;
+    }
+
+    // +-------------------------------------------+
+    // | Opérations du stockage avec mise à jour    |
+    // | de l'index                                 |
+    // +-------------------------------------------+
+
+    @Override
+    public byte[] get(int layer, int zoom, int row, int col) {
+        boolean indexed = indexLoaded;
+        if (indexed && !presence.contains(layer, zoom, row, col)) {
+            return null;
+        }
+        byte[] data = store.get(layer, zoom, row, col);
+        if (data != null) {
+            record(layer, zoom, row, col, data.length);
+        } else if (indexed) { // Tuile supprimée (ou corrompue) hors de l'index
+            synchronized (this) {
+                unindex(layer, zoom, row, col);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public boolean contains(int layer, int zoom, int row, int col) {
+        if (indexLoaded) {
+            return presence.contains(layer, zoom, row, col);
+        }
+        return store.contains(layer, zoom, row, col);
+    }
+
+    @Override
+    public boolean put(int layer, int zoom, int row, int col, byte[] data) {
+        if (!store.put(layer, zoom, row, col, data)) {
+            return false;
+        }
+        record(layer, zoom, row, col, data.length);
+        return true;
+    }
+
+    @Override
+    public boolean remove(int layer, int zoom, int row, int col) {
+        synchronized (this) {
+            unindex(layer, zoom, row, col);
+        }
+        return store.remove(layer, zoom, row, col);
+    }
+
+    @Override
+    public void forEach(TileVisitor visitor) {
+        store.forEach(visitor);
+    }
+
+    @Override
+    public void flush() {
+        store.flush();
+        saveIndex();
+    }
+
+    /**
+     * Écrire les données en attente et le journal sur le fil de nettoyage
+     * (appel possible depuis le fil principal, par exemple à l'arrêt de
+     * l'application).
+     */
+    public void flushInBackground() {
+        janitor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    // +-------------------+
+    // | Index des tuiles  |
+    // +-------------------+
+
+    /**
+     * Enregistrer une tuile ajoutée directement dans le stockage effectif
+     * (importation, par exemple).
+     */
+    public void onTileAdded(int layer, int zoom, int row, int col, int size) {
+        record(layer, zoom, row, col, size);
+    }
+
+    /**
+     * Enregistrer l'utilisation (ou l'ajout) d'une tuile et déclencher si
+     * nécessaire un nettoyage.
+     */
+    private void record(int layer, int zoom, int row, int col, int size) {
+        boolean overBudget;
+        boolean markDirty = false;
+        synchronized (this) {
+            long k = TileKey.pack(layer, zoom, row, col);
+            LinkedHashMap<Long, Integer> tier = tierOf(k);
+            Integer previous = tier.put(k, size);
+            if (previous == null) {
+                presence.add(layer, zoom, row, col);
+                // Signaler (une fois par sauvegarde) une tuile absente du journal
+                markDirty = !dirtyMarked;
+                dirtyMarked = true;
+            }
+            addBytes(tier, size - (previous == null ? 0 : previous));
+            if (previous == null || previous != size) {
+                scheduleSave();
+            } else { // Simple utilisation: sauvegardée avec la prochaine
+                recencyDirty = true;
+            }
+            overBudget = maxBytes > 0 && realBytes + derivedBytes + pinnedBytes > maxBytes;
+        }
+        if (markDirty) {
+            try {
+                dirtyMarker.createNewFile();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (overBudget) {
+            scheduleTrim();
+        }
+    }
+
+    /**
+     * Retirer une tuile de l'index (appel sous verrou).
+     */
+    private void unindex(int layer, int zoom, int row, int col) {
+        long k = TileKey.pack(layer, zoom, row, col);
+        presence.remove(layer, zoom, row, col);
+        Integer size = realTiles.remove(k);
+        if (size != null) {
+            realBytes -= size;
+        } else if ((size = derivedTiles.remove(k)) != null) {
+            derivedBytes -= size;
+        } else if ((size = pinnedTiles.remove(k)) != null) {
+            pinnedBytes -= size;
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Niveau de l'index d'une tuile: épinglée, réelle ou reconstituée (test
+     * en temps constant).
+     */
+    private LinkedHashMap<Long, Integer> tierOf(long k) {
+        PinnedRegions p = pins;
+        if (p != null && p.contains(k)) {
+            return pinnedTiles;
+        }
+        return TileKey.isReal(k) ? realTiles : derivedTiles;
+    }
+
+    /**
+     * Mettre à jour la taille d'un niveau de l'index (appel sous verrou).
+     */
+    private void addBytes(LinkedHashMap<Long, Integer> tier, long delta) {
+        if (tier == realTiles) {
+            realBytes += delta;
+        } else if (tier == derivedTiles) {
+            derivedBytes += delta;
+        } else {
+            pinnedBytes += delta;
+        }
+    }
+
+    /**
+     * Programmer le reclassement de l'index suite à une modification des
+     * zones épinglées, puis un nettoyage.
+     */
+    private void scheduleRepartition() {
+        janitor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadPins();
+                if (indexLoaded) { // Sinon, reclassé au chargement
+                    synchronized (BoundedTileStore.this) {
+                        repartition();
+                    }
+                    trim();
+                }
+            }
+        });
+    }
+
+    /**
+     * Charger les zones épinglées (sur le fil de nettoyage).
+     */
+    private void loadPins() {
+        PinnedRegions p = pins;
+        if (p != null) {
+            p.ensureLoaded();
+        }
+    }
+
+    /**
+     * Reclasser les tuiles de l'index selon les zones épinglées (appel sous
+     * verrou). Les tuiles qui ne sont plus épinglées reprennent place parmi
+     * les plus récemment utilisées.
+     */
+    private void repartition() {
+        moveTiles(realTiles, true);
+        moveTiles(derivedTiles, true);
+        moveTiles(pinnedTiles, false);
+    }
+
+    /**
+     * Déplacer vers leur niveau les tuiles mal classées d'un niveau de
+     * l'index (appel sous verrou).
+     *
+     * @param tier   Niveau examiné
+     * @param pinned true pour ne déplacer que les tuiles devenues épinglées,
+     *               false pour celles qui ne le sont plus
+     */
+    private void moveTiles(LinkedHashMap<Long, Integer> tier, boolean pinned) {
+        PinnedRegions p = pins;
+        if (pinned && (p == null || p.getTileCount() == 0)) {
+            return;
+        }
+        LinkedHashMap<Long, Integer> moved = new LinkedHashMap<Long, Integer>();
+        Iterator<Map.Entry<Long, Integer>> it = tier.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> e = it.next();
+            if ((p != null && p.contains(e.getKey())) == pinned) {
+                moved.put(e.getKey(), e.getValue());
+                it.remove();
+                addBytes(tier, -e.getValue());
+            }
+        }
+        for (Map.Entry<Long, Integer> e : moved.entrySet()) {
+            LinkedHashMap<Long, Integer> target = tierOf(e.getKey());
+            // Tuile déjà présente si utilisée avant le chargement de l'index
+            Integer previous = target.put(e.getKey(), e.getValue());
+            addBytes(target, e.getValue() - (previous == null ? 0 : previous));
+        }
+    }
+
+    /**
+     * Charger l'index depuis le journal ou, à défaut, en parcourant le
+     * stockage.
+     *
+     * @param journalComplete false si des tuiles ont été ajoutées sans que le
+     *                        journal ne soit sauvegardé
+     */
+    private void loadIndex(boolean journalComplete) {
+        if (journalComplete && journalFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(journalFile)));
+                if (in.readInt() == JOURNAL_MAGIC) {
+                    int count = in.readInt();
+                    synchronized (this) {
+                        // Les entrées sont enregistrées de la plus ancienne
+                        // à la plus récente: les insérer avant les accès
+                        // effectués depuis le démarrage
+                        LinkedHashMap<Long, Integer> real = new LinkedHashMap<Long, Integer>();
+                        LinkedHashMap<Long, Integer> derived = new LinkedHashMap<Long, Integer>();
+                        for (int i = 0; i < count; i++) {
+                            long k = in.readLong();
+                            int size = in.readInt();
+                            (TileKey.isReal(k) ? real : derived).put(k, size);
+                        }
+                        mergeOlder(realTiles, real, true);
+                        mergeOlder(derivedTiles, derived, false);
+                        repartition();
+                    }
+                    indexLoaded = true;
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (in != null)
+                    try {
+                        in.close();
+                    } catch (Exception ignored) {
+                    }
+            }
+        }
+
+        // Journal absent ou illisible: parcourir le stockage
+        final LinkedHashMap<Long, Integer> real = new LinkedHashMap<Long, Integer>();
+        final LinkedHashMap<Long, Integer> derived = new LinkedHashMap<Long, Integer>();
+        store.forEach(new TileVisitor() {
+            @Override
+            public void visit(int layer, int zoom, int row, int col, int size) {
+                long k = TileKey.pack(layer, zoom, row, col);
+                (TileKey.isReal(k) ? real : derived).put(k, size);
+            }
+        });
+        synchronized (this) {
+            mergeOlder(realTiles, real, true);
+            mergeOlder(derivedTiles, derived, false);
+            repartition();
+        }
+        indexLoaded = true;
+        synchronized (this) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Placer des entrées anciennes avant les entrées déjà présentes dans un
+     * niveau de l'index (appel sous verrou).
+     */
+    private void mergeOlder(LinkedHashMap<Long, Integer> tier,
+                            LinkedHashMap<Long, Integer> older, boolean real) {
+        for (Map.Entry<Long, Integer> e : tier.entrySet()) {
+            older.remove(e.getKey());
+        }
+        older.putAll(tier);
+        tier.clear();
+        long bytes = 0;
+        for (Map.Entry<Long, Integer> e : older.entrySet()) {
+            long k = e.getKey();
+            tier.put(k, e.getValue());
+            presence.add(TileKey.layer(k), TileKey.zoom(k), TileKey.row(k), TileKey.col(k));
+            bytes += e.getValue();
+        }
+        if (real) {
+            realBytes = bytes;
+        } else {
+            derivedBytes = bytes;
+        }
+    }
+
+    /**
+     * Marquer l'index comme modifié et programmer la sauvegarde du journal
+     * quelques secondes plus tard, une seule fois pour toutes les
+     * modifications intermédiaires (appel sous verrou).
+     */
+    private void scheduleSave() {
+        indexDirty = true;
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        janitor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BoundedTileStore.this) {
+                    saveScheduled = false;
+                }
+                saveIndex();
+            }
+        }, Math.max(JOURNAL_SAVE_DELAY_MS, JOURNAL_SAVE_DELAY_FACTOR * lastSaveMillis),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sauvegarder l'index dans le journal (écriture dans un fichier
+     * temporaire puis renommage).
+     */
+    private void saveIndex() {
+        if (!indexLoaded) {
+            return;
+        }
+        List<Map.Entry<Long, Integer>> entries;
+        synchronized (this) {
+            if (!indexDirty && !recencyDirty) {
+                return;
+            }
+            entries = new ArrayList<Map.Entry<Long, Integer>>(
+                    realTiles.size() + derivedTiles.size() + pinnedTiles.size());
+            entries.addAll(pinnedTiles.entrySet());
+            entries.addAll(realTiles.entrySet());
+            entries.addAll(derivedTiles.entrySet());
+            indexDirty = false;
+            recencyDirty = false;
+            dirtyMarked = false;
+        }
+
+        long start = System.currentTimeMillis();
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, Integer> e : entries) {
+                out.writeLong(e.getKey());
+                out.writeInt(e.getValue());
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(journalFile)) {
+                throw new IOException("Renommage impossible: " + tmp);
+            }
+            synchronized (this) {
+                if (!dirtyMarked) { // Aucun ajout depuis la copie de l'index
+                    dirtyMarker.delete();
+                }
+                lastSaveMillis = System.currentTimeMillis() - start;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                indexDirty = true;
+                dirtyMarked = true;
+            }
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (Exception ignored) {
+                }
+        }
+    }
+
+    // +-----------------------+
+    // | Nettoyage du cache    |
+    // +-----------------------+
+
+    /**
+     * Programmer un nettoyage (un seul à la fois).
+     */
+    private synchronized void scheduleTrim() {
+        if (trimScheduled) {
+            return;
+        }
+        trimScheduled = true;
+        janitor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BoundedTileStore.this) {
+                    trimScheduled = false;
+                }
+                trim();
+            }
+        });
+    }
+
+    /**
+     * Supprimer les tuiles les moins récemment utilisées jusqu'à revenir
+     * sous le budget: d'abord les tuiles reconstituées, puis les tuiles
+     * réelles. Les tuiles épinglées ne sont jamais supprimées: si elles
+     * dépassent à elles seules le budget, toutes les autres le sont.
+     */
+    private void trim() {
+        long limit = maxBytes;
+        if (!indexLoaded || limit <= 0 || size() <= limit) {
+            return;
+        }
+        long target = (long) (limit * LOW_WATER_MARK);
+        int removed = evict(derivedTiles, target);
+        removed += evict(realTiles, target);
+        if (removed > 0) {
+            store.flush();
+            saveIndex();
+        }
+    }
+
+    /**
+     * Supprimer les tuiles les plus anciennes d'un niveau de l'index jusqu'à
+     * atteindre la taille visée.
+     *
+     * @return Nombre de tuiles supprimées
+     */
+    private int evict(LinkedHashMap<Long, Integer> tier, long target) {
+        int removed = 0;
+        while (true) {
+            long k;
+            synchronized (this) {
+                if (realBytes + derivedBytes + pinnedBytes <= target || tier.isEmpty()) {
+                    return removed;
+                }
+                Iterator<Map.Entry<Long, Integer>> it = tier.entrySet().iterator();
+                Map.Entry<Long, Integer> eldest = it.next();
+                k = eldest.getKey();
+                int size = eldest.getValue();
+                it.remove();
+                presence.remove(TileKey.layer(k), TileKey.zoom(k), TileKey.row(k),
+                        TileKey.col(k));
+                if (tier == realTiles) {
+                    realBytes -= size;
+                } else {
+                    derivedBytes -= size;
+                }
+                indexDirty = true;
+                evictedCount++;
+                evictedBytes += size;
+            }
+            store.remove(TileKey.layer(k), TileKey.zoom(k), TileKey.row(k), TileKey.col(k));
+            removed++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BoundedTileStore[" + (realTiles.size() + derivedTiles.size()
+                + pinnedTiles.size()) + " tuiles, " + (realBytes + derivedBytes + pinnedBytes)
+                + "/" + maxBytes + " octets (réelles=" + realBytes + ", reconstituées="
+                + derivedBytes + ", épinglées=" + pinnedBytes + "), évictions="
+                + evictedCount + " (" + evictedBytes + " octets), présence="
+                + presence.memoryBytes() / 1024 + " ko]";
+    }
+}
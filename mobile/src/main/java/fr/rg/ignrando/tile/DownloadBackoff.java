@@ -0,0 +1,185 @@
+package fr.rg.ignrando.tile;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mémorisation des échecs de téléchargement des tuiles.
+ * <p/>
+ * Deux types d'échecs sont distingués:
+ * <ul>
+ * <li>les tuiles que le serveur déclare inexistantes (erreur HTTP 4xx, par
+ * exemple hors de la zone couverte par l'IGN) sont mémorisées
+ * individuellement et ne sont pas redemandées avant un certain délai,</li>
+ * <li>les erreurs du serveur ou du réseau (absence de connexion, délai
+ * dépassé, clé refusée, HTTP 5xx) concernent toutes les tuiles: plus aucun
+ * téléchargement n'est tenté pendant une durée qui double à chaque échec
+ * consécutif (mode « hors ligne »).</li>
+ * </ul>
+ * Un téléchargement réussi met fin au mode hors ligne.
+ */
+public class DownloadBackoff {
+
+    // Délai avant de redemander une tuile inexistante (en ms)
+    public static final long MISSING_TILE_DELAY_MS = 60 * 60 * 1000;
+    // Délais du mode hors ligne (en ms)
+    public static final long MIN_BACKOFF_MS = 5 * 1000;
+    public static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+    // Nombre maximal de tuiles inexistantes mémorisées
+    private static final int MAX_MISSING_TILES = 4096;
+
+    /**
+     * Suivi du mode hors ligne.
+     */
+    public interface Listener {
+        /**
+         * Le mode hors ligne commence ou est prolongé (appelé depuis le fil
+         * de téléchargement).
+         *
+         * @param delayMs Délai avant la prochaine tentative (en ms)
+         */
+        void onBackoff(long delayMs);
+    }
+
+    // Suivi des échecs pour chaque serveur
+    private static final HashMap<String, DownloadBackoff> hosts =
+            new HashMap<String, DownloadBackoff>();
+
+    // Tuiles inexistantes -> date à partir de laquelle les redemander
+    private final LinkedHashMap<Long, Long> missingTiles =
+            new LinkedHashMap<Long, Long>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > MAX_MISSING_TILES;
+                }
+            };
+    // Mode hors ligne
+    private int consecutiveFailures;
+    private long retryTime;
+    private volatile Listener listener;
+    // Statistiques
+    private long skippedCount;
+
+    /**
+     * Récupérer le suivi des échecs d'un serveur (partagé par le processus).
+     *
+     * @param host Nom du serveur
+     */
+    public static synchronized DownloadBackoff forHost(String host) {
+        DownloadBackoff backoff = hosts.get(host);
+        if (backoff == null) {
+            backoff = new DownloadBackoff();
+            hosts.put(host, backoff);
+        }
+        return backoff;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Indiquer si une tuile peut être téléchargée.
+     *
+     * @param key Identifiant de la tuile
+     * @return false si la tuile est inexistante ou si le mode hors ligne est
+     * actif.
+     */
+    public synchronized boolean canDownload(long key) {
+        long t = now();
+        if (t < retryTime) {
+            skippedCount++;
+            return false;
+        }
+        Long retry = missingTiles.get(key);
+        if (retry != null) {
+            if (t < retry) {
+                skippedCount++;
+                return false;
+            }
+            missingTiles.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Indiquer si le mode hors ligne est actif.
+     */
+    public synchronized boolean isOffline() {
+        return now() < retryTime;
+    }
+
+    /**
+     * Délai restant avant la fin du mode hors ligne (en ms, 0 s'il n'est pas
+     * actif).
+     */
+    public synchronized long getRemainingBackoff() {
+        return Math.max(0, retryTime - now());
+    }
+
+    /**
+     * Signaler un téléchargement réussi.
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        retryTime = 0;
+    }
+
+    /**
+     * Signaler une tuile inexistante (réponse HTTP 4xx autre qu'un refus
+     * d'accès).
+     *
+     * @param key Identifiant de la tuile
+     */
+    public synchronized void onMissingTile(long key) {
+        missingTiles.put(key, now() + MISSING_TILE_DELAY_MS);
+    }
+
+    /**
+     * Signaler une erreur du serveur ou du réseau: démarrer ou prolonger le
+     * mode hors ligne.
+     */
+    public void onNetworkError() {
+        long delay;
+        synchronized (this) {
+            if (now() < retryTime) {
+                return; // Échec d'un téléchargement commencé avant le mode hors ligne
+            }
+            consecutiveFailures++;
+            delay = Math.min(MAX_BACKOFF_MS,
+                    MIN_BACKOFF_MS << Math.min(consecutiveFailures - 1, 16));
+            retryTime = now() + delay;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onBackoff(delay);
+        }
+    }
+
+    /**
+     * Signaler une réponse HTTP d'erreur.
+     *
+     * @param key          Identifiant de la tuile
+     * @param responseCode Code de la réponse
+     */
+    public void onHttpError(long key, int responseCode) {
+        if (responseCode >= 400 && responseCode < 500 && responseCode != 401
+                && responseCode != 403 && responseCode != 429) {
+            onMissingTile(key);
+        } else { // Clé refusée, serveur surchargé ou en erreur
+            onNetworkError();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadBackoff[offline=" + (now() < retryTime) + ", failures="
+                + consecutiveFailures + ", missing=" + missingTiles.size() + ", skipped="
+                + skippedCount + "]";
+    }
+}
@@ -0,0 +1,255 @@
+package fr.rg.ignrando.tile;
+
+import java.util.HashMap;
+
+/**
+ * Limitation des téléchargements de tuiles vers un serveur: nombre de
+ * requêtes simultanées adapté à la qualité de la connexion et nombre
+ * maximal de requêtes par seconde.
+ * <p/>
+ * Le nombre de requêtes simultanées suit le principe
+ * augmentation additive / diminution multiplicative (AIMD):
+ * <ul>
+ * <li>chaque réponse rapide alors que la limite est atteinte augmente la
+ * limite de 1/limite (soit d'une requête par « fenêtre » de réponses),</li>
+ * <li>une erreur du serveur ou du réseau (délai dépassé, HTTP 429 ou 5xx),
+ * ou une réponse nettement plus lente que les plus rapides observées,
+ * divise la limite par deux (au plus une fois par durée de réponse, les
+ * requêtes déjà parties subissant la même congestion).</li>
+ * </ul>
+ * Une bonne connexion 4G est ainsi exploitée par de nombreuses requêtes
+ * simultanées, tandis qu'une connexion médiocre en montagne n'en reçoit
+ * qu'une ou deux, qui aboutissent au lieu d'expirer toutes. Ce n'est que
+ * lorsque les échecs persistent avec le nombre minimal de requêtes que la
+ * connexion est considérée comme perdue ({@link DownloadBackoff}).
+ * <p/>
+ * Le débit est de plus borné par un seau à jetons (quota de la clé IGN):
+ * les téléchargements anticipés de grandes zones ne dépassent jamais le
+ * nombre de requêtes par seconde autorisé.
+ */
+public class DownloadLimiter {
+
+    // Limites du nombre de requêtes simultanées
+    public static final int MIN_LIMIT = 1;
+    public static final int MAX_LIMIT = 16;
+    // Facteur de diminution de la limite en cas de congestion
+    private static final double DECREASE_FACTOR = 0.5;
+    // Durée de réponse (relative aux plus rapides) signalant une congestion
+    private static final double LATENCY_TOLERANCE = 3.0;
+    // Marge absolue (en ns) en deçà de laquelle une réponse n'est jamais lente
+    private static final long LATENCY_SLACK_NS = 50 * 1000000L;
+    // Remontée progressive de la durée de référence (nouvel itinéraire réseau)
+    private static final double BASELINE_DRIFT = 0.02;
+
+    // Limitation de chaque serveur
+    private static final HashMap<String, DownloadLimiter> hosts =
+            new HashMap<String, DownloadLimiter>();
+
+    // Requêtes simultanées: limite courante, bornes et requêtes en cours
+    private double limit;
+    private int minLimit, maxLimit;
+    private int running;
+    // Durée de réponse de référence (les plus rapides, en ns, 0 si inconnue)
+    private double baselineNanos;
+    // Date de la dernière diminution et durée de réponse lissée (en ns)
+    private long lastDecrease;
+    private double smoothedNanos;
+    // Seau à jetons (requêtes par seconde, 0 pour illimité)
+    private double requestsPerSecond;
+    private double tokens;
+    private long lastRefill;
+    // Statistiques
+    private long requestCount, decreaseCount;
+
+    /**
+     * Récupérer la limitation d'un serveur (partagée par le processus).
+     *
+     * @param host Nom du serveur
+     */
+    public static synchronized DownloadLimiter forHost(String host) {
+        DownloadLimiter limiter = hosts.get(host);
+        if (limiter == null) {
+            limiter = new DownloadLimiter(TileScheduler.DEFAULT_MAX_CONCURRENT, MIN_LIMIT,
+                    MAX_LIMIT);
+            hosts.put(host, limiter);
+        }
+        return limiter;
+    }
+
+    /**
+     * @param initialLimit Nombre initial de requêtes simultanées
+     * @param minLimit     Nombre minimal de requêtes simultanées
+     * @param maxLimit     Nombre maximal de requêtes simultanées (égal au
+     *                     minimum pour une limite fixe)
+     */
+    public DownloadLimiter(int initialLimit, int minLimit, int maxLimit) {
+        configure(initialLimit, minLimit, maxLimit);
+    }
+
+    /**
+     * Changer les bornes du nombre de requêtes simultanées et oublier les
+     * mesures précédentes.
+     */
+    public synchronized void configure(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        baselineNanos = 0;
+        smoothedNanos = 0;
+        notifyAll();
+    }
+
+    /**
+     * Fixer le nombre maximal de requêtes par seconde (quota de la clé IGN).
+     *
+     * @param requestsPerSecond Requêtes par seconde (0 pour illimité)
+     */
+    public synchronized void setRequestsPerSecond(double requestsPerSecond) {
+        if (requestsPerSecond == this.requestsPerSecond) {
+            return;
+        }
+        boolean wasUnlimited = this.requestsPerSecond <= 0;
+        this.requestsPerSecond = requestsPerSecond;
+        tokens = wasUnlimited ? bucketSize() : Math.min(tokens, bucketSize());
+        lastRefill = System.nanoTime();
+        notifyAll();
+    }
+
+    public synchronized double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Nombre de requêtes simultanées autorisées.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Attendre de pouvoir envoyer une requête: moins de {@link #getLimit()}
+     * requêtes en cours et un jeton disponible. Chaque autorisation accordée
+     * doit être rendue par {@link #release()}.
+     *
+     * @return false si l'attente a été interrompue.
+     */
+    public synchronized boolean acquire() {
+        try {
+            while (true) {
+                if (running < (int) limit) {
+                    long waitNanos = takeToken();
+                    if (waitNanos == 0) {
+                        running++;
+                        requestCount++;
+                        return true;
+                    }
+                    wait(Math.max(1, waitNanos / 1000000));
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Rendre l'autorisation obtenue par {@link #acquire()}.
+     */
+    public synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Signaler une réponse du serveur (tuile ou tuile inexistante), avant de
+     * rendre l'autorisation correspondante.
+     *
+     * @param latencyNanos Durée de la requête (en ns)
+     */
+    public synchronized void onResponse(long latencyNanos) {
+        smoothedNanos = smoothedNanos == 0 ? latencyNanos
+                : 0.8 * smoothedNanos + 0.2 * latencyNanos;
+        if (baselineNanos == 0 || latencyNanos < baselineNanos) {
+            baselineNanos = latencyNanos;
+        } else {
+            baselineNanos += BASELINE_DRIFT * (latencyNanos - baselineNanos);
+        }
+
+        if (latencyNanos > LATENCY_TOLERANCE * baselineNanos + LATENCY_SLACK_NS) {
+            decrease(); // File d'attente sur le trajet: réponses ralenties
+        } else if (running >= (int) limit && limit < maxLimit) {
+            // Limite effectivement atteinte: essayer une requête de plus
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Signaler un échec pouvant être dû à une surcharge du serveur ou du
+     * réseau (délai dépassé, HTTP 429 ou 5xx).
+     *
+     * @return true si le nombre de requêtes simultanées était déjà minimal
+     * (échec qui n'est pas imputable à la surcharge).
+     */
+    public synchronized boolean onFailure() {
+        if (limit <= minLimit) {
+            return true;
+        }
+        decrease();
+        return false;
+    }
+
+    /**
+     * Diviser la limite (au plus une fois par durée de réponse).
+     */
+    private void decrease() {
+        if (limit <= minLimit) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (decreaseCount > 0
+                && now - lastDecrease < Math.max(smoothedNanos, LATENCY_SLACK_NS)) {
+            return; // Congestion déjà prise en compte
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+        decreaseCount++;
+    }
+
+    /**
+     * Prendre un jeton dans le seau.
+     *
+     * @return 0 si un jeton a été pris, sinon le délai (en ns) avant le
+     * prochain jeton.
+     */
+    private long takeToken() {
+        if (requestsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(bucketSize(), tokens + (now - lastRefill) * requestsPerSecond / 1e9);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / requestsPerSecond * 1e9);
+    }
+
+    /**
+     * Nombre maximal de jetons (une seconde de requêtes).
+     */
+    private double bucketSize() {
+        return Math.max(1, requestsPerSecond);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadLimiter[limit=" + String.format("%.1f", limit) + ", running=" + running
+                + ", rps=" + (requestsPerSecond > 0 ? requestsPerSecond : "-") + ", baseline="
+                + (long) (baselineNanos / 1000000) + "ms, requests=" + requestCount
+                + ", decreases=" + decreaseCount + "]";
+    }
+}
@@ -0,0 +1,381 @@
+package fr.rg.ignrando.tile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stockage des tuiles sous la forme d'un fichier JPEG par tuile, dans une
+ * arborescence {@code <couche>/<zoom>/<colonne>/<ligne>.jpg} (couches
+ * {@code map}, {@code ortho}, {@code map_hr}, {@code ortho_hr} et
+ * {@code hybrid<opacité>}).
+ * <p/>
+ * Aucun répertoire ne contient ainsi plus de quelques milliers d'entrées,
+ * même lorsque le cache atteint plusieurs millions de tuiles. Les fichiers
+ * sont écrits dans un fichier temporaire puis renommés, de sorte qu'un
+ * lecteur ne voit jamais une tuile partiellement écrite. Une tuile incomplète
+ * (écriture interrompue par l'arrêt de l'application avant cette
+ * modification, par exemple) est supprimée à la lecture et considérée comme
+ * absente.
+ * <p/>
+ * Les tuiles de l'ancien format (un unique répertoire, fichiers nommés
+ * {@code [ortho-]z<zoom>[_hr]-r<ligne>-c<colonne>.jpg}) restent lisibles:
+ * elles sont déplacées dans l'arborescence à leur première lecture ou lors de
+ * la migration ({@link #migrateLegacyFiles()}).
+ */
+public class FileTileStore implements TileStore {
+
+    // Suffixe des fichiers en cours d'écriture
+    private static final String TMP_SUFFIX = ".tmp";
+    // Fichiers temporaires des écritures en cours (toutes instances confondues)
+    private static final Set<File> writing =
+            Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    // Suffixe des fichiers de tuiles
+    private static final String TILE_SUFFIX = ".jpg";
+    // Répertoires des couches (indice: TileStore.LAYER_*)
+    private static final String[] LAYER_DIRS = new String[LAYER_COUNT];
+
+    static {
+        LAYER_DIRS[LAYER_MAP] = "map";
+        LAYER_DIRS[LAYER_ORTHO] = "ortho";
+        LAYER_DIRS[LAYER_MAP_HR] = "map_hr";
+        LAYER_DIRS[LAYER_ORTHO_HR] = "ortho_hr";
+        for (int layer = LAYER_HYBRID; layer < LAYER_COUNT; layer++) {
+            LAYER_DIRS[layer] = "hybrid" + 10 * (layer - LAYER_HYBRID);
+        }
+    }
+
+    // Fichier indiquant que toutes les tuiles sont dans l'arborescence
+    private static final String MIGRATED_MARKER = ".sharded";
+    // Nom d'un fichier de tuile (ancien format)
+    private static final Pattern NAME_PATTERN =
+            Pattern.compile("(ortho-)?z(\\d+)(_hr)?-r(\\d+)-c(\\d+)\\.jpg");
+
+    // Répertoire contenant les tuiles
+    private final File dir;
+    // Des tuiles de l'ancien format peuvent subsister
+    private volatile boolean legacyFiles;
+
+    /**
+     * @param dir Répertoire contenant les tuiles (créé si nécessaire)
+     */
+    public FileTileStore(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        legacyFiles = !new File(dir, MIGRATED_MARKER).exists();
+    }
+
+    /**
+     * Répertoire contenant les tuiles.
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Nom du fichier correspondant à une tuile (ancien format).
+     */
+    public static String fileName(int layer, int zoom, int row, int col) {
+        return TileKey.toString(TileKey.pack(layer, zoom, row, col)) + TILE_SUFFIX;
+    }
+
+    /**
+     * Identifier la tuile correspondant à un nom de fichier (ancien format).
+     *
+     * @param name Nom de fichier
+     * @return Tableau {couche, zoom, ligne, colonne} ou null si le nom ne
+     * correspond pas à une tuile.
+     */
+    public static int[] parseFileName(String name) {
+        Matcher m = NAME_PATTERN.matcher(name);
+        if (!m.matches()) {
+            return null;
+        }
+        boolean ortho = m.group(1) != null;
+        boolean hr = m.group(3) != null;
+        int layer;
+        if (hr) {
+            layer = ortho ? LAYER_ORTHO_HR : LAYER_MAP_HR;
+        } else {
+            layer = ortho ? LAYER_ORTHO : LAYER_MAP;
+        }
+        try {
+            return new int[]{layer, Integer.parseInt(m.group(2)),
+                    Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fichier correspondant à une tuile.
+     */
+    public File getFile(int layer, int zoom, int row, int col) {
+        return new File(dir, LAYER_DIRS[layer] + File.separator + zoom + File.separator + col
+                + File.separator + row + TILE_SUFFIX);
+    }
+
+    /**
+     * Déplacer si nécessaire une tuile de l'ancien format dans
+     * l'arborescence.
+     *
+     * @return true si la tuile a été déplacée.
+     */
+    private boolean moveLegacyFile(int layer, int zoom, int row, int col) {
+        if (!legacyFiles || layer >= LAYER_HYBRID) { // Couche créée depuis le changement
+            return false;
+        }
+        File legacy = new File(dir, fileName(layer, zoom, row, col));
+        if (!legacy.exists()) {
+            return false;
+        }
+        File file = getFile(layer, zoom, row, col);
+        file.getParentFile().mkdirs();
+        // Échec possible si la migration l'a déjà déplacée
+        return legacy.renameTo(file) || file.exists();
+    }
+
+    @Override
+    public byte[] get(int layer, int zoom, int row, int col) {
+        File file = getFile(layer, zoom, row, col);
+        byte[] data = readFile(file);
+        if (data == null && moveLegacyFile(layer, zoom, row, col)) {
+            data = readFile(file);
+        }
+        if (data != null && !TileIntegrity.isComplete(data)) { // Tuile corrompue
+            file.delete();
+            return null;
+        }
+        return data;
+    }
+
+    @Override
+    public boolean contains(int layer, int zoom, int row, int col) {
+        return getFile(layer, zoom, row, col).exists()
+                || moveLegacyFile(layer, zoom, row, col);
+    }
+
+    @Override
+    public boolean put(int layer, int zoom, int row, int col, byte[] data) {
+        File file = getFile(layer, zoom, row, col);
+        // Fichier temporaire propre au fil d'exécution
+        File tmp = new File(file.getParentFile(), file.getName() + "-"
+                + Thread.currentThread().getId() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        writing.add(tmp);
+        try {
+            try {
+                out = new FileOutputStream(tmp);
+            } catch (FileNotFoundException e) { // Premier fichier du répertoire
+                tmp.getParentFile().mkdirs();
+                out = new FileOutputStream(tmp);
+            }
+            out.write(data, 0, data.length);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Renommage impossible: " + tmp);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        } finally { // fermer le flux
+            if (out != null)
+                try {
+                    out.close();
+                } catch (Exception ignored) {
+                }
+            writing.remove(tmp);
+        }
+    }
+
+    @Override
+    public boolean remove(int layer, int zoom, int row, int col) {
+        boolean removed = getFile(layer, zoom, row, col).delete();
+        if (legacyFiles) {
+            removed |= new File(dir, fileName(layer, zoom, row, col)).delete();
+        }
+        return removed;
+    }
+
+    /**
+     * Déplacer toutes les tuiles de l'ancien format dans l'arborescence
+     * (opération longue, à réserver à un fil d'exécution d'arrière-plan). Les
+     * écritures interrompues sont supprimées.
+     *
+     * @return Nombre de tuiles déplacées
+     */
+    public int migrateLegacyFiles() {
+        if (!legacyFiles) {
+            return 0;
+        }
+        int count = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(TMP_SUFFIX)) {
+                    deleteStaleTmp(new File(dir, name));
+                    continue;
+                }
+                int[] id = parseFileName(name);
+                if (id != null && moveLegacyFile(id[0], id[1], id[2], id[3])) {
+                    count++;
+                }
+            }
+        }
+        try {
+            new File(dir, MIGRATED_MARKER).createNewFile();
+            legacyFiles = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return count;
+    }
+
+    /**
+     * Lancer la migration des tuiles de l'ancien format dans un fil
+     * d'exécution d'arrière-plan (s'il en reste).
+     */
+    public void migrateLegacyFilesInBackground() {
+        if (!legacyFiles) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                migrateLegacyFiles();
+            }
+        }, "TileMigration");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void forEach(TileVisitor visitor) {
+        migrateLegacyFiles();
+        for (int layer = 0; layer < LAYER_DIRS.length; layer++) {
+            File layerDir = new File(dir, LAYER_DIRS[layer]);
+            String[] zooms = layerDir.list();
+            if (zooms == null) {
+                continue;
+            }
+            for (String z : zooms) {
+                int zoom = parseIndex(z, "");
+                File zoomDir = new File(layerDir, z);
+                String[] cols = zoom < 0 ? null : zoomDir.list();
+                if (cols == null) {
+                    continue;
+                }
+                for (String c : cols) {
+                    int col = parseIndex(c, "");
+                    File colDir = new File(zoomDir, c);
+                    String[] rows = col < 0 ? null : colDir.list();
+                    if (rows == null) {
+                        continue;
+                    }
+                    for (String name : rows) {
+                        File f = new File(colDir, name);
+                        if (name.endsWith(TMP_SUFFIX)) { // Écriture interrompue ou en cours
+                            deleteStaleTmp(f);
+                            continue;
+                        }
+                        int row = parseIndex(name, TILE_SUFFIX);
+                        if (row >= 0) {
+                            visitor.visit(layer, zoom, row, col, (int) f.length());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Supprimer un fichier temporaire s'il correspond à une écriture
+     * interrompue: celui d'une écriture en cours (par un autre fil
+     * d'exécution) est conservé, quel que soit son âge.
+     */
+    private static void deleteStaleTmp(File tmp) {
+        if (!writing.contains(tmp)) {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Indice contenu dans un nom de fichier ou de répertoire.
+     *
+     * @param name   Nom
+     * @param suffix Suffixe attendu
+     * @return L'indice ou -1 si le nom ne correspond pas.
+     */
+    private static int parseIndex(String name, String suffix) {
+        if (!name.endsWith(suffix) || name.length() == suffix.length()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Écritures synchrones: rien à faire
+    }
+
+    /**
+     * Lire le contenu d'un fichier de tuile.
+     * <p/>
+     * Le tableau est alloué une seule fois à la taille exacte du fichier et
+     * rempli directement par le canal du fichier (sans tampon intermédiaire ni
+     * copie).
+     *
+     * @param file Fichier de la tuile.
+     * @return Tableau d'octets contenant les données de la tuile ou null si le
+     * fichier n'existe pas ou en cas d'erreur de lecture.
+     */
+    public static byte[] readFile(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Fichier trop volumineux: " + file);
+            }
+            byte[] data = new byte[(int) size];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("Fichier tronqué: " + file);
+                }
+            }
+            return data;
+        } catch (FileNotFoundException e) { // Tuile absente
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally { // fermer le flux
+            if (in != null)
+                try {
+                    in.close();
+                } catch (Exception ignored) {
+                }
+        }
+    }
+}
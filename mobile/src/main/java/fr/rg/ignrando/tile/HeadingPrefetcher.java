@@ -0,0 +1,218 @@
+package fr.rg.ignrando.tile;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Téléchargement anticipé des tuiles devant le randonneur pendant
+ * l'enregistrement d'une trace.
+ * <p/>
+ * La direction et la vitesse sont estimées à partir des dernières
+ * positions; les tuiles des niveaux 16 puis 15 couvrant un couloir allant de
+ * la position courante jusqu'à la position extrapolée (quelques minutes plus
+ * tard) sont téléchargées en une seule rafale, en tâche de fond de faible
+ * priorité. Une nouvelle rafale n'est déclenchée que lorsqu'une partie
+ * significative du couloir a été parcourue ou que la direction a changé, de
+ * façon à regrouper l'activité radio au lieu de réveiller le réseau à chaque
+ * position.
+ * <p/>
+ * Aucune rafale n'est lancée pendant le mode hors ligne: elle est reportée
+ * à la première position reçue après son expiration. La rafale en cours ou
+ * en attente est abandonnée à l'arrêt de l'enregistrement ({@link #cancel()}).
+ */
+public class HeadingPrefetcher {
+
+    // Niveaux de zoom téléchargés (les plus détaillés en premier)
+    private static final int[] ZOOMS = {16, 15};
+    // Nombre de positions utilisées pour estimer le déplacement
+    private static final int HISTORY = 5;
+    // Durée anticipée (en s) et bornes de la longueur du couloir (en m)
+    private static final double LOOKAHEAD_S = 15 * 60;
+    private static final double MIN_LOOKAHEAD_M = 500;
+    private static final double MAX_LOOKAHEAD_M = 3000;
+    // Demi-largeur du couloir (en m)
+    private static final double BUFFER_M = 300;
+    // Vitesse (en m/s) en dessous de laquelle la direction est ignorée
+    private static final double MIN_SPEED = 0.3;
+    // Changement de direction (en degrés) provoquant une nouvelle rafale
+    private static final double HEADING_CHANGE = 45;
+    // Mètres par degré de latitude
+    private static final double METERS_PER_DEGREE = 111320;
+
+    // Fil de téléchargement unique (partagé par le processus)
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "HeadingPrefetch");
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final TilePrefetcher.TileLoader loader;
+    private final DownloadBackoff backoff;
+    // Dernières positions (tampon circulaire)
+    private final double[] lats = new double[HISTORY];
+    private final double[] longs = new double[HISTORY];
+    private final long[] times = new long[HISTORY];
+    private int count;
+    // Origine, direction et longueur du couloir de la dernière rafale
+    private boolean hasBurst;
+    private double burstLat, burstLong, burstHeading, burstLength;
+    // Incrémenté à chaque annulation: une rafale d'une génération précédente
+    // s'interrompt
+    private volatile int generation;
+    // Rafale en cours
+    private final AtomicBoolean running = new AtomicBoolean();
+    // Statistiques
+    private volatile int burstCount, tileCount, failedCount;
+
+    /**
+     * @param loader  Téléchargement d'une tuile dans le cache disque
+     * @param backoff Suivi du mode hors ligne
+     */
+    public HeadingPrefetcher(TilePrefetcher.TileLoader loader, DownloadBackoff backoff) {
+        this.loader = loader;
+        this.backoff = backoff;
+    }
+
+    /**
+     * Oublier les positions précédentes (nouvel enregistrement).
+     */
+    public synchronized void reset() {
+        count = 0;
+        hasBurst = false;
+    }
+
+    /**
+     * Abandonner la rafale en cours ou en attente (fin de l'enregistrement):
+     * elle s'interrompt avant sa prochaine tuile.
+     */
+    public synchronized void cancel() {
+        generation++;
+        hasBurst = false;
+    }
+
+    /**
+     * Prendre en compte une nouvelle position et lancer si nécessaire une
+     * rafale de téléchargements (retour immédiat).
+     *
+     * @param latitude  Latitude (en degrés)
+     * @param longitude Longitude (en degrés)
+     * @param timeMs    Date de la position (en ms)
+     */
+    public synchronized void onLocation(double latitude, double longitude, long timeMs) {
+        int i = count % HISTORY;
+        lats[i] = latitude;
+        longs[i] = longitude;
+        times[i] = timeMs;
+        count++;
+
+        // Déplacement depuis la plus ancienne position conservée
+        int oldest = count > HISTORY ? count % HISTORY : 0;
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        double north = (latitude - lats[oldest]) * METERS_PER_DEGREE;
+        double east = (longitude - longs[oldest]) * METERS_PER_DEGREE * cosLat;
+        double dt = (timeMs - times[oldest]) / 1000.0;
+        double speed = dt > 0 ? Math.sqrt(north * north + east * east) / dt : 0;
+        boolean moving = speed >= MIN_SPEED;
+        double heading = Math.toDegrees(Math.atan2(east, north));
+        double length = moving ? Math.max(MIN_LOOKAHEAD_M,
+                Math.min(MAX_LOOKAHEAD_M, speed * LOOKAHEAD_S)) : 0;
+
+        // Nouvelle rafale nécessaire ?
+        if (hasBurst) {
+            double dn = (latitude - burstLat) * METERS_PER_DEGREE;
+            double de = (longitude - burstLong) * METERS_PER_DEGREE * cosLat;
+            double covered = Math.sqrt(dn * dn + de * de);
+            double turn = Math.abs(heading - burstHeading) % 360;
+            turn = Math.min(turn, 360 - turn);
+            if (covered < Math.max(burstLength, MIN_LOOKAHEAD_M) / 3
+                    && (!moving || burstLength == 0 || turn < HEADING_CHANGE)) {
+                return;
+            }
+        }
+        if (backoff.isOffline() || !running.compareAndSet(false, true)) {
+            return; // Reporter à la prochaine position
+        }
+        hasBurst = true;
+        burstLat = latitude;
+        burstLong = longitude;
+        burstHeading = heading;
+        burstLength = length;
+
+        // Couloir entre la position courante et la position extrapolée
+        final double[] cLats, cLongs;
+        if (moving) {
+            double rad = Math.toRadians(heading);
+            cLats = new double[]{latitude,
+                    latitude + length * Math.cos(rad) / METERS_PER_DEGREE};
+            cLongs = new double[]{longitude,
+                    longitude + length * Math.sin(rad) / (METERS_PER_DEGREE * cosLat)};
+        } else {
+            cLats = new double[]{latitude};
+            cLongs = new double[]{longitude};
+        }
+        final int burstGeneration = generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    burst(cLats, cLongs, burstGeneration);
+                } finally {
+                    running.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Télécharger les tuiles d'un couloir (tuiles déjà présentes ignorées par
+     * le chargement).
+     *
+     * @param burstGeneration Génération de la rafale (abandon si elle a été
+     *                        annulée depuis)
+     */
+    private void burst(double[] cLats, double[] cLongs, int burstGeneration) {
+        burstCount++;
+        for (int zoom : ZOOMS) {
+            long[] tiles = TileArea.corridor(cLats, cLongs, BUFFER_M, zoom);
+            for (long tile : tiles) {
+                if (generation != burstGeneration) { // Enregistrement terminé
+                    return;
+                }
+                if (backoff.isOffline()) { // Plus de réseau: abandonner la rafale
+                    synchronized (this) {
+                        hasBurst = false;
+                    }
+                    return;
+                }
+                int result;
+                try {
+                    result = loader.load(zoom, TileArea.row(tile), TileArea.col(tile));
+                } catch (CancellationException e) { // Serveur saturé ou tuile abandonnée
+                    result = TilePrefetcher.RESULT_FAILED;
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    result = TilePrefetcher.RESULT_FAILED;
+                }
+                if (result == TilePrefetcher.RESULT_LOADED) {
+                    tileCount++;
+                } else if (result == TilePrefetcher.RESULT_FAILED) {
+                    failedCount++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HeadingPrefetcher[bursts=" + burstCount + ", tiles=" + tileCount + ", failed="
+                + failedCount + "]";
+    }
+}
@@ -0,0 +1,165 @@
+package fr.rg.ignrando.tile;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Fourniture des tuiles de la vue hybride IGN: photographies aériennes
+ * recouvertes de la carte avec une opacité réglable.
+ * <p/>
+ * Les deux tuiles sources sont fournies par leurs chaînes respectives
+ * ({@link TilePipeline}, cache disque compris) puis superposées une seule
+ * fois; le mélange est conservé comme une couche à part entière
+ * ({@link TileStore#LAYER_HYBRID} + opacité en dizaines de pourcents). La
+ * carte n'affiche ainsi qu'une seule couche de tuiles, au lieu de deux
+ * couches superposées à décoder et mélanger à chaque affichage.
+ * <p/>
+ * Les tuiles de la vue d'ensemble évoluent au fil des tuiles ajoutées au
+ * cache: leur mélange n'est conservé dans aucun cache.
+ */
+public class HybridTilePipeline {
+
+    // Chaînes des tuiles sources
+    private final TilePipeline map;
+    private final TilePipeline ortho;
+    // Cache disque pour les mélanges (celui des cartes)
+    private final TileStore store;
+    // Traitements d'images
+    private final TileImageCodec codec;
+    // Opacité de la carte (en pourcents et de 0 à 1)
+    private final int mapAlphaPercent;
+    private final float mapAlpha;
+    // Couche des mélanges dans le cache
+    private final int layer;
+    // Mélanges en cours (un seul par tuile)
+    private final SingleFlight<Long, byte[]> inFlight = new SingleFlight<Long, byte[]>();
+    // Cache mémoire (partagé) devant le cache disque
+    private final TileMemoryCache memoryCache = TileMemoryCache.getInstance();
+    // Statistiques de fourniture des tuiles
+    private final TileMetrics metrics = TileMetrics.getInstance();
+
+    /**
+     * @param map             Chaîne des cartes
+     * @param ortho           Chaîne des photographies aériennes
+     * @param mapAlphaPercent Opacité de la carte (en pourcents, arrondie à la
+     *                        dizaine)
+     */
+    public HybridTilePipeline(TilePipeline map, TilePipeline ortho, int mapAlphaPercent) {
+        this.map = map;
+        this.ortho = ortho;
+        store = map.getStore();
+        codec = map.getCodec();
+        int tenths = Math.max(0, Math.min(10, Math.round(mapAlphaPercent / 10f)));
+        mapAlpha = tenths / 10f;
+        this.mapAlphaPercent = mapAlphaPercent;
+        layer = TileStore.LAYER_HYBRID + tenths;
+        inFlight.setWaitCounter(metrics.lockWaitCounter());
+    }
+
+    /**
+     * Opacité de la carte demandée (en pourcents).
+     */
+    public int getMapAlphaPercent() {
+        return mapAlphaPercent;
+    }
+
+    /**
+     * Dimension (en pixels) des tuiles d'un niveau de zoom.
+     *
+     * @param ignScale Niveau de zoom.
+     */
+    public int getTileDim(int ignScale) {
+        return map.getTileDim(ignScale);
+    }
+
+    /**
+     * Fournir les données d'une tuile mélangée. Si une seule des tuiles
+     * sources est disponible, elle est fournie telle quelle (sans être
+     * conservée); si aucune ne l'est, la tuile est celle de la carte
+     * (tuile vide ou remplacement hors ligne).
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return Les données (compressées) de la tuile ou null si elle est
+     * indisponible.
+     * @throws CancellationException si la tuile est sortie de la zone
+     *                               affichée avant son téléchargement
+     */
+    public byte[] getTileImage(final int c, final int r, final int ignScale) {
+        if (ignScale < TilePipeline.MIN_OVERVIEW_SCALE
+                || ignScale > TilePipeline.MAX_OVERZOOM_SCALE) { // Tuile vide
+            return map.getTileImage(c, r, ignScale);
+        }
+        if (ignScale <= TilePipeline.MAX_OVERVIEW_SCALE) { // Vue d'ensemble
+            byte[] image = blendTile(c, r, ignScale);
+            return image != null ? image : partialTile(c, r, ignScale);
+        }
+
+        long key = TileKey.pack(layer, ignScale, r, c);
+        long start = System.nanoTime();
+        byte[] image = memoryCache.get(key);
+        if (image != null) {
+            metrics.record(TileMetrics.MEMORY, ignScale, System.nanoTime() - start);
+            return image;
+        }
+        image = inFlight.execute(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                long start = System.nanoTime();
+                byte[] image = store.get(layer, ignScale, r, c);
+                if (image != null) { // Récupérer depuis le cache disque
+                    metrics.record(TileMetrics.DISK, ignScale, System.nanoTime() - start);
+                    return image;
+                }
+                image = blendTile(c, r, ignScale);
+                if (image != null) {
+                    store.put(layer, ignScale, r, c, image);
+                    metrics.addBytesWritten(image.length);
+                }
+                return image;
+            }
+        });
+        if (image == null) { // Une source au moins est indisponible
+            return partialTile(c, r, ignScale);
+        }
+        memoryCache.put(key, image);
+        return image;
+    }
+
+    /**
+     * Superposer la carte aux photographies aériennes.
+     *
+     * @return Les données (compressées) de la tuile ou null si l'une des
+     * tuiles sources est indisponible.
+     */
+    private byte[] blendTile(int c, int r, int ignScale) {
+        byte[] photo = ortho.getSourceTileImage(c, r, ignScale);
+        if (photo == null || ortho.isEmptyTile(photo)) {
+            return null;
+        }
+        byte[] drawing = map.getSourceTileImage(c, r, ignScale);
+        if (drawing == null || map.isEmptyTile(drawing)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] image = codec.blend(photo, drawing, mapAlpha, getTileDim(ignScale), ignScale);
+        if (image != null) {
+            metrics.record(TileMetrics.HYBRID, ignScale, System.nanoTime() - start);
+        }
+        return image;
+    }
+
+    /**
+     * Tuile fournie lorsque le mélange est impossible: la photographie si
+     * elle est disponible (déjà dans le cache mémoire suite à la tentative de
+     * mélange) ou, à défaut, la tuile de la carte.
+     */
+    private byte[] partialTile(int c, int r, int ignScale) {
+        byte[] photo = ortho.getSourceTileImage(c, r, ignScale);
+        if (photo != null && !ortho.isEmptyTile(photo)) {
+            return photo;
+        }
+        return map.getTileImage(c, r, ignScale);
+    }
+}
@@ -0,0 +1,414 @@
+package fr.rg.ignrando.tile;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fr.rg.ignrando.MainActivity;
+
+/**
+ * Stockage des tuiles dans un unique fichier SQLite inspiré du format MBTiles.
+ * <p/>
+ * La table {@code tiles} ajoute une colonne {@code layer} aux colonnes MBTiles
+ * habituelles et les lignes sont numérotées depuis le nord (schéma WMTS/XYZ et
+ * non TMS). Les écritures sont regroupées et effectuées par lots, dans une
+ * transaction, par un fil d'exécution de faible priorité; les tuiles en
+ * attente d'écriture restent lisibles.
+ */
+public class MBTilesTileStore implements TileStore {
+
+    // Nombre de tuiles déclenchant une écriture immédiate
+    private static final int BATCH_SIZE = 32;
+    // Délai maximal avant l'écriture des tuiles en attente (en ms)
+    private static final long FLUSH_DELAY_MS = 2000;
+    // Taille maximale d'une tuile (limite des fenêtres de curseur SQLite)
+    private static final int MAX_TILE_BYTES = 1024 * 1024;
+
+    private static final String TABLE_TILES = "tiles";
+    private static final String TABLE_METADATA = "metadata";
+    private static final String WHERE_TILE =
+            "layer=? AND zoom_level=? AND tile_column=? AND tile_row=?";
+
+    // Base de données
+    private final DbHelper helper;
+    // Tuiles en attente d'écriture
+    private final HashMap<Long, PendingTile> pending = new HashMap<Long, PendingTile>();
+    // Écriture différée des tuiles
+    private final ScheduledExecutorService writer;
+    private boolean flushScheduled = false;
+    // Des tuiles ont été supprimées depuis la dernière récupération d'espace
+    private volatile boolean needsVacuum = false;
+
+    /**
+     * Tuile en attente d'écriture.
+     */
+    private static class PendingTile {
+        final int layer, zoom, row, col;
+        final byte[] data;
+
+        PendingTile(int layer, int zoom, int row, int col, byte[] data) {
+            this.layer = layer;
+            this.zoom = zoom;
+            this.row = row;
+            this.col = col;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Création et mise à jour du schéma de la base.
+     */
+    private static class DbHelper extends SQLiteOpenHelper {
+        private static final int DB_VERSION = 1;
+
+        DbHelper(Context context, File dbFile) {
+            super(context, dbFile.getAbsolutePath(), null, DB_VERSION);
+            // Lectures concurrentes pendant les écritures
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Permettre de restituer l'espace des tuiles supprimées
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_METADATA
+                    + " (name TEXT PRIMARY KEY, value TEXT)");
+            db.execSQL("CREATE TABLE " + TABLE_TILES + " ("
+                    + "layer INTEGER NOT NULL, "
+                    + "zoom_level INTEGER NOT NULL, "
+                    + "tile_column INTEGER NOT NULL, "
+                    + "tile_row INTEGER NOT NULL, "
+                    + "tile_data BLOB NOT NULL, "
+                    + "PRIMARY KEY (layer, zoom_level, tile_column, tile_row))");
+
+            ContentValues values = new ContentValues();
+            values.put("name", "name");
+            values.put("value", "ignmaps");
+            db.insert(TABLE_METADATA, null, values);
+            values.put("name", "format");
+            values.put("value", "jpg");
+            db.insert(TABLE_METADATA, null, values);
+            values.put("name", "scheme");
+            values.put("value", "xyz");
+            db.insert(TABLE_METADATA, null, values);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    /**
+     * @param context Contexte de l'application
+     * @param dbFile  Fichier de la base de données
+     */
+    public MBTilesTileStore(Context context, File dbFile) {
+        helper = new DbHelper(context.getApplicationContext(), dbFile);
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "MBTilesWriter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public byte[] get(int layer, int zoom, int row, int col) {
+        synchronized (pending) {
+            PendingTile p = pending.get(TileKey.pack(layer, zoom, row, col));
+            if (p != null) {
+                return p.data;
+            }
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(TABLE_TILES,
+                    new String[]{"tile_data"}, WHERE_TILE,
+                    args(layer, zoom, row, col), null, null, null);
+            if (cursor.moveToFirst()) {
+                return cursor.getBlob(0);
+            }
+            return null;
+        } catch (RuntimeException e) { // SQLiteException, fenêtre de curseur...
+            Log.e(MainActivity.DEBUG_TAG, "MBTiles get", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(int layer, int zoom, int row, int col) {
+        synchronized (pending) {
+            if (pending.containsKey(TileKey.pack(layer, zoom, row, col))) {
+                return true;
+            }
+        }
+        try {
+            return DatabaseUtils.queryNumEntries(helper.getReadableDatabase(),
+                    TABLE_TILES, WHERE_TILE, args(layer, zoom, row, col)) > 0;
+        } catch (RuntimeException e) {
+            Log.e(MainActivity.DEBUG_TAG, "MBTiles contains", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean put(int layer, int zoom, int row, int col, byte[] data) {
+        if (data.length > MAX_TILE_BYTES) { // Illisible ensuite par un curseur
+            return false;
+        }
+        synchronized (pending) {
+            pending.put(TileKey.pack(layer, zoom, row, col),
+                    new PendingTile(layer, zoom, row, col, data));
+            if (pending.size() >= BATCH_SIZE) {
+                writer.execute(flushTask);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                writer.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(int layer, int zoom, int row, int col) {
+        boolean removed;
+        synchronized (pending) {
+            removed = pending.remove(TileKey.pack(layer, zoom, row, col)) != null;
+        }
+        try {
+            removed |= helper.getWritableDatabase().delete(TABLE_TILES, WHERE_TILE,
+                    args(layer, zoom, row, col)) > 0;
+        } catch (RuntimeException e) {
+            Log.e(MainActivity.DEBUG_TAG, "MBTiles remove", e);
+        }
+        if (removed) {
+            needsVacuum = true;
+        }
+        return removed;
+    }
+
+    @Override
+    public void forEach(TileVisitor visitor) {
+        flush();
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().rawQuery("SELECT layer, zoom_level, "
+                    + "tile_row, tile_column, length(tile_data) FROM " + TABLE_TILES, null);
+            while (cursor.moveToNext()) {
+                visitor.visit(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2),
+                        cursor.getInt(3), cursor.getInt(4));
+            }
+        } catch (RuntimeException e) {
+            Log.e(MainActivity.DEBUG_TAG, "MBTiles forEach", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Écrire les tuiles en attente puis, si des tuiles ont été supprimées,
+     * restituer l'espace libéré au système de fichiers.
+     */
+    @Override
+    public void flush() {
+        try {
+            writer.submit(flushTask).get();
+            if (needsVacuum) {
+                needsVacuum = false;
+                Cursor cursor = helper.getWritableDatabase()
+                        .rawQuery("PRAGMA incremental_vacuum", null);
+                while (cursor.moveToNext()) {
+                    // Le nettoyage progresse à chaque ligne lue
+                }
+                cursor.close();
+            }
+        } catch (Exception e) {
+            Log.e(MainActivity.DEBUG_TAG, "MBTiles flush", e);
+        }
+    }
+
+    /**
+     * Écriture des tuiles en attente dans une seule transaction.
+     */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            List<PendingTile> batch;
+            synchronized (pending) {
+                flushScheduled = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<PendingTile>(pending.values());
+            }
+
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) {
+                Log.e(MainActivity.DEBUG_TAG, "MBTiles write", e);
+            }
+
+            // Les tuiles écrites ne sont plus en attente (sauf si elles ont été
+            // remplacées entre temps)
+            synchronized (pending) {
+                for (PendingTile p : batch) {
+                    long k = TileKey.pack(p.layer, p.zoom, p.row, p.col);
+                    if (pending.get(k) == p) {
+                        pending.remove(k);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Écrire un lot de tuiles dans une transaction.
+     */
+    private void writeBatch(List<PendingTile> batch) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                + TABLE_TILES + " (layer, zoom_level, tile_column, tile_row, tile_data)"
+                + " VALUES (?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (PendingTile p : batch) {
+                insert.clearBindings();
+                insert.bindLong(1, p.layer);
+                insert.bindLong(2, p.zoom);
+                insert.bindLong(3, p.col);
+                insert.bindLong(4, p.row);
+                insert.bindBlob(5, p.data);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Importer (une seule fois) les tuiles d'un répertoire de fichiers JPEG
+     * ({@link FileTileStore}, ancien ou nouveau format). Chaque lot de
+     * fichiers est supprimé après que sa transaction a été validée: une
+     * importation interrompue reprend donc là où elle s'était arrêtée.
+     *
+     * @param dir      Répertoire contenant les fichiers de tuiles
+     * @param imported Appelé pour chaque tuile importée (ou null)
+     * @return Nombre de tuiles importées
+     */
+    public int importFiles(File dir, final TileVisitor imported) {
+        if (!dir.isDirectory()) {
+            return 0;
+        }
+
+        final FileTileStore files = new FileTileStore(dir);
+        final List<PendingTile> batch = new ArrayList<PendingTile>();
+        final List<File> batchFiles = new ArrayList<File>();
+        final int[] count = {0};
+        files.forEach(new TileVisitor() {
+            @Override
+            public void visit(int layer, int zoom, int row, int col, int size) {
+                File f = files.getFile(layer, zoom, row, col);
+                byte[] data = FileTileStore.readFile(f);
+                // Les tuiles corrompues ne sont pas importées (fichier supprimé)
+                if (TileIntegrity.isComplete(data) && data.length <= MAX_TILE_BYTES) {
+                    batch.add(new PendingTile(layer, zoom, row, col, data));
+                }
+                batchFiles.add(f);
+
+                if (batchFiles.size() >= BATCH_SIZE) {
+                    count[0] += importBatch(batch, batchFiles, imported);
+                }
+            }
+        });
+        if (!batchFiles.isEmpty()) {
+            count[0] += importBatch(batch, batchFiles, imported);
+        }
+        Log.d(MainActivity.DEBUG_TAG, "MBTiles: " + count[0] + " tuiles importées");
+        return count[0];
+    }
+
+    /**
+     * Écrire un lot de tuiles importées puis supprimer leurs fichiers.
+     */
+    private int importBatch(List<PendingTile> batch, List<File> files,
+                            TileVisitor imported) {
+        int n = batch.size();
+        try {
+            writeBatch(batch);
+            for (File f : files) {
+                f.delete();
+            }
+            if (imported != null) {
+                for (PendingTile p : batch) {
+                    imported.visit(p.layer, p.zoom, p.row, p.col, p.data.length);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(MainActivity.DEBUG_TAG, "MBTiles import", e);
+            n = 0;
+        }
+        batch.clear();
+        files.clear();
+        return n;
+    }
+
+    /**
+     * Lancer l'importation des tuiles d'un répertoire avec le fil d'exécution
+     * d'écriture.
+     *
+     * @param dir      Répertoire contenant les fichiers de tuiles
+     * @param imported Appelé pour chaque tuile importée (ou null)
+     */
+    public void importFilesInBackground(final File dir, final TileVisitor imported) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                importFiles(dir, imported);
+            }
+        });
+    }
+
+    /**
+     * Arguments de sélection d'une tuile.
+     */
+    private static String[] args(int layer, int zoom, int row, int col) {
+        return new String[]{Integer.toString(layer), Integer.toString(zoom),
+                Integer.toString(col), Integer.toString(row)};
+    }
+}
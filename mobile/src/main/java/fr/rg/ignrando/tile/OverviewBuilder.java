@@ -0,0 +1,130 @@
+package fr.rg.ignrando.tile;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Construction en arrière-plan des tuiles de vue d'ensemble (niveaux
+ * reconstitués à partir des 4 tuiles du niveau supérieur).
+ * <p/>
+ * Chaque fois qu'une tuile est enregistrée dans le cache disque, sa tuile
+ * parente est programmée pour être construite dès que ses 4 sous-tuiles sont
+ * présentes. La pyramide est ainsi construite une seule fois, de bas en haut,
+ * et la lecture d'une tuile de vue d'ensemble se réduit à une lecture du
+ * cache disque.
+ * <p/>
+ * Les niveaux les plus bas (jusqu'à {@code partialZoom}) couvrent une zone
+ * bien plus vaste que les tuiles réellement en cache: leurs tuiles sont
+ * construites à partir des sous-tuiles disponibles et reconstruites à
+ * l'arrivée de chaque nouvelle sous-tuile.
+ * <p/>
+ * Les constructions de tous les stockages sont effectuées par un unique fil
+ * d'exécution de faible priorité.
+ */
+public class OverviewBuilder {
+
+    /**
+     * Construction (et enregistrement) d'une tuile à partir de ses 4
+     * sous-tuiles.
+     */
+    public interface TileBuilder {
+        /**
+         * @param zoom Niveau de zoom de la tuile
+         * @param row  Indice de ligne
+         * @param col  Indice de colonne
+         */
+        void build(int zoom, int row, int col);
+    }
+
+    // Fil de construction partagé
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "OverviewBuilder");
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final TileStore store;
+    private final int layer;
+    private final int minZoom;
+    private final int partialZoom;
+    private final TileBuilder builder;
+    // Tuiles programmées et non encore traitées
+    private final Set<Long> pending = Collections.synchronizedSet(new HashSet<Long>());
+
+    /**
+     * @param store       Cache disque
+     * @param layer       Couche des tuiles
+     * @param minZoom     Niveau de zoom le plus bas à construire
+     * @param partialZoom Niveau de zoom le plus élevé dont les tuiles sont
+     *                    construites à partir des sous-tuiles disponibles
+     * @param builder     Construction d'une tuile
+     */
+    public OverviewBuilder(TileStore store, int layer, int minZoom, int partialZoom,
+                           TileBuilder builder) {
+        this.store = store;
+        this.layer = layer;
+        this.minZoom = minZoom;
+        this.partialZoom = partialZoom;
+        this.builder = builder;
+    }
+
+    /**
+     * Signaler l'enregistrement d'une tuile: sa tuile parente est programmée
+     * si elle n'existe pas encore.
+     *
+     * @param zoom Niveau de zoom de la tuile enregistrée
+     * @param row  Indice de ligne
+     * @param col  Indice de colonne
+     */
+    public void onTileStored(int zoom, int row, int col) {
+        final int pZoom = zoom - 1;
+        if (pZoom < minZoom) {
+            return;
+        }
+        final int pRow = row >> 1, pCol = col >> 1;
+        final long key = TileKey.pack(layer, pZoom, pRow, pCol);
+        if (!pending.add(key)) {
+            return; // Déjà programmée
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pending.remove(key);
+                int z = pZoom + 1, r = 2 * pRow, c = 2 * pCol;
+                boolean build;
+                if (pZoom <= partialZoom) { // Compléter la tuile (partielle)
+                    build = true;
+                } else if (store.contains(layer, pZoom, pRow, pCol)) {
+                    build = false;
+                } else { // Attendre que les 4 sous-tuiles soient présentes
+                    build = store.contains(layer, z, r, c) && store.contains(layer, z, r, c + 1)
+                            && store.contains(layer, z, r + 1, c)
+                            && store.contains(layer, z, r + 1, c + 1);
+                }
+                if (build) {
+                    try {
+                        builder.build(pZoom, pRow, pCol);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Nombre de tuiles programmées.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+}
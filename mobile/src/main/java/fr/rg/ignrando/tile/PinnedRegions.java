@@ -0,0 +1,413 @@
+package fr.rg.ignrando.tile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import fr.rg.ignrando.util.WMTS;
+
+/**
+ * Zones épinglées du cache disque: leurs tuiles ne sont jamais supprimées
+ * pour respecter le budget du cache ({@link BoundedTileStore}), afin que les
+ * tuiles d'une prochaine randonnée ne soient pas évincées par la simple
+ * consultation de la carte.
+ * <p/>
+ * Une zone est nommée et définie par un rectangle géographique ou par un
+ * couloir autour d'une trace, ainsi que par un intervalle de niveaux de zoom.
+ * Une tuile est épinglée quelle que soit sa couche (carte, photographies,
+ * vue hybride).
+ * <p/>
+ * Les tuiles des zones sont réunies dans un index par blocs
+ * ({@link TilePresenceIndex}): le test d'une tuile ne coûte qu'une recherche
+ * dans un tableau, quel que soit le nombre de zones et de tuiles. Les zones
+ * sont sauvegardées dans un fichier et leurs tuiles recalculées au
+ * chargement ({@link #ensureLoaded()}), effectué hors du fil principal par
+ * le fil de chargement de l'index du cache.
+ */
+public class PinnedRegions {
+
+    // Identifiant du format du fichier
+    private static final int FILE_MAGIC = 0x50494e31; // "PIN1"
+    // Couche sous laquelle les tuiles sont rangées (toutes couches confondues)
+    private static final int ANY_LAYER = 0;
+    // Nombre maximal de tuiles d'une zone (tous niveaux confondus)
+    public static final int MAX_REGION_TILES = 1 << 16;
+
+    /**
+     * Objet à prévenir lorsque les zones changent.
+     */
+    public interface Listener {
+        void onPinsChanged();
+    }
+
+    /**
+     * Zone épinglée (non modifiable), d'au plus {@link #MAX_REGION_TILES}
+     * tuiles.
+     */
+    public static class Region {
+        private final String name;
+        private final boolean corridor;
+        // Rectangle: {latMin, latMax} et {longMin, longMax}; couloir: positions
+        private final double[] lats, longs;
+        // Largeur du couloir de part et d'autre de la trace (en m)
+        private final double buffer;
+        private final int minZoom, maxZoom;
+        // Tuiles de la zone (tous niveaux)
+        private final TilePresenceIndex tiles = new TilePresenceIndex();
+
+        private Region(String name, boolean corridor, double[] lats, double[] longs,
+                       double buffer, int minZoom, int maxZoom) {
+            this.name = name;
+            this.corridor = corridor;
+            this.lats = lats;
+            this.longs = longs;
+            this.buffer = buffer;
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+            long count = 0;
+            for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+                if (corridor) {
+                    long[] area = TileArea.corridor(lats, longs, buffer, zoom);
+                    count += area.length;
+                    checkSize(count);
+                    for (long t : area) {
+                        tiles.add(ANY_LAYER, zoom, TileArea.row(t), TileArea.col(t));
+                    }
+                } else { // Taille vérifiée avant d'ajouter les tuiles ligne par ligne
+                    count += TileArea.boxSize(lats[0], lats[1], longs[0], longs[1], zoom);
+                    checkSize(count);
+                    int rowMin = WMTS.latToTileRow(lats[1], zoom); // axe nord -> sud
+                    int rowMax = WMTS.latToTileRow(lats[0], zoom);
+                    int colMin = WMTS.longToTileCol(longs[0], zoom);
+                    int colMax = WMTS.longToTileCol(longs[1], zoom);
+                    for (int r = rowMin; r <= rowMax; r++) {
+                        for (int c = colMin; c <= colMax; c++) {
+                            tiles.add(ANY_LAYER, zoom, r, c);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @throws IllegalArgumentException si la zone compte trop de tuiles
+         */
+        private void checkSize(long count) {
+            if (count > MAX_REGION_TILES) {
+                throw new IllegalArgumentException("Zone trop grande: " + name + " (plus de "
+                        + MAX_REGION_TILES + " tuiles)");
+            }
+        }
+
+        /**
+         * Zone rectangulaire.
+         *
+         * @param name    Nom de la zone
+         * @param latMin  Latitude minimale (en degrés)
+         * @param latMax  Latitude maximale (en degrés)
+         * @param longMin Longitude minimale (en degrés)
+         * @param longMax Longitude maximale (en degrés)
+         * @param minZoom Niveau de zoom minimal
+         * @param maxZoom Niveau de zoom maximal
+         * @throws IllegalArgumentException si la zone compte trop de tuiles
+         */
+        public static Region box(String name, double latMin, double latMax, double longMin,
+                                 double longMax, int minZoom, int maxZoom) {
+            return new Region(name, false, new double[]{latMin, latMax},
+                    new double[]{longMin, longMax}, 0, minZoom, maxZoom);
+        }
+
+        /**
+         * Couloir autour d'une trace.
+         *
+         * @param name    Nom de la zone
+         * @param lats    Latitudes des positions de la trace (en degrés)
+         * @param longs   Longitudes des positions de la trace (en degrés)
+         * @param buffer  Largeur du couloir de part et d'autre de la trace (en m)
+         * @param minZoom Niveau de zoom minimal
+         * @param maxZoom Niveau de zoom maximal
+         * @throws IllegalArgumentException si la zone compte trop de tuiles
+         */
+        public static Region corridor(String name, double[] lats, double[] longs,
+                                      double buffer, int minZoom, int maxZoom) {
+            return new Region(name, true, lats.clone(), longs.clone(), buffer, minZoom,
+                    maxZoom);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCorridor() {
+            return corridor;
+        }
+
+        public int getMinZoom() {
+            return minZoom;
+        }
+
+        public int getMaxZoom() {
+            return maxZoom;
+        }
+
+        /**
+         * Nombre de tuiles (par couche) couvrant la zone.
+         */
+        public int getTileCount() {
+            return tiles.size();
+        }
+
+        /**
+         * Indiquer si une tuile (de n'importe quelle couche) appartient à la
+         * zone.
+         */
+        public boolean contains(int zoom, int row, int col) {
+            return tiles.contains(ANY_LAYER, zoom, row, col);
+        }
+
+        @Override
+        public String toString() {
+            return name + (corridor ? " (trace, " : " (zone, ") + minZoom + "-" + maxZoom
+                    + ", " + tiles.size() + " tuiles)";
+        }
+    }
+
+    // Fichier de sauvegarde des zones
+    private final File file;
+    private boolean loaded = false;
+    // Zones, dans l'ordre de création
+    private final ArrayList<Region> regions = new ArrayList<Region>();
+    // Réunion des tuiles des zones (remplacée à chaque modification)
+    private volatile TilePresenceIndex pinned = new TilePresenceIndex();
+    private final CopyOnWriteArrayList<Listener> listeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Les zones sauvegardées ne sont chargées que par {@link #ensureLoaded()}
+     * (ou à la première consultation ou modification des zones).
+     *
+     * @param file Fichier de sauvegarde des zones
+     */
+    public PinnedRegions(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Charger les zones sauvegardées et calculer leurs tuiles, si ce n'est
+     * déjà fait (jusqu'à {@link #MAX_REGION_TILES} tuiles par zone: appel à
+     * éviter sur le fil principal).
+     */
+    public synchronized void ensureLoaded() {
+        if (!loaded) {
+            loaded = true;
+            load();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Indiquer si une tuile est épinglée.
+     *
+     * @param key Identifiant de la tuile ({@link TileKey})
+     */
+    public boolean contains(long key) {
+        return pinned.contains(ANY_LAYER, TileKey.zoom(key), TileKey.row(key),
+                TileKey.col(key));
+    }
+
+    /**
+     * Nombre de tuiles épinglées (par couche, zones réunies).
+     */
+    public int getTileCount() {
+        return pinned.size();
+    }
+
+    /**
+     * Zones épinglées, dans l'ordre de création.
+     */
+    public synchronized List<Region> getRegions() {
+        ensureLoaded();
+        return new ArrayList<Region>(regions);
+    }
+
+    /**
+     * Épingler une zone (en remplaçant la zone de même nom).
+     */
+    public void add(Region region) {
+        synchronized (this) {
+            ensureLoaded();
+            removeRegion(region.getName());
+            regions.add(region);
+            update();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Retirer une zone: ses tuiles peuvent de nouveau être supprimées (sauf
+     * si elles appartiennent à une autre zone).
+     *
+     * @param name Nom de la zone
+     * @return false si la zone n'existe pas.
+     */
+    public boolean remove(String name) {
+        synchronized (this) {
+            ensureLoaded();
+            if (!removeRegion(name)) {
+                return false;
+            }
+            update();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    private boolean removeRegion(String name) {
+        for (int i = 0; i < regions.size(); i++) {
+            if (regions.get(i).getName().equals(name)) {
+                regions.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recalculer la réunion des tuiles et sauvegarder les zones (appel sous
+     * verrou).
+     */
+    private void update() {
+        pinned = union();
+        save();
+    }
+
+    /**
+     * Réunir les tuiles des zones (appel sous verrou).
+     */
+    private TilePresenceIndex union() {
+        TilePresenceIndex union = new TilePresenceIndex();
+        for (Region r : regions) {
+            union.addAll(r.tiles);
+        }
+        return union;
+    }
+
+    /**
+     * Prévenir les objets inscrits (appel hors verrou: ils consultent
+     * l'index sous leur propre verrou).
+     */
+    private void notifyListeners() {
+        for (Listener l : listeners) {
+            l.onPinsChanged();
+        }
+    }
+
+    // +-----------------------+
+    // | Fichier des zones     |
+    // +-----------------------+
+
+    /**
+     * Lire le fichier des zones (appel sous verrou).
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                boolean corridor = in.readBoolean();
+                int minZoom = in.readInt();
+                int maxZoom = in.readInt();
+                double buffer = in.readDouble();
+                double[] lats = new double[in.readInt()];
+                double[] longs = new double[lats.length];
+                for (int j = 0; j < lats.length; j++) {
+                    lats[j] = in.readDouble();
+                    longs[j] = in.readDouble();
+                }
+                try {
+                    regions.add(new Region(name, corridor, lats, longs, buffer, minZoom,
+                            maxZoom));
+                } catch (IllegalArgumentException e) { // Zone antérieure à la limite
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (Exception ignored) {
+                }
+        }
+        pinned = union();
+    }
+
+    /**
+     * Sauvegarder les zones (écriture dans un fichier temporaire puis
+     * renommage).
+     */
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(regions.size());
+            for (Region r : regions) {
+                out.writeUTF(r.name);
+                out.writeBoolean(r.corridor);
+                out.writeInt(r.minZoom);
+                out.writeInt(r.maxZoom);
+                out.writeDouble(r.buffer);
+                out.writeInt(r.lats.length);
+                for (int j = 0; j < r.lats.length; j++) {
+                    out.writeDouble(r.lats[j]);
+                    out.writeDouble(r.longs[j]);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Renommage impossible: " + tmp);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (Exception ignored) {
+                }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PinnedRegions[" + regions.size() + " zones, " + pinned.size() + " tuiles, "
+                + pinned.memoryBytes() / 1024 + " ko]";
+    }
+}
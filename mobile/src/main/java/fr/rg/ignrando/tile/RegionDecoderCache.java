@@ -0,0 +1,169 @@
+package fr.rg.ignrando.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Décodeurs de régions des dernières tuiles utilisées pour le sur-zoom.
+ * <p/>
+ * Une tuile de niveau 17 ou plus est une portion d'une tuile de niveau 16:
+ * conserver un {@link BitmapRegionDecoder} par tuile parente permet de ne
+ * décoder que la portion utile, sans décoder à nouveau l'image complète pour
+ * chacune de ses sous-tuiles.
+ */
+public class RegionDecoderCache {
+
+    // Décodeurs (les moins récemment utilisés en premier)
+    private final LinkedHashMap<Long, BitmapRegionDecoder> decoders;
+
+    /**
+     * @param maxSize Nombre maximal de décodeurs conservés
+     */
+    public RegionDecoderCache(final int maxSize) {
+        decoders = new LinkedHashMap<Long, BitmapRegionDecoder>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BitmapRegionDecoder> eldest) {
+                if (size() > maxSize) {
+                    release(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Décoder une portion d'une tuile: la tuile est découpée en
+     * 2<sup>shift</sup> x 2<sup>shift</sup> carrés et celui qui correspond aux
+     * indices indiqués (bits de poids faible) est décodé.
+     *
+     * @param key    Identifiant de la tuile ({@link TileKey#NONE} pour un
+     *               décodeur temporaire, non conservé)
+     * @param source Lecture des données compressées de la tuile (appelée
+     *               uniquement si aucun décodeur n'est disponible)
+     * @param shift  Écart de niveau de zoom
+     * @param col    Indice de colonne de la portion
+     * @param row    Indice de ligne de la portion
+     * @param opts   Options de décodage
+     * @return L'image de la portion ou null si la tuile est indisponible (ou
+     * trop petite).
+     */
+    public Bitmap decodeRegion(long key, Callable<byte[]> source, int shift, int col,
+                               int row, BitmapFactory.Options opts) {
+        if (key == TileKey.NONE) {
+            BitmapRegionDecoder decoder = newDecoder(source);
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                return decodeSubTile(decoder, shift, col, row, opts);
+            } finally {
+                decoder.recycle();
+            }
+        }
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            BitmapRegionDecoder decoder = getDecoder(key, source);
+            if (decoder == null) {
+                return null;
+            }
+            synchronized (decoder) {
+                if (!decoder.isRecycled()) {
+                    return decodeSubTile(decoder, shift, col, row, opts);
+                }
+            }
+            // Décodeur libéré entre-temps: en créer un nouveau
+        }
+        return null;
+    }
+
+    /**
+     * Décoder une portion de tuile avec un décodeur.
+     */
+    private static Bitmap decodeSubTile(BitmapRegionDecoder decoder, int shift, int col,
+                                        int row, BitmapFactory.Options opts) {
+        int dim = decoder.getWidth() >> shift;
+        if (dim == 0) {
+            return null;
+        }
+        int mask = (1 << shift) - 1;
+        int x = (col & mask) * dim, y = (row & mask) * dim;
+        return decoder.decodeRegion(new Rect(x, y, x + dim, y + dim), opts);
+    }
+
+    /**
+     * Créer un décodeur à partir des données d'une tuile.
+     *
+     * @return Le décodeur ou null si la tuile est indisponible.
+     */
+    private static BitmapRegionDecoder newDecoder(Callable<byte[]> source) {
+        try {
+            byte[] data = source.call();
+            if (data == null) {
+                return null;
+            }
+            return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+        } catch (CancellationException e) { // Demande abandonnée
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Récupérer ou créer le décodeur d'une tuile.
+     */
+    private BitmapRegionDecoder getDecoder(long key, Callable<byte[]> source) {
+        synchronized (decoders) {
+            BitmapRegionDecoder decoder = decoders.get(key);
+            if (decoder != null) {
+                return decoder;
+            }
+        }
+
+        // Lire les données hors verrou (éventuel téléchargement)
+        BitmapRegionDecoder decoder = newDecoder(source);
+        if (decoder == null) {
+            return null;
+        }
+
+        synchronized (decoders) {
+            BitmapRegionDecoder previous = decoders.get(key);
+            if (previous != null) { // Créé simultanément par un autre fil
+                release(decoder);
+                return previous;
+            }
+            decoders.put(key, decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Libérer un décodeur (après la fin d'un éventuel décodage en cours).
+     */
+    private static void release(BitmapRegionDecoder decoder) {
+        synchronized (decoder) {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Libérer tous les décodeurs.
+     */
+    public void evictAll() {
+        synchronized (decoders) {
+            for (BitmapRegionDecoder decoder : decoders.values()) {
+                release(decoder);
+            }
+            decoders.clear();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package fr.rg.ignrando.tile;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exécution unique d'un chargement par clé ("single-flight").
+ * <p/>
+ * Le premier fil d'exécution demandant une clé exécute le chargement; les
+ * suivants, tant que celui-ci est en cours, attendent son résultat et le
+ * partagent au lieu de le recalculer. Des clés distinctes ne partagent aucun
+ * verrou: seule la table concurrente des chargements en cours est consultée.
+ *
+ * @param <K> Type de la clé
+ * @param <V> Type du résultat
+ */
+public class SingleFlight<K, V> {
+
+    // Chargements en cours
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight =
+            new ConcurrentHashMap<K, FutureTask<V>>();
+    // Cumul des attentes du résultat d'un autre fil d'exécution (en ns)
+    private volatile AtomicLong waitCounter;
+
+    /**
+     * Cumuler dans un compteur le temps passé à attendre le chargement
+     * effectué par un autre fil d'exécution.
+     *
+     * @param counter Compteur (en ns) ou null
+     */
+    public void setWaitCounter(AtomicLong counter) {
+        waitCounter = counter;
+    }
+
+    /**
+     * Obtenir le résultat associé à une clé, en exécutant le chargement
+     * uniquement si aucun autre fil d'exécution ne le fait déjà.
+     *
+     * @param key    Clé identifiant le résultat
+     * @param loader Chargement à exécuter si nécessaire
+     * @return Le résultat du chargement, ou null si l'attente a été
+     * interrompue.
+     */
+    public V execute(K key, Callable<V> loader) {
+        FutureTask<V> task = inFlight.get(key);
+        boolean shared = true;
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<V>(loader);
+            task = inFlight.putIfAbsent(key, newTask);
+            if (task == null) { // Ce fil d'exécution est chargé du calcul
+                task = newTask;
+                shared = false;
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(key, task);
+                }
+            }
+        }
+
+        AtomicLong counter = waitCounter;
+        long start = shared && counter != null ? System.nanoTime() : 0;
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (start != 0) {
+                counter.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Nombre de chargements actuellement en cours.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
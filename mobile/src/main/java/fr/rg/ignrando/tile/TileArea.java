@@ -0,0 +1,177 @@
+package fr.rg.ignrando.tile;
+
+import java.util.LinkedHashSet;
+
+import fr.rg.ignrando.util.WMTS;
+
+/**
+ * Calcul des ensembles de tuiles couvrant une zone géographique (rectangle
+ * ou couloir autour d'une trace).
+ * <p/>
+ * Les tuiles d'un niveau de zoom sont codées dans un entier long
+ * ({@code ligne << 32 | colonne}), sans doublon, dans l'ordre de parcours de
+ * la zone.
+ */
+public class TileArea {
+
+    /**
+     * Coder une tuile dans un entier long.
+     */
+    public static long pack(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    /**
+     * Indice de ligne d'une tuile codée.
+     */
+    public static int row(long tile) {
+        return (int) (tile >>> 32);
+    }
+
+    /**
+     * Indice de colonne d'une tuile codée.
+     */
+    public static int col(long tile) {
+        return (int) tile;
+    }
+
+    /**
+     * Tuiles couvrant un rectangle géographique.
+     *
+     * @param latMin  Latitude minimale (en degrés)
+     * @param latMax  Latitude maximale (en degrés)
+     * @param longMin Longitude minimale (en degrés)
+     * @param longMax Longitude maximale (en degrés)
+     * @param zoom    Niveau de zoom
+     * @return Tuiles ligne par ligne, du nord au sud.
+     */
+    public static long[] box(double latMin, double latMax, double longMin,
+                             double longMax, int zoom) {
+        int rowMin = WMTS.latToTileRow(latMax, zoom); // axe nord -> sud
+        int rowMax = WMTS.latToTileRow(latMin, zoom);
+        int colMin = WMTS.longToTileCol(longMin, zoom);
+        int colMax = WMTS.longToTileCol(longMax, zoom);
+        long[] tiles = new long[(rowMax - rowMin + 1) * (colMax - colMin + 1)];
+        int i = 0;
+        for (int r = rowMin; r <= rowMax; r++) {
+            for (int c = colMin; c <= colMax; c++) {
+                tiles[i++] = pack(r, c);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Nombre de tuiles couvrant un rectangle géographique (sans les
+     * énumérer).
+     *
+     * @param latMin  Latitude minimale (en degrés)
+     * @param latMax  Latitude maximale (en degrés)
+     * @param longMin Longitude minimale (en degrés)
+     * @param longMax Longitude maximale (en degrés)
+     * @param zoom    Niveau de zoom
+     */
+    public static long boxSize(double latMin, double latMax, double longMin,
+                               double longMax, int zoom) {
+        long rows = WMTS.latToTileRow(latMin, zoom) - WMTS.latToTileRow(latMax, zoom) + 1;
+        long cols = WMTS.longToTileCol(longMax, zoom) - WMTS.longToTileCol(longMin, zoom) + 1;
+        return Math.max(0, rows) * Math.max(0, cols);
+    }
+
+    /**
+     * Tuiles couvrant un couloir autour d'une trace.
+     * <p/>
+     * Chaque segment de la trace est échantillonné avec un pas inférieur à la
+     * demi-dimension d'une tuile et chaque échantillon ajoute les tuiles
+     * comprises dans un carré de demi-côté {@code buffer} centré sur lui.
+     *
+     * @param lats   Latitudes des positions de la trace (en degrés)
+     * @param longs  Longitudes des positions de la trace (en degrés)
+     * @param buffer Largeur du couloir de part et d'autre de la trace (en m)
+     * @param zoom   Niveau de zoom
+     * @return Tuiles dans l'ordre de parcours de la trace.
+     */
+    public static long[] corridor(double[] lats, double[] longs, double buffer, int zoom) {
+        LinkedHashSet<Long> tiles = new LinkedHashSet<Long>();
+        double dim = WMTS.getTileDim(zoom);
+        double prevX = 0, prevY = 0;
+        for (int i = 0; i < lats.length; i++) {
+            double x = WMTS.longToWmtsX(longs[i]);
+            double y = WMTS.latToWmtsY(lats[i]);
+            // Distances dans la projection de Mercator: dilatées de 1/cos(lat)
+            double b = buffer / Math.cos(lats[i] * Math.PI / 180);
+            if (i == 0) {
+                addSquare(tiles, x, y, b, dim);
+            } else {
+                double dx = x - prevX, dy = y - prevY;
+                int steps = (int) Math.ceil(Math.sqrt(dx * dx + dy * dy) / (dim / 2));
+                for (int s = 1; s <= steps; s++) {
+                    addSquare(tiles, prevX + dx * s / steps, prevY + dy * s / steps, b, dim);
+                }
+            }
+            prevX = x;
+            prevY = y;
+        }
+
+        long[] result = new long[tiles.size()];
+        int i = 0;
+        for (Long t : tiles) {
+            result[i++] = t;
+        }
+        return result;
+    }
+
+    /**
+     * Ajouter les tuiles comprises dans un carré centré sur un point.
+     */
+    private static void addSquare(LinkedHashSet<Long> tiles, double x, double y,
+                                  double halfSide, double dim) {
+        int rowMin = (int) ((y - halfSide) / dim);
+        int rowMax = (int) ((y + halfSide) / dim);
+        int colMin = (int) ((x - halfSide) / dim);
+        int colMax = (int) ((x + halfSide) / dim);
+        for (int r = rowMin; r <= rowMax; r++) {
+            for (int c = colMin; c <= colMax; c++) {
+                tiles.add(pack(r, c));
+            }
+        }
+    }
+
+    /**
+     * Tuiles du niveau de zoom inférieur contenant les tuiles indiquées.
+     *
+     * @param tiles Tuiles codées
+     * @return Tuiles parentes, sans doublon.
+     */
+    public static long[] parents(long[] tiles) {
+        LinkedHashSet<Long> result = new LinkedHashSet<Long>();
+        for (long t : tiles) {
+            result.add(pack(row(t) >> 1, col(t) >> 1));
+        }
+        long[] parents = new long[result.size()];
+        int i = 0;
+        for (Long t : result) {
+            parents[i++] = t;
+        }
+        return parents;
+    }
+
+    /**
+     * Tuiles du niveau de zoom supérieur contenues dans les tuiles indiquées.
+     *
+     * @param tiles Tuiles codées
+     * @return Les 4 sous-tuiles de chaque tuile.
+     */
+    public static long[] children(long[] tiles) {
+        long[] children = new long[4 * tiles.length];
+        int i = 0;
+        for (long t : tiles) {
+            int r = 2 * row(t), c = 2 * col(t);
+            children[i++] = pack(r, c);
+            children[i++] = pack(r, c + 1);
+            children[i++] = pack(r + 1, c);
+            children[i++] = pack(r + 1, c + 1);
+        }
+        return children;
+    }
+}
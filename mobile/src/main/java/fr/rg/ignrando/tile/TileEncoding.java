@@ -0,0 +1,186 @@
+package fr.rg.ignrando.tile;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+/**
+ * Format de compression des tuiles reconstituées.
+ * <p/>
+ * Un format est décrit par une chaîne {@code <format>[:<qualité>]}:
+ * <ul>
+ * <li>{@code jpeg:85}: JPEG de qualité 85,</li>
+ * <li>{@code webp:80}: WebP avec perte, de qualité 80,</li>
+ * <li>{@code webp:100}: WebP sans perte,</li>
+ * <li>{@code png}: PNG (sans perte, la qualité est ignorée),</li>
+ * <li>{@code original}: données de la tuile IGN transmises sans
+ * ré-encodage lorsqu'une tuile d'origine peut être utilisée à la place de la
+ * tuile reconstituée (niveau 15 des écrans haute densité), JPEG de qualité
+ * 100 sinon.</li>
+ * </ul>
+ */
+public class TileEncoding {
+
+    // Transmission des données d'origine
+    public static final TileEncoding ORIGINAL = new TileEncoding(null, 100);
+
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+
+    /**
+     * @param format  Format de compression
+     * @param quality Qualité (0 à 100)
+     */
+    public TileEncoding(Bitmap.CompressFormat format, int quality) {
+        this.format = format;
+        this.quality = quality;
+    }
+
+    /**
+     * Analyser la description d'un format.
+     *
+     * @param spec Description ({@code jpeg:85}, {@code webp:80}, {@code png}…)
+     * @throws IllegalArgumentException si la description est invalide
+     */
+    public static TileEncoding parse(String spec) {
+        String[] parts = spec.trim().toLowerCase(Locale.US).split(":");
+        Bitmap.CompressFormat format;
+        if ("original".equals(parts[0])) {
+            return ORIGINAL;
+        } else if ("jpeg".equals(parts[0]) || "jpg".equals(parts[0])) {
+            format = Bitmap.CompressFormat.JPEG;
+        } else if ("webp".equals(parts[0])) {
+            format = Bitmap.CompressFormat.WEBP;
+        } else if ("png".equals(parts[0])) {
+            format = Bitmap.CompressFormat.PNG;
+        } else {
+            throw new IllegalArgumentException("Format inconnu: " + spec);
+        }
+        int quality = 100;
+        if (parts.length > 1) {
+            quality = Integer.parseInt(parts[1]);
+            if (quality < 0 || quality > 100) {
+                throw new IllegalArgumentException("Qualité invalide: " + spec);
+            }
+        }
+        return new TileEncoding(format, quality);
+    }
+
+    /**
+     * Compresser une image.
+     *
+     * @param b Image à compresser
+     * @return Les données compressées.
+     */
+    public byte[] encode(Bitmap b) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 * 1024);
+        b.compress(format == null ? Bitmap.CompressFormat.JPEG : format, quality, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Indiquer si les données d'origine doivent être transmises sans
+     * ré-encodage (lorsque c'est possible).
+     */
+    public boolean isOriginal() {
+        return format == null;
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    @Override
+    public String toString() {
+        if (format == null) {
+            return "original";
+        }
+        return format.name().toLowerCase(Locale.US)
+                + (format == Bitmap.CompressFormat.PNG ? "" : ":" + quality);
+    }
+
+    /**
+     * Format de compression selon le niveau de zoom.
+     * <p/>
+     * La politique est décrite par une liste d'associations séparées par des
+     * virgules, {@code <niveaux>=<format>}, où {@code <niveaux>} est un niveau
+     * ({@code 15}) ou un intervalle ({@code 12-14}). Un format seul s'applique
+     * à tous les niveaux non mentionnés par ailleurs. Exemple:
+     * {@code jpeg:85,15=webp:90}.
+     */
+    public static class Policy {
+
+        // Niveau de zoom maximal pris en compte
+        private static final int MAX_ZOOM = 21;
+
+        private final TileEncoding[] byZoom = new TileEncoding[MAX_ZOOM + 1];
+
+        /**
+         * @param defaultEncoding Format des niveaux non précisés
+         */
+        public Policy(TileEncoding defaultEncoding) {
+            for (int z = 0; z <= MAX_ZOOM; z++) {
+                byZoom[z] = defaultEncoding;
+            }
+        }
+
+        /**
+         * Analyser la description d'une politique.
+         *
+         * @param spec Description (voir la documentation de la classe)
+         * @throws IllegalArgumentException si la description est invalide
+         */
+        public static Policy parse(String spec) {
+            Policy policy = new Policy(new TileEncoding(Bitmap.CompressFormat.JPEG, 100));
+            String[] entries = spec.split(",");
+            // Format par défaut en premier, pour ne pas écraser les niveaux précisés
+            for (String entry : entries) {
+                if (entry.indexOf('=') < 0) {
+                    policy.set(0, MAX_ZOOM, TileEncoding.parse(entry));
+                }
+            }
+            for (String entry : entries) {
+                int eq = entry.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String zooms = entry.substring(0, eq).trim();
+                TileEncoding encoding = TileEncoding.parse(entry.substring(eq + 1));
+                int dash = zooms.indexOf('-');
+                if (dash < 0) {
+                    int z = Integer.parseInt(zooms);
+                    policy.set(z, z, encoding);
+                } else {
+                    policy.set(Integer.parseInt(zooms.substring(0, dash).trim()),
+                            Integer.parseInt(zooms.substring(dash + 1).trim()), encoding);
+                }
+            }
+            return policy;
+        }
+
+        /**
+         * Associer un format à un intervalle de niveaux de zoom.
+         */
+        public void set(int zoomMin, int zoomMax, TileEncoding encoding) {
+            if (zoomMin < 0 || zoomMax > MAX_ZOOM || zoomMin > zoomMax) {
+                throw new IllegalArgumentException("Niveaux invalides: " + zoomMin + "-"
+                        + zoomMax);
+            }
+            for (int z = zoomMin; z <= zoomMax; z++) {
+                byZoom[z] = encoding;
+            }
+        }
+
+        /**
+         * Format de compression d'un niveau de zoom.
+         */
+        public TileEncoding forZoom(int zoom) {
+            return byZoom[Math.max(0, Math.min(zoom, MAX_ZOOM))];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package fr.rg.ignrando.tile;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Traitements d'images nécessaires à la reconstitution des tuiles.
+ * <p/>
+ * Les tuiles ne sont manipulées que sous forme de données compressées:
+ * l'implémentation Android ({@link BitmapTileCodec}) s'appuie sur
+ * {@code Bitmap}, ce qui permet au reste de la chaîne de fourniture des
+ * tuiles ({@link TilePipeline}) de ne dépendre que de Java et d'être mesuré
+ * sur une machine virtuelle ordinaire.
+ */
+public interface TileImageCodec {
+
+    /**
+     * Indiquer si les tuiles d'un niveau de zoom sont transmises sans
+     * ré-encodage lorsqu'une tuile d'origine peut être utilisée.
+     *
+     * @param zoom Niveau de zoom
+     */
+    boolean isOriginal(int zoom);
+
+    /**
+     * Assembler 4 tuiles en une tuile carrée. Une sous-tuile absente (null)
+     * laisse son carré blanc (vue d'ensemble partielle).
+     *
+     * @param img11 Sous-tuile en haut à gauche
+     * @param img12 Sous-tuile en haut à droite
+     * @param img21 Sous-tuile en bas à gauche
+     * @param img22 Sous-tuile en bas à droite
+     * @param dim   Dimension de la tuile (en pixels)
+     * @param zoom  Niveau de zoom de la tuile (format de compression)
+     * @return Données compressées de la tuile ou null si une sous-tuile est
+     * invalide.
+     */
+    byte[] stitch(byte[] img11, byte[] img12, byte[] img21, byte[] img22, int dim, int zoom);
+
+    /**
+     * Extraire une portion d'une tuile: la tuile est découpée en
+     * 2<sup>shift</sup> x 2<sup>shift</sup> carrés et celui qui correspond aux
+     * indices indiqués (bits de poids faible) est conservé.
+     *
+     * @param key    Identifiant de la tuile découpée, pour réutiliser son
+     *               décodage entre plusieurs portions ({@link TileKey#NONE}
+     *               pour ne rien conserver)
+     * @param source Lecture des données compressées de la tuile découpée
+     * @param shift  Écart de niveau de zoom
+     * @param col    Indice de colonne de la portion
+     * @param row    Indice de ligne de la portion
+     * @param dim    Dimension de la tuile produite (en pixels, 0 pour celle de
+     *               la portion)
+     * @param zoom   Niveau de zoom de la portion (format de compression)
+     * @return Données compressées de la portion ou null si la tuile découpée
+     * est indisponible.
+     */
+    byte[] zoomIn(long key, Callable<byte[]> source, int shift, int col, int row, int dim,
+                  int zoom);
+
+    /**
+     * Superposer deux tuiles de même emprise: la tuile du dessus est dessinée
+     * avec l'opacité indiquée sur la tuile de fond.
+     *
+     * @param base    Tuile de fond
+     * @param overlay Tuile du dessus
+     * @param alpha   Opacité de la tuile du dessus (0 à 1)
+     * @param dim     Dimension de la tuile (en pixels)
+     * @param zoom    Niveau de zoom de la tuile (format de compression)
+     * @return Données compressées de la tuile ou null si une tuile est
+     * invalide.
+     */
+    byte[] blend(byte[] base, byte[] overlay, float alpha, int dim, int zoom);
+
+    /**
+     * Créer une tuile vide (transparente, avec un cadre).
+     *
+     * @param dim Dimension de la tuile (en pixels)
+     */
+    byte[] emptyTile(int dim);
+}
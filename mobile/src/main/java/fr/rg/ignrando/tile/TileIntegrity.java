@@ -0,0 +1,71 @@
+package fr.rg.ignrando.tile;
+
+/**
+ * Vérification rapide de l'intégrité des données d'une tuile.
+ * <p/>
+ * Seuls l'en-tête et la fin des données sont examinés, ce qui suffit à
+ * détecter une écriture ou un téléchargement interrompu (fichier tronqué)
+ * sans décoder l'image:
+ * <ul>
+ * <li>JPEG: marqueurs SOI (FFD8) au début et EOI (FFD9) à la fin,</li>
+ * <li>PNG: signature au début et bloc IEND à la fin,</li>
+ * <li>WebP: taille du conteneur RIFF égale à la taille des données.</li>
+ * </ul>
+ */
+public class TileIntegrity {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G'};
+    private static final byte[] PNG_IEND = {'I', 'E', 'N', 'D'};
+
+    /**
+     * Indiquer si les données d'une tuile sont complètes.
+     *
+     * @param data Données compressées de la tuile
+     * @return false si les données sont absentes, tronquées ou d'un format
+     * inconnu.
+     */
+    public static boolean isComplete(byte[] data) {
+        if (data == null || data.length < 12) {
+            return false;
+        }
+        int n = data.length;
+
+        // JPEG
+        if ((data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            // Le marqueur de fin peut être suivi de quelques octets de remplissage
+            for (int i = n - 1; i >= Math.max(1, n - 16); i--) {
+                if ((data[i] & 0xff) == 0xd9 && (data[i - 1] & 0xff) == 0xff) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // PNG: le bloc IEND (type puis CRC) termine le fichier
+        if (startsWith(data, 0, PNG_SIGNATURE)) {
+            return startsWith(data, n - 8, PNG_IEND);
+        }
+
+        // WebP: "RIFF" <taille (little endian)> "WEBP"
+        if (data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            long size = (data[4] & 0xff) | (data[5] & 0xff) << 8 | (data[6] & 0xff) << 16
+                    | (long) (data[7] & 0xff) << 24;
+            return size + 8 == n;
+        }
+
+        return false;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (offset < 0 || offset + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
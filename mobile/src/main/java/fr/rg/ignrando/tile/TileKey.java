@@ -0,0 +1,75 @@
+package fr.rg.ignrando.tile;
+
+/**
+ * Identifiant d'une tuile codé dans un entier long:
+ * {@code couche << 56 | zoom << 48 | ligne << 24 | colonne}.
+ * <p/>
+ * Les indices de ligne et de colonne occupent 24 bits chacun, ce qui suffit
+ * jusqu'au niveau 24. Le même identifiant sert de clé au cache mémoire, aux
+ * chargements en cours, à l'index du cache disque et au suivi des tuiles
+ * inexistantes: aucune chaîne de caractères n'est construite pour
+ * identifier une tuile.
+ */
+public class TileKey {
+
+    // Absence de tuile
+    public static final long NONE = -1;
+
+    private static final long INDEX_MASK = 0xffffff;
+
+    /**
+     * Coder une tuile.
+     *
+     * @param layer Couche (TileStore.LAYER_*)
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     */
+    public static long pack(int layer, int zoom, int row, int col) {
+        return ((long) layer << 56) | ((long) zoom << 48) | ((row & INDEX_MASK) << 24)
+                | (col & INDEX_MASK);
+    }
+
+    public static int layer(long key) {
+        return (int) (key >>> 56);
+    }
+
+    public static int zoom(long key) {
+        return (int) (key >>> 48) & 0xff;
+    }
+
+    public static int row(long key) {
+        return (int) ((key >>> 24) & INDEX_MASK);
+    }
+
+    public static int col(long key) {
+        return (int) (key & INDEX_MASK);
+    }
+
+    /**
+     * Indiquer si une tuile est une tuile IGN réelle (par opposition à une
+     * tuile reconstituée à partir d'autres tuiles).
+     */
+    public static boolean isReal(long key) {
+        int layer = layer(key);
+        int zoom = zoom(key);
+        return (layer == TileStore.LAYER_MAP || layer == TileStore.LAYER_ORTHO)
+                && (zoom == 15 || zoom == 16);
+    }
+
+    /**
+     * Nom lisible d'une tuile ({@code [ortho-]z<zoom>[_hr]-r<ligne>-c<colonne>},
+     * {@code hybrid<opacité>-z<zoom>-r<ligne>-c<colonne>} pour un mélange).
+     */
+    public static String toString(long key) {
+        int layer = layer(key);
+        if (layer >= TileStore.LAYER_HYBRID) {
+            return "hybrid" + 10 * (layer - TileStore.LAYER_HYBRID) + "-z" + zoom(key) + "-r"
+                    + row(key) + "-c" + col(key);
+        }
+        boolean ortho = (layer == TileStore.LAYER_ORTHO || layer == TileStore.LAYER_ORTHO_HR);
+        boolean hr = (layer == TileStore.LAYER_MAP_HR || layer == TileStore.LAYER_ORTHO_HR);
+        return (ortho ? "ortho-" : "") + "z" + zoom(key) + (hr ? "_hr" : "") + "-r" + row(key)
+                + "-c" + col(key);
+    }
+}
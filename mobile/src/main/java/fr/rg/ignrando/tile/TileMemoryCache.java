@@ -0,0 +1,166 @@
+package fr.rg.ignrando.tile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache mémoire des données (compressées) de tuiles, partagé par tout le
+ * processus.
+ * <p/>
+ * La taille du cache est limitée par le nombre total d'octets conservés et non
+ * par le nombre de tuiles: lorsque la limite est dépassée, les tuiles les moins
+ * récemment utilisées sont supprimées en premier.
+ */
+public class TileMemoryCache {
+
+    // Instance partagée par le processus
+    private static TileMemoryCache instance;
+
+    // Tuiles conservées, dans l'ordre des accès (la plus ancienne en premier)
+    private final LinkedHashMap<Long, byte[]> entries =
+            new LinkedHashMap<Long, byte[]>(64, 0.75f, true);
+    // Nombre maximal d'octets conservés
+    private long maxBytes;
+    // Nombre d'octets actuellement conservés
+    private long currentBytes;
+    // Statistiques d'utilisation
+    private long hitCount, missCount, evictionCount;
+
+    /**
+     * Récupérer le cache mémoire du processus. Sa taille par défaut correspond
+     * à 1/8 de la mémoire disponible pour la machine virtuelle.
+     */
+    public static synchronized TileMemoryCache getInstance() {
+        if (instance == null) {
+            instance = new TileMemoryCache(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxBytes Nombre maximal d'octets conservés
+     */
+    public TileMemoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Récupérer les données d'une tuile.
+     *
+     * @param key Identifiant de la tuile (voir {@link TileKey})
+     * @return Les données ou null si la tuile n'est pas dans le cache.
+     */
+    public synchronized byte[] get(long key) {
+        byte[] data = entries.get(key);
+        if (data != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return data;
+    }
+
+    /**
+     * Indiquer si une tuile est dans le cache (sans modifier l'ordre
+     * d'utilisation ni les statistiques).
+     *
+     * @param key Identifiant de la tuile (voir {@link TileKey})
+     */
+    public synchronized boolean contains(long key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Ajouter (ou remplacer) les données d'une tuile. Une tuile occupant plus
+     * du huitième de la capacité n'est pas conservée.
+     *
+     * @param key  Identifiant de la tuile (voir {@link TileKey})
+     * @param data Données compressées de la tuile
+     */
+    public synchronized void put(long key, byte[] data) {
+        if (data == null || data.length > maxBytes / 8) {
+            return;
+        }
+        byte[] previous = entries.put(key, data);
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+        currentBytes += data.length;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Retirer une tuile du cache.
+     *
+     * @param key Identifiant de la tuile (voir {@link TileKey})
+     */
+    public synchronized void remove(long key) {
+        byte[] previous = entries.remove(key);
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+    }
+
+    /**
+     * Supprimer les tuiles les moins récemment utilisées jusqu'à ce que le
+     * nombre d'octets conservés ne dépasse plus la limite indiquée.
+     *
+     * @param limit Nombre d'octets à ne pas dépasser
+     */
+    public synchronized void trimToSize(long limit) {
+        Iterator<Map.Entry<Long, byte[]>> it = entries.entrySet().iterator();
+        while (currentBytes > limit && it.hasNext()) {
+            Map.Entry<Long, byte[]> eldest = it.next();
+            currentBytes -= eldest.getValue().length;
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Vider le cache.
+     */
+    public synchronized void evictAll() {
+        trimToSize(0);
+    }
+
+    /**
+     * Modifier la capacité du cache.
+     *
+     * @param maxBytes Nombre maximal d'octets conservés
+     */
+    public synchronized void resize(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long maxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long size() {
+        return currentBytes;
+    }
+
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long accesses = hitCount + missCount;
+        return "TileMemoryCache[" + entries.size() + " tuiles, " + currentBytes + "/"
+                + maxBytes + " octets, hits=" + hitCount + ", misses=" + missCount
+                + ", hitRate=" + (accesses == 0 ? 0 : 100 * hitCount / accesses)
+                + "%, evictions=" + evictionCount + "]";
+    }
+}
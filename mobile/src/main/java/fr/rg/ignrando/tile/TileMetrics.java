@@ -0,0 +1,268 @@
+package fr.rg.ignrando.tile;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistiques de fourniture des tuiles, partagées par le processus.
+ * <p/>
+ * Pour chaque origine (cache mémoire, cache disque, réseau) et chaque type
+ * de tuile fournie à la carte (réelle, reconstituée depuis le niveau
+ * supérieur ou inférieur, haute résolution de niveau 15, vide, de
+ * remplacement), et pour chaque niveau de zoom, sont comptés le nombre de
+ * tuiles et la répartition des durées dans un histogramme à échelle
+ * logarithmique (puissances de 2 en microsecondes).
+ * <p/>
+ * Tous les compteurs sont des entiers atomiques: l'enregistrement ne prend
+ * aucun verrou et ne crée aucun objet, ce qui permet de laisser les mesures
+ * actives en production.
+ */
+public class TileMetrics {
+
+    // Origines des données
+    public static final int MEMORY = 0;
+    public static final int DISK = 1;
+    public static final int NETWORK = 2;
+    // Types de tuiles fournies à la carte
+    public static final int REAL = 3;
+    public static final int UPPER_SCALE = 4;
+    public static final int HIGH_RES_Z15 = 5;
+    public static final int LOWER_SCALE = 6;
+    public static final int EMPTY = 7;
+    public static final int FALLBACK = 8;
+    public static final int PROGRESSIVE = 9;
+    public static final int OVERVIEW = 10;
+    public static final int HYBRID = 11;
+    private static final String[] NAMES = {"memory", "disk", "network", "real",
+            "upper-scale", "high-res-z15", "lower-scale", "empty", "fallback", "progressive",
+            "overview", "hybrid"};
+    public static final int TIER_COUNT = NAMES.length;
+    // Niveaux de zoom suivis (les niveaux supérieurs sont regroupés)
+    private static final int ZOOM_COUNT = 22;
+    // Intervalles de l'histogramme: [2^(k-1), 2^k[ µs (le dernier est ouvert)
+    private static final int BUCKET_COUNT = 24;
+
+    // Instance partagée par le processus
+    private static TileMetrics instance;
+
+    private final AtomicLongArray counts = new AtomicLongArray(TIER_COUNT * ZOOM_COUNT);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(TIER_COUNT * ZOOM_COUNT);
+    private final AtomicLongArray histogram =
+            new AtomicLongArray(TIER_COUNT * ZOOM_COUNT * BUCKET_COUNT);
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong lockWaitNanos = new AtomicLong();
+    private volatile long startTime = System.currentTimeMillis();
+
+    public static synchronized TileMetrics getInstance() {
+        if (instance == null) {
+            instance = new TileMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Nom d'une origine ou d'un type de tuile.
+     */
+    public static String tierName(int tier) {
+        return NAMES[tier];
+    }
+
+    /**
+     * Enregistrer la fourniture d'une tuile.
+     *
+     * @param tier  Origine ou type de tuile (MEMORY, DISK…)
+     * @param zoom  Niveau de zoom
+     * @param nanos Durée (en ns)
+     */
+    public void record(int tier, int zoom, long nanos) {
+        int i = tier * ZOOM_COUNT + Math.max(0, Math.min(zoom, ZOOM_COUNT - 1));
+        counts.incrementAndGet(i);
+        totalNanos.addAndGet(i, nanos);
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        histogram.incrementAndGet(i * BUCKET_COUNT + Math.min(bucket, BUCKET_COUNT - 1));
+    }
+
+    public void addBytesDownloaded(long n) {
+        bytesDownloaded.addAndGet(n);
+    }
+
+    public void addBytesWritten(long n) {
+        bytesWritten.addAndGet(n);
+    }
+
+    /**
+     * Compteur du temps passé à attendre une tuile chargée par un autre fil
+     * d'exécution (en ns).
+     */
+    public AtomicLong lockWaitCounter() {
+        return lockWaitNanos;
+    }
+
+    /**
+     * Remettre toutes les mesures à zéro.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+            totalNanos.set(i, 0);
+        }
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+        bytesDownloaded.set(0);
+        bytesWritten.set(0);
+        lockWaitNanos.set(0);
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Nombre de tuiles d'une origine ou d'un type (tous niveaux confondus).
+     */
+    public long getCount(int tier) {
+        long n = 0;
+        for (int z = 0; z < ZOOM_COUNT; z++) {
+            n += counts.get(tier * ZOOM_COUNT + z);
+        }
+        return n;
+    }
+
+    /**
+     * Durée moyenne (en ms, tous niveaux confondus).
+     */
+    public double getMeanMillis(int tier) {
+        long n = 0, t = 0;
+        for (int z = 0; z < ZOOM_COUNT; z++) {
+            n += counts.get(tier * ZOOM_COUNT + z);
+            t += totalNanos.get(tier * ZOOM_COUNT + z);
+        }
+        return n == 0 ? 0 : t / 1e6 / n;
+    }
+
+    /**
+     * Estimation d'un quantile de la durée (borne supérieure de l'intervalle
+     * de l'histogramme qui le contient, en ms, tous niveaux confondus).
+     *
+     * @param tier     Origine ou type de tuile
+     * @param quantile Quantile (entre 0 et 1)
+     */
+    public double getQuantileMillis(int tier, double quantile) {
+        long[] buckets = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int z = 0; z < ZOOM_COUNT; z++) {
+            int base = (tier * ZOOM_COUNT + z) * BUCKET_COUNT;
+            for (int b = 0; b < BUCKET_COUNT; b++) {
+                long v = histogram.get(base + b);
+                buckets[b] += v;
+                n += v;
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            seen += buckets[b];
+            if (seen >= rank) {
+                return (1L << b) / 1000.0;
+            }
+        }
+        return (1L << (BUCKET_COUNT - 1)) / 1000.0;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getLockWaitMillis() {
+        return lockWaitNanos.get() / 1000000;
+    }
+
+    /**
+     * Résumé d'une origine ou d'un type de tuile sur une ligne.
+     */
+    public String summary(int tier) {
+        return String.format(Locale.US, "n=%d, mean=%.1f ms, p50<%.1f ms, p95<%.1f ms, "
+                        + "p99<%.1f ms", getCount(tier), getMeanMillis(tier),
+                getQuantileMillis(tier, 0.5), getQuantileMillis(tier, 0.95),
+                getQuantileMillis(tier, 0.99));
+    }
+
+    /**
+     * Instantané lisible de toutes les mesures.
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Tile metrics since ").append(startTime).append('\n');
+        for (int tier = 0; tier < TIER_COUNT; tier++) {
+            sb.append(String.format(Locale.US, "%-13s", NAMES[tier])).append(summary(tier))
+                    .append('\n');
+            for (int z = 0; z < ZOOM_COUNT; z++) {
+                long n = counts.get(tier * ZOOM_COUNT + z);
+                if (n > 0) {
+                    sb.append(String.format(Locale.US, "    z%-2d n=%d, mean=%.1f ms\n", z, n,
+                            totalNanos.get(tier * ZOOM_COUNT + z) / 1e6 / n));
+                }
+            }
+        }
+        sb.append("downloaded=").append(getBytesDownloaded()).append(" B, written=")
+                .append(getBytesWritten()).append(" B, lock wait=")
+                .append(getLockWaitMillis()).append(" ms\n");
+        return sb.toString();
+    }
+
+    /**
+     * Instantané de toutes les mesures au format JSON.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"since\":").append(startTime)
+                .append(",\"bytesDownloaded\":").append(getBytesDownloaded())
+                .append(",\"bytesWritten\":").append(getBytesWritten())
+                .append(",\"lockWaitMs\":").append(getLockWaitMillis())
+                .append(",\"bucketsMicros\":\"2^k\",\"tiers\":{");
+        for (int tier = 0; tier < TIER_COUNT; tier++) {
+            if (tier > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(NAMES[tier]).append("\":{");
+            boolean first = true;
+            for (int z = 0; z < ZOOM_COUNT; z++) {
+                int i = tier * ZOOM_COUNT + z;
+                long n = counts.get(i);
+                if (n == 0) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append("\"").append(z).append("\":{\"count\":").append(n)
+                        .append(",\"totalNanos\":").append(totalNanos.get(i))
+                        .append(",\"histogram\":[");
+                for (int b = 0; b < BUCKET_COUNT; b++) {
+                    if (b > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(histogram.get(i * BUCKET_COUNT + b));
+                }
+                sb.append("]}");
+            }
+            sb.append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
@@ -0,0 +1,1095 @@
+package fr.rg.ignrando.tile;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chaîne de fourniture des tuiles IGN: cache mémoire, cache disque,
+ * téléchargement et reconstitution des niveaux dérivés.
+ * <p/>
+ * Toutes les tuiles sont dérivées des niveaux 15 et 16 de la base de données
+ * IGN, ceux-ci correspondant aux scans de cartes 1:25000:
+ * <ul>
+ * <li>niveaux 15 et 16: tuiles téléchargées,</li>
+ * <li>niveau 15 des écrans haute densité: assemblage de 4 tuiles du niveau
+ * 16,</li>
+ * <li>niveaux 13 et 14: assemblage de 4 tuiles du niveau supérieur,</li>
+ * <li>niveaux {@link #MIN_OVERVIEW_SCALE} à {@link #MAX_OVERVIEW_SCALE} (vue
+ * d'ensemble): assemblage des sous-tuiles présentes dans le cache, sans
+ * téléchargement,</li>
+ * <li>niveaux 17 à {@link #MAX_OVERZOOM_SCALE}: portion d'une tuile du niveau
+ * 16.</li>
+ * </ul>
+ * Cette classe ne dépend que de Java: les traitements d'images sont confiés
+ * à un {@link TileImageCodec}.
+ * <p/>
+ * En mode progressif, une tuile qui ne peut être fournie sans téléchargement
+ * est remplacée immédiatement par l'agrandissement d'une tuile ancêtre
+ * présente dans le cache disque; la tuile réelle est chargée en
+ * arrière-plan puis signalée à un {@link RefineListener}.
+ */
+public class TilePipeline {
+
+    // Dimension d'une tuile
+    public static final int TILE_PIXEL_DIM = 256;
+    // Dimension maximale des tuiles reconstituées (en pixels)
+    private static final int MAX_DERIVED_DIM = 2 * TILE_PIXEL_DIM;
+    // Niveau de zoom maximal des tuiles de sur-zoom (reconstituées depuis le
+    // niveau 16)
+    public static final int MAX_OVERZOOM_SCALE = 21;
+    // Niveaux de zoom de la vue d'ensemble (reconstitués uniquement à partir
+    // des tuiles en cache)
+    public static final int MIN_OVERVIEW_SCALE = 8;
+    public static final int MAX_OVERVIEW_SCALE = 12;
+
+    // Chargements de tuiles en cours (un seul par tuile)
+    private final SingleFlight<Long, byte[]> inFlight = new SingleFlight<Long, byte[]>();
+    // Nombre maximal de chargements en arrière-plan en attente
+    private static final int REFINE_QUEUE_SIZE = 32;
+    // Chargements en arrière-plan des tuiles fournies en mode progressif
+    // (fils partagés par toutes les chaînes du processus: une chaîne
+    // remplacée suite à un changement de préférences n'en laisse aucun).
+    // Au-delà de REFINE_QUEUE_SIZE demandes en attente, les plus anciennes
+    // (zone quittée lors d'un déplacement rapide) sont abandonnées
+    private static final ExecutorService refiner = new ThreadPoolExecutor(
+            TileScheduler.DEFAULT_MAX_CONCURRENT, TileScheduler.DEFAULT_MAX_CONCURRENT,
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(REFINE_QUEUE_SIZE),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TileRefiner");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) {
+                        ((RefineTask) r).abandon();
+                        return;
+                    }
+                    RefineTask oldest = (RefineTask) executor.getQueue().poll();
+                    if (oldest != null) {
+                        oldest.abandon();
+                    }
+                    executor.execute(r);
+                }
+            });
+    private final Set<Long> refining = new HashSet<Long>();
+    // Cache mémoire (partagé) devant le cache disque
+    private final TileMemoryCache memoryCache = TileMemoryCache.getInstance();
+    // Cache disque pour les tuiles
+    private final TileStore store;
+    // Téléchargement des tuiles
+    private final WmtsClient wmts;
+    // Traitements d'images
+    private final TileImageCodec codec;
+    // Tuiles inexistantes et mode hors ligne (partagés par serveur)
+    private final DownloadBackoff downloadBackoff;
+    // Requêtes simultanées et par seconde (partagées par serveur)
+    private final DownloadLimiter downloadLimiter;
+    // Ordre des téléchargements selon la zone affichée
+    private final TileScheduler scheduler = TileScheduler.getInstance();
+    // Statistiques de fourniture des tuiles
+    private final TileMetrics metrics = TileMetrics.getInstance();
+    // Construction en arrière-plan des niveaux 14 à 12
+    private final OverviewBuilder overviews;
+    // Écran haute densité (tuiles de 512x512)
+    private final boolean highResolution;
+    // Types de tuiles (vues aérienne)
+    private final boolean orthoimage;
+    // Tuiles vides (une par dimension), créées une seule fois
+    private final Map<Integer, byte[]> emptyTiles = new HashMap<Integer, byte[]>();
+
+    /**
+     * @param store          Cache disque
+     * @param wmts           Client du service WMTS
+     * @param codec          Traitements d'images
+     * @param highResolution Écran haute densité
+     */
+    public TilePipeline(TileStore store, WmtsClient wmts, TileImageCodec codec,
+                        boolean highResolution) {
+        this(store, wmts, codec, highResolution, false);
+    }
+
+    /**
+     * @param store          Cache disque
+     * @param wmts           Client du service WMTS
+     * @param codec          Traitements d'images
+     * @param highResolution Écran haute densité
+     * @param orthoimage     Photographies aériennes plutôt que cartes
+     */
+    public TilePipeline(TileStore store, WmtsClient wmts, TileImageCodec codec,
+                        boolean highResolution, boolean orthoimage) {
+        this.store = store;
+        this.wmts = wmts;
+        this.codec = codec;
+        this.highResolution = highResolution;
+        this.orthoimage = orthoimage;
+        downloadBackoff = DownloadBackoff.forHost(wmts.getHost());
+        downloadLimiter = DownloadLimiter.forHost(wmts.getHost());
+        inFlight.setWaitCounter(metrics.lockWaitCounter());
+        overviews = new OverviewBuilder(store,
+                orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP, MIN_OVERVIEW_SCALE,
+                MAX_OVERVIEW_SCALE, new OverviewBuilder.TileBuilder() {
+                    @Override
+                    public void build(final int zoom, final int row, final int col) {
+                        inFlight.execute(tileKey(zoom, row, col), new Callable<byte[]>() {
+                            @Override
+                            public byte[] call() {
+                                if (zoom <= MAX_OVERVIEW_SCALE) { // Compléter la tuile
+                                    return buildOverviewTile(col, row, zoom, true);
+                                }
+                                return loadTileFromUpperScale(col, row, zoom);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Suivi des tuiles fournies en mode progressif.
+     */
+    public interface RefineListener {
+        /**
+         * La tuile réelle remplaçant une tuile provisoire est disponible
+         * (appel depuis un fil d'exécution d'arrière-plan).
+         *
+         * @param ignScale Niveau de zoom
+         * @param row      Indice de ligne
+         * @param col      Indice de colonne
+         */
+        void onTileRefined(int ignScale, int row, int col);
+    }
+
+    /**
+     * Dimension (en pixels) des tuiles d'un niveau de zoom fournies par
+     * {@link #getTileImage}.
+     *
+     * @param ignScale Niveau de zoom.
+     */
+    public int getTileDim(int ignScale) {
+        switch (ignScale) {
+            case 17:
+            case 16:
+                return TILE_PIXEL_DIM;
+            case 15:
+                return highResolution && !codec.isOriginal(15) ? 2 * TILE_PIXEL_DIM
+                        : TILE_PIXEL_DIM;
+            case 14:
+            case 13:
+                return derivedTileDim(ignScale);
+            default:
+                if (ignScale > 17 && ignScale <= MAX_OVERZOOM_SCALE) {
+                    return TILE_PIXEL_DIM;
+                }
+                if (ignScale >= MIN_OVERVIEW_SCALE && ignScale <= MAX_OVERVIEW_SCALE) {
+                    return derivedTileDim(ignScale);
+                }
+                return highResolution ? 2 * TILE_PIXEL_DIM : TILE_PIXEL_DIM;
+        }
+    }
+
+    /**
+     * Fournir les données d'une tuile. Les tuiles ont les dimensions
+     * indiquées par {@link #getTileDim}.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return Les données (compressées) de la tuile ou null si elle est
+     * indisponible.
+     * @throws CancellationException si la tuile est sortie de la zone
+     *                               affichée avant son téléchargement ou si
+     *                               le serveur est saturé (tuile à
+     *                               redemander)
+     */
+    public byte[] getTileImage(int c, int r, int ignScale) {
+        return getTileImage(c, r, ignScale, null);
+    }
+
+    /**
+     * Fournir les données d'une tuile, éventuellement de manière progressive:
+     * si la tuile nécessite un téléchargement, l'agrandissement d'une tuile
+     * ancêtre du cache disque est fourni immédiatement et la tuile réelle est
+     * chargée en arrière-plan.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @param refine   Objet à prévenir lorsque la tuile réelle est disponible
+     *                 ou null pour attendre son chargement.
+     * @return Les données (compressées) de la tuile ou null si elle est
+     * indisponible.
+     * @throws CancellationException si la tuile est sortie de la zone
+     *                               affichée avant son téléchargement ou si
+     *                               le serveur est saturé (tuile à
+     *                               redemander)
+     */
+    public byte[] getTileImage(int c, int r, int ignScale, RefineListener refine) {
+        if (refine != null && !downloadBackoff.isOffline() && !isAvailable(c, r, ignScale)) {
+            long start = System.nanoTime();
+            byte[] image = createFallbackTile(c, r, ignScale, getTileDim(ignScale));
+            if (image != null) {
+                refineInBackground(c, r, ignScale, refine);
+                metrics.record(TileMetrics.PROGRESSIVE, ignScale, System.nanoTime() - start);
+                return image;
+            }
+        }
+        return readTileImage(c, r, ignScale, true);
+    }
+
+    /**
+     * Charger une tuile (en attendant son éventuel téléchargement).
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @param fallback Hors ligne, agrandir une tuile ancêtre si la tuile est
+     *                 indisponible
+     */
+    private byte[] readTileImage(int c, int r, int ignScale, boolean fallback) {
+        byte[] image;
+        long start = System.nanoTime();
+        int tier;
+
+        scheduler.enter(ignScale, r, c);
+        try {
+            switch (ignScale) {
+                case 17:
+                    image = createTileFromLowerScale(c, r, ignScale);
+                    tier = TileMetrics.LOWER_SCALE;
+                    break;
+                case 16:
+                    image = readRealTileImage(c, r, ignScale);
+                    tier = TileMetrics.REAL;
+                    break;
+                case 15:
+                    if (highResolution && !codec.isOriginal(15)) {
+                        image = createHighResZ15Tile(c, r);
+                        tier = TileMetrics.HIGH_RES_Z15;
+                    } else {
+                        image = readRealTileImage(c, r, 15);
+                        tier = TileMetrics.REAL;
+                    }
+                    break;
+                case 14:
+                case 13:
+                    image = createTileFromUpperScale(c, r, ignScale);
+                    tier = TileMetrics.UPPER_SCALE;
+                    break;
+                default:
+                    if (ignScale > 17 && ignScale <= MAX_OVERZOOM_SCALE) { // Sur-zoom
+                        image = createTileFromLowerScale(c, r, ignScale);
+                        tier = TileMetrics.LOWER_SCALE;
+                    } else if (ignScale >= MIN_OVERVIEW_SCALE
+                            && ignScale <= MAX_OVERVIEW_SCALE) { // Vue d'ensemble
+                        image = createOverviewTile(c, r, ignScale);
+                        tier = TileMetrics.OVERVIEW;
+                    } else {
+                        image = null;
+                        tier = TileMetrics.EMPTY;
+                    }
+                    if (image == null && tier != TileMetrics.LOWER_SCALE) {
+                        image = getEmptyTile(getTileDim(ignScale));
+                        tier = TileMetrics.EMPTY;
+                    }
+                    break;
+            }
+        } finally {
+            scheduler.exit();
+        }
+
+        if (image == null && fallback && downloadBackoff.isOffline()) {
+            // Hors ligne: agrandir une tuile déjà disponible d'un niveau inférieur
+            image = createFallbackTile(c, r, ignScale, getTileDim(ignScale));
+            tier = TileMetrics.FALLBACK;
+        }
+
+        if (image != null) {
+            metrics.record(tier, ignScale, System.nanoTime() - start);
+        }
+        return image;
+    }
+
+    /**
+     * Fournir les données d'une tuile sans remplacement hors ligne (mélange
+     * des couches par {@link HybridTilePipeline}).
+     *
+     * @return Les données (compressées) de la tuile ou null si elle est
+     * indisponible.
+     */
+    byte[] getSourceTileImage(int c, int r, int ignScale) {
+        return readTileImage(c, r, ignScale, false);
+    }
+
+    /**
+     * Indiquer si des données sont la tuile vide partagée.
+     */
+    boolean isEmptyTile(byte[] image) {
+        synchronized (emptyTiles) {
+            for (byte[] empty : emptyTiles.values()) {
+                if (empty == image) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Indiquer si une tuile peut être fournie sans téléchargement (tuile ou
+     * tuiles sources présentes dans le cache mémoire ou le cache disque).
+     */
+    private boolean isAvailable(int c, int r, int ignScale) {
+        if (ignScale <= MAX_OVERVIEW_SCALE || ignScale > MAX_OVERZOOM_SCALE) {
+            return true; // Jamais de téléchargement
+        }
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        if (ignScale > 16) { // Portion d'une tuile du niveau 16
+            if (ignScale == 17 && isCached(layer, 17, r, c)) {
+                return true;
+            }
+            int k = ignScale - 16;
+            return isCached(layer, 16, r >> k, c >> k);
+        }
+        if (ignScale == 15 && highResolution && !codec.isOriginal(15)) {
+            if (isCached(orthoimage ? TileStore.LAYER_ORTHO_HR : TileStore.LAYER_MAP_HR, 15,
+                    r, c)) {
+                return true;
+            }
+            return isCached(layer, 16, 2 * r, 2 * c) && isCached(layer, 16, 2 * r, 2 * c + 1)
+                    && isCached(layer, 16, 2 * r + 1, 2 * c)
+                    && isCached(layer, 16, 2 * r + 1, 2 * c + 1);
+        }
+        if (isCached(layer, ignScale, r, c)) {
+            return true;
+        }
+        if (ignScale < 15) { // Assemblage des tuiles du niveau 15
+            int k = 15 - ignScale;
+            for (int i = 0; i < 1 << k; i++) {
+                for (int j = 0; j < 1 << k; j++) {
+                    if (!isCached(layer, 15, (r << k) + i, (c << k) + j)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Indiquer si une tuile est présente dans le cache mémoire ou le cache
+     * disque.
+     */
+    private boolean isCached(int layer, int zoom, int r, int c) {
+        return memoryCache.contains(TileKey.pack(layer, zoom, r, c))
+                || store.contains(layer, zoom, r, c);
+    }
+
+    /**
+     * Charger en arrière-plan une tuile fournie en mode progressif (une seule
+     * fois par tuile), puis prévenir l'objet indiqué.
+     */
+    private void refineInBackground(int c, int r, int ignScale, RefineListener refine) {
+        long key = tileKey(ignScale, r, c);
+        synchronized (refining) {
+            if (!refining.add(key)) {
+                return;
+            }
+        }
+        refiner.execute(new RefineTask(key, c, r, ignScale, refine));
+    }
+
+    /**
+     * Chargement en arrière-plan d'une tuile fournie en mode progressif.
+     */
+    private class RefineTask implements Runnable {
+        private final long key;
+        private final int c, r, ignScale;
+        private final RefineListener refine;
+
+        RefineTask(long key, int c, int r, int ignScale, RefineListener refine) {
+            this.key = key;
+            this.c = c;
+            this.r = r;
+            this.ignScale = ignScale;
+            this.refine = refine;
+        }
+
+        @Override
+        public void run() {
+            byte[] image = null;
+            try {
+                image = readTileImage(c, r, ignScale, false);
+            } catch (CancellationException e) { // Tuile sortie de la zone affichée
+            } finally {
+                abandon();
+            }
+            if (image != null) {
+                refine.onTileRefined(ignScale, r, c);
+            }
+        }
+
+        /**
+         * Oublier la tuile (chargement terminé ou abandonné): elle pourra de
+         * nouveau être chargée en arrière-plan.
+         */
+        void abandon() {
+            synchronized (refining) {
+                refining.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Identifiant d'une tuile de la couche affichée.
+     */
+    private long tileKey(int ignScale, int r, int c) {
+        return TileKey.pack(orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP,
+                ignScale, r, c);
+    }
+
+    /**
+     * Identifiant d'une tuile haute résolution de niveau 15.
+     */
+    private long highResKey(int r, int c) {
+        return TileKey.pack(orthoimage ? TileStore.LAYER_ORTHO_HR : TileStore.LAYER_MAP_HR,
+                15, r, c);
+    }
+
+    /**
+     * Récupérer les données d'une tuile depuis le cache mémoire ou, à défaut,
+     * grâce au chargement indiqué (exécuté une seule fois même si plusieurs
+     * fils d'exécution demandent la même tuile). Le résultat est ensuite placé
+     * dans le cache mémoire.
+     *
+     * @param key      Identifiant de la tuile.
+     * @param ignScale Niveau de zoom (pour les statistiques).
+     * @param loader   Lecture depuis le cache disque ou création de la tuile.
+     * @return Tableau d'octet contenant les données (compressées) de la tuile.
+     */
+    private byte[] loadTile(long key, int ignScale, Callable<byte[]> loader) {
+        long start = System.nanoTime();
+        byte[] image = memoryCache.get(key);
+        if (image != null) {
+            metrics.record(TileMetrics.MEMORY, ignScale, System.nanoTime() - start);
+        } else {
+            image = inFlight.execute(key, loader);
+            if (image != null) {
+                memoryCache.put(key, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Suivi des échecs de téléchargement.
+     */
+    public DownloadBackoff getDownloadBackoff() {
+        return downloadBackoff;
+    }
+
+    /**
+     * Limitation des requêtes vers le serveur WMTS.
+     */
+    public DownloadLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    /**
+     * Cache disque des tuiles.
+     */
+    TileStore getStore() {
+        return store;
+    }
+
+    /**
+     * Traitements d'images.
+     */
+    TileImageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Télécharger ou reconstituer une tuile dans le cache disque, sans passer
+     * par le cache mémoire (téléchargement anticipé d'une zone). Les tuiles
+     * déjà présentes dans le cache disque ne sont pas rechargées.
+     * <p/>
+     * Les tuiles des niveaux 12 à 14 et 17 sont reconstituées et supposent
+     * donc que celles des niveaux 15 et 16 ont déjà été téléchargées.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom (12 à 17).
+     * @return Une des constantes TilePrefetcher.RESULT_*
+     */
+    public int prefetchTile(final int c, final int r, final int ignScale) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        long key = tileKey(ignScale, r, c);
+        Callable<byte[]> loader;
+        switch (ignScale) {
+            case 17:
+                loader = new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return loadTileFromLowerScale(c, r, ignScale);
+                    }
+                };
+                break;
+            case 16:
+            case 15:
+                if (ignScale == 15 && highResolution && !codec.isOriginal(15)) {
+                    // Tuile effectivement affichée: reconstituée depuis le niveau 16
+                    if (prefetchHighResZ15Tile(c, r) == TilePrefetcher.RESULT_FAILED) {
+                        return TilePrefetcher.RESULT_FAILED;
+                    }
+                }
+                loader = new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return loadRealTileImage(c, r, ignScale);
+                    }
+                };
+                break;
+            case 14:
+            case 13:
+            case 12:
+                loader = new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return loadTileFromUpperScale(c, r, ignScale);
+                    }
+                };
+                break;
+            default:
+                return TilePrefetcher.RESULT_FAILED;
+        }
+
+        if (store.contains(layer, ignScale, r, c)) {
+            return TilePrefetcher.RESULT_CACHED;
+        }
+        return inFlight.execute(key, loader) != null ? TilePrefetcher.RESULT_LOADED
+                : TilePrefetcher.RESULT_FAILED;
+    }
+
+    /**
+     * Reconstituer une tuile haute résolution de niveau 15 dans le cache
+     * disque.
+     *
+     * @param c Indice de colonne.
+     * @param r Indice de ligne.
+     * @return Une des constantes TilePrefetcher.RESULT_*
+     */
+    private int prefetchHighResZ15Tile(final int c, final int r) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO_HR : TileStore.LAYER_MAP_HR;
+        if (store.contains(layer, 15, r, c)) {
+            return TilePrefetcher.RESULT_CACHED;
+        }
+        long key = highResKey(r, c);
+        byte[] image = inFlight.execute(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return loadHighResZ15Tile(c, r);
+            }
+        });
+        return image != null ? TilePrefetcher.RESULT_LOADED : TilePrefetcher.RESULT_FAILED;
+    }
+
+    /**
+     * Récupérer les données d'une tuile existant dans la base de données IGN.
+     * Deux cas peuvent se présenter:
+     * <ol>
+     * <li>La tuile est déjà présente dans le cache disque: lire les données
+     * depuis le disque.</li>
+     * <li>La tuile ne se trouve pas encore dans le cache disque: télécharger les
+     * données puis les écrire dans le cache.</li>
+     * </ol>
+     * Lorsque cette méthode est appelée pour une même tuile par plusieurs fils
+     * d'exécution distincts, un seul d'entre eux effectue le chargement et les
+     * autres partagent son résultat.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return Tableau d'octet contenant les données (compressées) de la tuile.
+     */
+    public byte[] readRealTileImage(final int c, final int r, final int ignScale) {
+        long key = tileKey(ignScale, r, c);
+        return loadTile(key, ignScale, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return loadRealTileImage(c, r, ignScale);
+            }
+        });
+    }
+
+    /**
+     * Récupérer les données d'une tuile IGN uniquement si elle est déjà
+     * présente dans le cache mémoire ou dans le cache disque (aucun
+     * téléchargement).
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return Les données (compressées) de la tuile ou null si elle n'est pas
+     * dans le cache.
+     */
+    public byte[] readCachedTileImage(int c, int r, int ignScale) {
+        long key = tileKey(ignScale, r, c);
+        byte[] image = memoryCache.get(key);
+        if (image == null) {
+            image = store.get(orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP,
+                    ignScale, r, c);
+            if (image != null) {
+                memoryCache.put(key, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Lire une tuile IGN depuis le cache disque ou la télécharger.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return Tableau d'octet contenant les données (compressées) de la tuile.
+     */
+    private byte[] loadRealTileImage(int c, int r, int ignScale) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        long start = System.nanoTime();
+        byte[] image = store.get(layer, ignScale, r, c);
+        if (image != null) { // Récupérer depuis le cache disque
+            metrics.record(TileMetrics.DISK, ignScale, System.nanoTime() - start);
+            if (ignScale == 15) { // Compléter si nécessaire la vue d'ensemble
+                overviews.onTileStored(ignScale, r, c);
+            }
+            return image;
+        }
+
+        // Ne pas redemander une tuile inexistante ni télécharger hors ligne
+        long key = TileKey.pack(layer, ignScale, r, c);
+        if (!downloadBackoff.canDownload(key)) {
+            return null;
+        }
+
+        // Attendre son tour (tuiles affichées les plus proches du centre d'abord)
+        if (!scheduler.acquire()) {
+            throw new CancellationException("Tuile hors de la zone affichée");
+        }
+        try {
+            // Respecter le nombre de requêtes simultanées et par seconde
+            if (!downloadLimiter.acquire()) {
+                throw new CancellationException("Téléchargement interrompu");
+            }
+            try { // Télécharger les données
+                start = System.nanoTime();
+                image = wmts.getTile(orthoimage ? WmtsClient.LAYER_ORTHOPHOTOS
+                        : WmtsClient.LAYER_MAPS, ignScale, r, c);
+                long duration = System.nanoTime() - start;
+                downloadLimiter.onResponse(duration);
+                metrics.record(TileMetrics.NETWORK, ignScale, duration);
+                metrics.addBytesDownloaded(image.length);
+            } catch (WmtsClient.HttpStatusException e) {
+                int code = e.getResponseCode();
+                if (code == 429 || code >= 500) { // Serveur surchargé
+                    onCongestion();
+                } else {
+                    downloadLimiter.onResponse(System.nanoTime() - start);
+                }
+                downloadBackoff.onHttpError(key, code);
+                return null;
+            } catch (SocketTimeoutException e) { // Connexion saturée
+                onCongestion();
+                downloadBackoff.onNetworkError();
+                return null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                downloadBackoff.onNetworkError();
+                return null;
+            } finally {
+                downloadLimiter.release();
+            }
+        } finally {
+            // Autorisations des tuiles affichées selon la limite courante
+            scheduler.setMaxConcurrent(downloadLimiter.getLimit());
+            scheduler.release();
+        }
+        if (!TileIntegrity.isComplete(image)) {
+            // Réponse invalide (portail captif, transfert interrompu): ne pas
+            // la conserver ni considérer le réseau comme rétabli
+            downloadBackoff.onNetworkError();
+            return null;
+        }
+        downloadBackoff.onSuccess();
+
+        // Enregistrer l'image dans le cache disque
+        putTile(layer, ignScale, r, c, image);
+        if (ignScale == 15) { // Programmer la vue d'ensemble
+            overviews.onTileStored(ignScale, r, c);
+        }
+        return image;
+    }
+
+    /**
+     * Réduire le nombre de téléchargements simultanés suite à un échec dû à
+     * une surcharge. Tant qu'il peut être réduit, la tuile est redemandée
+     * plus tard au lieu de passer en mode hors ligne.
+     *
+     * @throws CancellationException si le nombre de téléchargements a été
+     *                               réduit
+     */
+    private void onCongestion() {
+        if (!downloadLimiter.onFailure()) {
+            throw new CancellationException("Serveur ou connexion saturés");
+        }
+    }
+
+    /**
+     * Enregistrer une tuile dans le cache disque.
+     */
+    private void putTile(int layer, int ignScale, int r, int c, byte[] image) {
+        store.put(layer, ignScale, r, c, image);
+        metrics.addBytesWritten(image.length);
+    }
+
+    /**
+     * Créer une tuile de remplacement en agrandissant la portion
+     * correspondante de la première tuile ancêtre présente dans le cache
+     * disque. Le résultat n'est conservé dans aucun cache: la tuile réelle
+     * sera chargée dès la fin du mode hors ligne (ou en arrière-plan en mode
+     * progressif).
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @param dim      Dimension de la tuile (en pixels)
+     * @return Les données (compressées) de la tuile ou null si aucun ancêtre
+     * n'est disponible.
+     */
+    private byte[] createFallbackTile(int c, int r, int ignScale, int dim) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        for (int z = Math.min(ignScale - 1, 16); z >= 12; z--) {
+            int k = ignScale - z;
+            final byte[] data = store.get(layer, z, r >> k, c >> k);
+            if (data == null) {
+                continue;
+            }
+            // Décodeur conservé: les tuiles voisines partagent le même ancêtre
+            byte[] image = codec.zoomIn(TileKey.pack(layer, z, r >> k, c >> k),
+                    new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return data;
+                        }
+                    }, k, c, r, dim, ignScale);
+            if (image != null) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tuile vide d'une dimension donnée (créée lors de la première demande
+     * puis partagée).
+     *
+     * @param dim Dimension de la tuile (en pixels)
+     */
+    private byte[] getEmptyTile(int dim) {
+        synchronized (emptyTiles) {
+            byte[] image = emptyTiles.get(dim);
+            if (image == null) {
+                image = codec.emptyTile(dim);
+                if (image != null) {
+                    emptyTiles.put(dim, image);
+                }
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Fournir une tuile de la vue d'ensemble.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom (MIN_OVERVIEW_SCALE à MAX_OVERVIEW_SCALE).
+     * @return Les données (compressées) de la tuile ou null si aucune tuile
+     * du cache ne couvre sa zone.
+     */
+    private byte[] createOverviewTile(final int c, final int r, final int ignScale) {
+        long key = tileKey(ignScale, r, c);
+        return loadTile(key, ignScale, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return loadOverviewTile(c, r, ignScale);
+            }
+        });
+    }
+
+    /**
+     * Lire une tuile de la vue d'ensemble depuis le cache disque ou la
+     * construire.
+     */
+    private byte[] loadOverviewTile(int c, int r, int ignScale) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        byte[] image = store.get(layer, ignScale, r, c);
+        if (image != null) { // Récupérer depuis le cache disque
+            return image;
+        }
+        return buildOverviewTile(c, r, ignScale, false);
+    }
+
+    /**
+     * Construire une tuile de la vue d'ensemble en réduisant ses 4 sous-tuiles
+     * présentes dans le cache (les sous-tuiles absentes laissent leur carré
+     * vide). Les sous-tuiles de la vue d'ensemble absentes du cache sont
+     * elles-mêmes construites; aucune tuile n'est téléchargée.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom (MIN_OVERVIEW_SCALE à MAX_OVERVIEW_SCALE).
+     * @param update   Tuile complétée suite à l'arrivée d'une sous-tuile: mettre
+     *                 à jour le cache mémoire et programmer la tuile parente
+     * @return Les données (compressées) de la tuile ou null si aucune
+     * sous-tuile n'est disponible.
+     */
+    private byte[] buildOverviewTile(int c, int r, int ignScale, boolean update) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        byte[][] sub = new byte[4][];
+        boolean found = false;
+        for (int i = 0; i < 4; i++) {
+            int sr = 2 * r + i / 2, sc = 2 * c + i % 2;
+            sub[i] = ignScale < MAX_OVERVIEW_SCALE ? loadOverviewTile(sc, sr, ignScale + 1)
+                    : store.get(layer, ignScale + 1, sr, sc);
+            found |= sub[i] != null;
+        }
+        if (!found) { // Zone absente du cache
+            return null;
+        }
+
+        byte[] image = codec.stitch(sub[0], sub[1], sub[2], sub[3], derivedTileDim(ignScale),
+                ignScale);
+        if (image == null) {
+            return null;
+        }
+        putTile(layer, ignScale, r, c, image);
+        if (update) {
+            long key = tileKey(ignScale, r, c);
+            if (memoryCache.contains(key)) { // Remplacer l'ancienne version
+                memoryCache.put(key, image);
+            }
+            overviews.onTileStored(ignScale, r, c);
+        }
+        return image;
+    }
+
+    /**
+     * Créer une nouvelle tuile contenant les 4 tuiles correspondantes du niveau
+     * supérieur.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return
+     */
+    private byte[] createTileFromUpperScale(final int c, final int r, final int ignScale) {
+        long key = tileKey(ignScale, r, c);
+        return loadTile(key, ignScale, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return loadTileFromUpperScale(c, r, ignScale);
+            }
+        });
+    }
+
+    /**
+     * Lire depuis le cache disque ou construire une tuile à partir des 4 tuiles
+     * correspondantes du niveau supérieur.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return
+     */
+    private byte[] loadTileFromUpperScale(int c, int r, int ignScale) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        byte[] image = store.get(layer, ignScale, r, c);
+        if (image != null) { // Récupérer depuis le cache disque
+            return image;
+        }
+
+        // Lire les 4 sous-images
+        byte[] img11, img12, img21, img22;
+        if (ignScale == 14) {
+            img11 = readRealTileImage(2 * c, 2 * r, ignScale + 1);
+            img12 = readRealTileImage(2 * c + 1, 2 * r, ignScale + 1);
+            img21 = readRealTileImage(2 * c, 2 * r + 1, ignScale + 1);
+            img22 = readRealTileImage(2 * c + 1, 2 * r + 1, ignScale + 1);
+        } else {
+            img11 = createTileFromUpperScale(2 * c, 2 * r, ignScale + 1);
+            img12 = createTileFromUpperScale(2 * c + 1, 2 * r, ignScale + 1);
+            img21 = createTileFromUpperScale(2 * c, 2 * r + 1, ignScale + 1);
+            img22 = createTileFromUpperScale(2 * c + 1, 2 * r + 1, ignScale + 1);
+        }
+        if (img11 == null || img12 == null || img21 == null || img22 == null) {
+            return null; // Sous-image indisponible
+        }
+
+        // Assembler les 4 sous-images
+        image = codec.stitch(img11, img12, img21, img22, derivedTileDim(ignScale), ignScale);
+        if (image == null) {
+            return null;
+        }
+
+        // Sauvegarder l'image dans le cache disque
+        putTile(layer, ignScale, r, c, image);
+        overviews.onTileStored(ignScale, r, c); // Niveau suivant de la vue d'ensemble
+        return image;
+    }
+
+    /**
+     * Dimension (en pixels) d'une tuile reconstituée à partir du niveau
+     * supérieur: elle double à chaque niveau depuis le niveau 15 mais reste
+     * limitée à MAX_DERIVED_DIM.
+     *
+     * @param ignScale Niveau de zoom.
+     */
+    private static int derivedTileDim(int ignScale) {
+        return Math.min(TILE_PIXEL_DIM << (15 - ignScale), MAX_DERIVED_DIM);
+    }
+
+    /**
+     * Créer une nouvelle tuile contenant les 4 tuiles correspondantes du niveau
+     * supérieur.
+     *
+     * @param c Indice de colonne.
+     * @param r Indice de ligne.
+     * @return
+     */
+    private byte[] createHighResZ15Tile(final int c, final int r) {
+        long key = highResKey(r, c);
+        return loadTile(key, 15, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return loadHighResZ15Tile(c, r);
+            }
+        });
+    }
+
+    /**
+     * Lire depuis le cache disque ou construire une tuile haute résolution de
+     * niveau 15 à partir des 4 tuiles correspondantes du niveau 16.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @return
+     */
+    private byte[] loadHighResZ15Tile(int c, int r) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO_HR : TileStore.LAYER_MAP_HR;
+        byte[] image = store.get(layer, 15, r, c);
+        if (image != null) { // Récupérer depuis le cache disque
+            return image;
+        }
+
+        // Lire les 4 sous-images
+        byte[] img11, img12, img21, img22;
+        img11 = readRealTileImage(2 * c, 2 * r, 16);
+        img12 = readRealTileImage(2 * c + 1, 2 * r, 16);
+        img21 = readRealTileImage(2 * c, 2 * r + 1, 16);
+        img22 = readRealTileImage(2 * c + 1, 2 * r + 1, 16);
+        if (img11 == null || img12 == null || img21 == null || img22 == null) {
+            return null; // Sous-image indisponible
+        }
+
+        // Assembler les 4 sous-images
+        image = codec.stitch(img11, img12, img21, img22, 2 * TILE_PIXEL_DIM, 15);
+        if (image == null) {
+            return null;
+        }
+
+        // Sauvegarder l'image dans le cache disque
+        putTile(layer, 15, r, c, image);
+        return image;
+    }
+
+    /**
+     * Créer une nouvelle sous-tuile depuis la tuile du niveau inférieur.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return
+     */
+    private byte[] createTileFromLowerScale(final int c, final int r, final int ignScale) {
+        long key = tileKey(ignScale, r, c);
+        return loadTile(key, ignScale, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return loadTileFromLowerScale(c, r, ignScale);
+            }
+        });
+    }
+
+    /**
+     * Lire depuis le cache disque ou construire une sous-tuile (niveau 17 ou
+     * plus) à partir de la tuile du niveau 16 qui la contient. Seule la
+     * portion utile de la tuile parente est décodée, grâce à un décodeur de
+     * région partagé par toutes ses sous-tuiles.
+     * <p/>
+     * Seules les tuiles du niveau 17 sont enregistrées dans le cache disque:
+     * celles des niveaux suivants, peu coûteuses à produire, ne sont
+     * conservées que dans le cache mémoire.
+     *
+     * @param c        Indice de colonne.
+     * @param r        Indice de ligne.
+     * @param ignScale Niveau de zoom.
+     * @return
+     */
+    private byte[] loadTileFromLowerScale(int c, int r, int ignScale) {
+        int layer = orthoimage ? TileStore.LAYER_ORTHO : TileStore.LAYER_MAP;
+        byte[] image;
+        if (ignScale == 17) {
+            image = store.get(layer, ignScale, r, c);
+            if (image != null) { // Récupérer depuis le cache disque
+                return image;
+            }
+        }
+
+        // Tuile du niveau 16 contenant la sous-tuile
+        int shift = ignScale - 16;
+        final int c16 = c >> shift, r16 = r >> shift;
+        long parentKey = tileKey(16, r16, c16);
+
+        // Portion correspondante de la tuile parente
+        image = codec.zoomIn(parentKey, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return readRealTileImage(c16, r16, 16);
+            }
+        }, shift, c, r, 0, ignScale);
+        if (image == null) {
+            return null; // Image du niveau 16 indisponible
+        }
+
+        if (ignScale == 17) { // Sauvegarder l'image dans le cache disque
+            putTile(layer, ignScale, r, c, image);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,189 @@
+package fr.rg.ignrando.tile;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Téléchargement anticipé d'ensembles de tuiles par un nombre limité de fils
+ * d'exécution.
+ * <p/>
+ * Les tuiles sont traitées niveau par niveau (dans l'ordre des appels à
+ * {@link #prefetch(int, long[])}): un niveau n'est commencé qu'une fois le
+ * précédent terminé, ce qui permet de reconstituer un niveau à partir des
+ * tuiles du niveau précédent. Le nombre de tâches en attente est borné pour
+ * ne pas occuper la mémoire avec de très grandes zones.
+ */
+public class TilePrefetcher {
+
+    // Résultats du chargement d'une tuile
+    public static final int RESULT_CACHED = 0; // Déjà présente
+    public static final int RESULT_LOADED = 1; // Téléchargée ou reconstituée
+    public static final int RESULT_FAILED = 2; // Échec
+
+    /**
+     * Chargement d'une tuile.
+     */
+    public interface TileLoader {
+        /**
+         * @param zoom Niveau de zoom
+         * @param row  Indice de ligne
+         * @param col  Indice de colonne
+         * @return RESULT_CACHED, RESULT_LOADED ou RESULT_FAILED
+         */
+        int load(int zoom, int row, int col);
+    }
+
+    /**
+     * Suivi de la progression (appelé depuis les fils de téléchargement).
+     */
+    public interface ProgressListener {
+        /**
+         * @param done   Nombre de tuiles traitées
+         * @param total  Nombre total de tuiles
+         * @param failed Nombre d'échecs parmi les tuiles traitées
+         */
+        void onProgress(int done, int total, int failed);
+    }
+
+    private final TileLoader loader;
+    private final int poolSize;
+    private final ExecutorService pool;
+    // Limitation du nombre de tâches soumises et non terminées
+    private final Semaphore slots;
+    private ProgressListener listener;
+
+    // Progression
+    private volatile int total;
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param loader   Chargement d'une tuile
+     * @param poolSize Nombre de fils de téléchargement
+     */
+    public TilePrefetcher(TileLoader loader, int poolSize) {
+        this.loader = loader;
+        this.poolSize = poolSize;
+        slots = new Semaphore(2 * poolSize);
+        pool = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TilePrefetch-" + count.incrementAndGet());
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Annoncer le nombre total de tuiles à traiter (pour la progression).
+     */
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    /**
+     * Charger toutes les tuiles d'un niveau de zoom. L'appel ne se termine
+     * que lorsque toutes les tuiles du niveau ont été traitées (ou que le
+     * téléchargement a été annulé).
+     *
+     * @param zoom  Niveau de zoom
+     * @param tiles Tuiles codées avec {@link TileArea#pack(int, int)}
+     * @return false si le téléchargement a été annulé
+     */
+    public boolean prefetch(final int zoom, long[] tiles) {
+        try {
+            for (final long t : tiles) {
+                if (cancelled) {
+                    break;
+                }
+                slots.acquire();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!cancelled) {
+                                loadTile(zoom, TileArea.row(t), TileArea.col(t));
+                            }
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+            // Attendre la fin du niveau
+            slots.acquire(2 * poolSize);
+            slots.release(2 * poolSize);
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        }
+        return !cancelled;
+    }
+
+    private void loadTile(int zoom, int row, int col) {
+        int result;
+        try {
+            result = loader.load(zoom, row, col);
+        } catch (CancellationException e) { // Serveur saturé
+            result = RESULT_FAILED;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            result = RESULT_FAILED;
+        }
+        if (result == RESULT_LOADED) {
+            loaded.incrementAndGet();
+        } else if (result == RESULT_FAILED) {
+            failed.incrementAndGet();
+        }
+        int n = done.incrementAndGet();
+        ProgressListener l = listener;
+        if (l != null) {
+            l.onProgress(n, total, failed.get());
+        }
+    }
+
+    /**
+     * Annuler le téléchargement (les tuiles en cours de chargement sont
+     * achevées).
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Arrêter les fils de téléchargement.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public int getDoneCount() {
+        return done.get();
+    }
+
+    public int getLoadedCount() {
+        return loaded.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+}
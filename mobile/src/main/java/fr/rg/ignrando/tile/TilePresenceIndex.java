@@ -0,0 +1,208 @@
+package fr.rg.ignrando.tile;
+
+import java.util.Arrays;
+
+/**
+ * Index en mémoire des tuiles présentes dans un cache disque.
+ * <p/>
+ * Les tuiles sont regroupées par blocs de 8x8 tuiles voisines d'une même
+ * couche et d'un même niveau de zoom: chaque bloc est un masque de 64 bits
+ * (un bit par tuile) rangé dans une table à adressage ouvert. Les tuiles en
+ * cache étant regroupées autour des itinéraires, quelques octets suffisent
+ * par tuile et un test de présence ne coûte qu'une recherche dans un
+ * tableau, sans accès au système de fichiers.
+ */
+public class TilePresenceIndex {
+
+    // Côté d'un bloc (en tuiles) sous forme de décalage: 8x8 tuiles
+    private static final int BLOCK_SHIFT = 3;
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    // Taux de remplissage maximal de la table
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // Clés des blocs (TileKey.NONE pour une case libre) et masques associés
+    private long[] blockKeys;
+    private long[] blockBits;
+    // Nombre de blocs et de tuiles présents
+    private int blockCount;
+    private int tileCount;
+
+    public TilePresenceIndex() {
+        allocate(256);
+    }
+
+    private void allocate(int capacity) {
+        blockKeys = new long[capacity];
+        blockBits = new long[capacity];
+        Arrays.fill(blockKeys, TileKey.NONE);
+        blockCount = 0;
+    }
+
+    /**
+     * Indiquer si une tuile est présente.
+     */
+    public synchronized boolean contains(int layer, int zoom, int row, int col) {
+        int slot = find(blockKey(layer, zoom, row, col));
+        return slot >= 0 && (blockBits[slot] & bit(row, col)) != 0;
+    }
+
+    /**
+     * Marquer une tuile comme présente.
+     *
+     * @return false si elle l'était déjà.
+     */
+    public synchronized boolean add(int layer, int zoom, int row, int col) {
+        long key = blockKey(layer, zoom, row, col);
+        int slot = find(key);
+        if (slot < 0) {
+            if (blockCount + 1 > blockKeys.length * LOAD_FACTOR) {
+                grow();
+            }
+            slot = insertionSlot(key);
+            blockKeys[slot] = key;
+            blockCount++;
+        }
+        long b = bit(row, col);
+        if ((blockBits[slot] & b) != 0) {
+            return false;
+        }
+        blockBits[slot] |= b;
+        tileCount++;
+        return true;
+    }
+
+    /**
+     * Marquer une tuile comme absente.
+     *
+     * @return true si elle était présente.
+     */
+    public synchronized boolean remove(int layer, int zoom, int row, int col) {
+        int slot = find(blockKey(layer, zoom, row, col));
+        long b = bit(row, col);
+        if (slot < 0 || (blockBits[slot] & b) == 0) {
+            return false;
+        }
+        // Le bloc vide est conservé (pas de suppression dans la table)
+        blockBits[slot] &= ~b;
+        tileCount--;
+        return true;
+    }
+
+    /**
+     * Ajouter toutes les tuiles d'un autre index (union bloc par bloc).
+     *
+     * @param other Index à ajouter (non modifié)
+     */
+    public void addAll(TilePresenceIndex other) {
+        long[] keys, bits;
+        synchronized (other) {
+            keys = other.blockKeys.clone();
+            bits = other.blockBits.clone();
+        }
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == TileKey.NONE || bits[i] == 0) {
+                    continue;
+                }
+                int slot = find(keys[i]);
+                if (slot < 0) {
+                    if (blockCount + 1 > blockKeys.length * LOAD_FACTOR) {
+                        grow();
+                    }
+                    slot = insertionSlot(keys[i]);
+                    blockKeys[slot] = keys[i];
+                    blockCount++;
+                }
+                tileCount += Long.bitCount(bits[i] & ~blockBits[slot]);
+                blockBits[slot] |= bits[i];
+            }
+        }
+    }
+
+    /**
+     * Vider l'index.
+     */
+    public synchronized void clear() {
+        allocate(256);
+        tileCount = 0;
+    }
+
+    /**
+     * Nombre de tuiles présentes.
+     */
+    public synchronized int size() {
+        return tileCount;
+    }
+
+    /**
+     * Mémoire occupée par la table (en octets).
+     */
+    public synchronized long memoryBytes() {
+        return 16L * blockKeys.length;
+    }
+
+    // +-------------------------------+
+    // | Table à adressage ouvert      |
+    // +-------------------------------+
+
+    /**
+     * Case contenant un bloc.
+     *
+     * @return L'indice de la case ou une valeur négative si le bloc est
+     * absent.
+     */
+    private int find(long key) {
+        int mask = blockKeys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long k = blockKeys[i];
+            if (k == key) {
+                return i;
+            }
+            if (k == TileKey.NONE) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Première case libre pour un bloc absent de la table.
+     */
+    private int insertionSlot(long key) {
+        int mask = blockKeys.length - 1;
+        int i = hash(key) & mask;
+        while (blockKeys[i] != TileKey.NONE) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Doubler la capacité de la table.
+     */
+    private void grow() {
+        long[] keys = blockKeys;
+        long[] bits = blockBits;
+        allocate(2 * keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != TileKey.NONE) {
+                int slot = insertionSlot(keys[i]);
+                blockKeys[slot] = keys[i];
+                blockBits[slot] = bits[i];
+                blockCount++;
+            }
+        }
+    }
+
+    private static long blockKey(int layer, int zoom, int row, int col) {
+        return TileKey.pack(layer, zoom, row >> BLOCK_SHIFT, col >> BLOCK_SHIFT);
+    }
+
+    private static long bit(int row, int col) {
+        return 1L << (((row & BLOCK_MASK) << BLOCK_SHIFT) | (col & BLOCK_MASK));
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L; // Mélange (blocs voisins dispersés)
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,295 @@
+package fr.rg.ignrando.tile;
+
+import java.util.ArrayList;
+
+/**
+ * Ordonnancement des téléchargements de tuiles selon la zone affichée.
+ * <p/>
+ * Les fils d'exécution de Google Maps demandent les tuiles dans un ordre
+ * quelconque. Le fil qui traite une demande l'enregistre ({@link #enter}),
+ * puis, juste avant chaque téléchargement, attend une autorisation
+ * ({@link #acquire}): le nombre de téléchargements simultanés est limité
+ * (limite courante de {@link DownloadLimiter}) et les autorisations sont
+ * accordées en priorité aux tuiles du niveau de zoom courant les plus
+ * proches du centre de l'écran.
+ * <p/>
+ * À chaque déplacement de la caméra ({@link #setViewport}), les demandes en
+ * attente qui sortent de la zone affichée élargie (ou dont le niveau de zoom
+ * est trop éloigné) sont abandonnées.
+ * <p/>
+ * Les téléchargements effectués hors d'une demande enregistrée
+ * (téléchargement anticipé, vues d'ensemble) ne sont pas limités.
+ * <p/>
+ * Les positions sont exprimées en coordonnées Mercator normalisées: (0, 0)
+ * pour le coin nord-ouest du monde et (1, 1) pour le coin sud-est.
+ */
+public class TileScheduler {
+
+    // Nombre de téléchargements simultanés par défaut
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    // Élargissement de la zone affichée (en demi-dimensions de l'écran) au-delà
+    // duquel une demande est abandonnée
+    private static final double STALE_DISTANCE = 1.5;
+    // Écart de niveau de zoom au-delà duquel une demande est abandonnée
+    private static final double STALE_ZOOM = 1.5;
+
+    // Instance partagée par le processus
+    private static TileScheduler instance;
+
+    /**
+     * Demande de tuile d'un fil d'exécution.
+     */
+    private static class Request {
+        final int zoom, row, col;
+        double priority;
+        boolean granted, cancelled;
+
+        Request(int zoom, int row, int col) {
+            this.zoom = zoom;
+            this.row = row;
+            this.col = col;
+        }
+    }
+
+    // Demande en cours de chaque fil d'exécution
+    private final ThreadLocal<Request> current = new ThreadLocal<Request>();
+    // Demandes en attente d'une autorisation
+    private final ArrayList<Request> waiting = new ArrayList<Request>();
+    // Téléchargements autorisés en cours
+    private int running;
+    private int maxConcurrent;
+    // Zone affichée (centre et demi-dimensions) et niveau de zoom
+    private boolean hasViewport;
+    private double centerX, centerY, halfWidth, halfHeight;
+    private float viewZoom;
+    // Statistiques
+    private long grantedCount, cancelledCount;
+
+    /**
+     * Récupérer l'ordonnanceur du processus.
+     */
+    public static synchronized TileScheduler getInstance() {
+        if (instance == null) {
+            instance = new TileScheduler(DEFAULT_MAX_CONCURRENT);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxConcurrent Nombre maximal de téléchargements simultanés
+     */
+    public TileScheduler(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent == this.maxConcurrent) {
+            return;
+        }
+        this.maxConcurrent = maxConcurrent;
+        grant();
+    }
+
+    /**
+     * Abscisse Mercator normalisée d'une longitude.
+     */
+    public static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /**
+     * Ordonnée Mercator normalisée d'une latitude.
+     */
+    public static double mercatorY(double latitude) {
+        double lat = Math.toRadians(Math.max(-85.0511, Math.min(85.0511, latitude)));
+        return (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2;
+    }
+
+    /**
+     * Mettre à jour la zone affichée: les priorités des demandes en attente
+     * sont recalculées et celles qui sont devenues inutiles sont abandonnées.
+     *
+     * @param latitude  Latitude du centre de la caméra
+     * @param longitude Longitude du centre de la caméra
+     * @param zoom      Niveau de zoom de la caméra
+     * @param latMin    Latitude minimale de la zone visible
+     * @param latMax    Latitude maximale de la zone visible
+     * @param longMin   Longitude minimale de la zone visible
+     * @param longMax   Longitude maximale de la zone visible
+     */
+    public synchronized void setViewport(double latitude, double longitude, float zoom,
+                                         double latMin, double latMax, double longMin,
+                                         double longMax) {
+        centerX = mercatorX(longitude);
+        centerY = mercatorY(latitude);
+        if (longMax < longMin) { // Zone à cheval sur l'antiméridien
+            longMax += 360;
+        }
+        halfWidth = Math.max(mercatorX(longMax) - centerX, centerX - mercatorX(longMin));
+        halfHeight = Math.max(mercatorY(latMin) - centerY, centerY - mercatorY(latMax));
+        // Zone dégénérée: au moins une tuile du niveau courant
+        double minHalf = 0.5 / (1 << Math.max(0, Math.min(30, (int) zoom)));
+        halfWidth = Math.max(halfWidth, minHalf);
+        halfHeight = Math.max(halfHeight, minHalf);
+        viewZoom = zoom;
+        hasViewport = true;
+
+        boolean changed = false;
+        for (int i = waiting.size() - 1; i >= 0; i--) {
+            Request req = waiting.get(i);
+            if (!updatePriority(req)) {
+                req.cancelled = true;
+                waiting.remove(i);
+                cancelledCount++;
+                changed = true;
+            }
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Calculer la priorité d'une demande (les plus petites valeurs en
+     * premier).
+     *
+     * @return false si la demande est devenue inutile.
+     */
+    private boolean updatePriority(Request req) {
+        if (!hasViewport) {
+            req.priority = 0;
+            return true;
+        }
+        double distance = distance(req.zoom, req.row, req.col);
+        double zoomGap = Math.abs(req.zoom - viewZoom);
+        req.priority = distance + zoomGap;
+        return distance <= STALE_DISTANCE && zoomGap <= STALE_ZOOM;
+    }
+
+    /**
+     * Distance d'une tuile au centre de la zone affichée, en demi-dimensions
+     * de l'écran, diminuée de la demi-dimension de la tuile (une grande tuile
+     * peut être visible même si son centre est éloigné).
+     */
+    private double distance(int zoom, int row, int col) {
+        double n = 1L << zoom;
+        double dx = Math.abs((col + 0.5) / n - centerX);
+        dx = Math.min(dx, 1 - dx); // Continuité à l'antiméridien
+        double dy = Math.abs((row + 0.5) / n - centerY);
+        double half = 0.5 / n;
+        return Math.max(Math.max(0, dx - half) / halfWidth,
+                Math.max(0, dy - half) / halfHeight);
+    }
+
+    /**
+     * Indiquer si une tuile recouvre la zone affichée à un niveau de zoom
+     * proche de celui de la caméra (toujours vrai tant que la zone affichée
+     * est inconnue).
+     */
+    public synchronized boolean isVisible(int zoom, int row, int col) {
+        return !hasViewport
+                || (distance(zoom, row, col) <= 1 && Math.abs(zoom - viewZoom) <= 1);
+    }
+
+    /**
+     * Enregistrer la tuile demandée par le fil d'exécution courant.
+     *
+     * @param zoom Niveau de zoom de la tuile demandée par la carte
+     * @param row  Indice de ligne
+     * @param col  Indice de colonne
+     */
+    public void enter(int zoom, int row, int col) {
+        current.set(new Request(zoom, row, col));
+    }
+
+    /**
+     * Terminer la demande du fil d'exécution courant.
+     */
+    public void exit() {
+        current.remove();
+    }
+
+    /**
+     * Attendre l'autorisation de télécharger pour la demande du fil
+     * d'exécution courant. Chaque autorisation accordée doit être rendue par
+     * {@link #release()}.
+     *
+     * @return false si la demande a été abandonnée (ou l'attente
+     * interrompue).
+     */
+    public synchronized boolean acquire() {
+        Request req = current.get();
+        if (req == null) { // Téléchargement hors affichage: pas de limite
+            return true;
+        }
+        if (req.cancelled || !updatePriority(req)) {
+            req.cancelled = true;
+            cancelledCount++;
+            return false;
+        }
+        waiting.add(req);
+        grant();
+        try {
+            while (!req.granted && !req.cancelled) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            waiting.remove(req);
+            req.cancelled = true;
+            return false;
+        }
+        return req.granted;
+    }
+
+    /**
+     * Rendre l'autorisation obtenue par {@link #acquire()}.
+     */
+    public synchronized void release() {
+        Request req = current.get();
+        if (req == null || !req.granted) {
+            return;
+        }
+        req.granted = false;
+        running--;
+        grant();
+    }
+
+    /**
+     * Accorder les autorisations disponibles aux demandes les plus
+     * prioritaires.
+     */
+    private void grant() {
+        boolean changed = false;
+        while (running < maxConcurrent && !waiting.isEmpty()) {
+            int best = 0;
+            for (int i = 1; i < waiting.size(); i++) {
+                if (waiting.get(i).priority < waiting.get(best).priority) {
+                    best = i;
+                }
+            }
+            Request req = waiting.remove(best);
+            req.granted = true;
+            running++;
+            grantedCount++;
+            changed = true;
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Nombre de demandes en attente.
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileScheduler[running=" + running + "/" + maxConcurrent + ", waiting="
+                + waiting.size() + ", granted=" + grantedCount + ", cancelled="
+                + cancelledCount + "]";
+    }
+}
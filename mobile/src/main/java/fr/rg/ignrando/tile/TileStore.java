@@ -0,0 +1,94 @@
+package fr.rg.ignrando.tile;
+
+/**
+ * Stockage persistant des tuiles (cache disque).
+ * <p/>
+ * Une tuile est identifiée par sa couche, son niveau de zoom, son indice de
+ * ligne et son indice de colonne. Les implémentations doivent pouvoir être
+ * utilisées simultanément par plusieurs fils d'exécution.
+ */
+public interface TileStore {
+
+    // Couches de tuiles
+    int LAYER_MAP = 0; // Cartes IGN
+    int LAYER_ORTHO = 1; // Photographies aériennes
+    int LAYER_MAP_HR = 2; // Cartes IGN haute résolution (niveau 15 reconstitué)
+    int LAYER_ORTHO_HR = 3; // Photographies haute résolution (niveau 15 reconstitué)
+    // Mélanges de photographies et de cartes: LAYER_HYBRID + opacité de la
+    // carte en dizaines de pourcents (0 à 10)
+    int LAYER_HYBRID = 4;
+    int LAYER_COUNT = LAYER_HYBRID + 11;
+
+    /**
+     * Lire les données d'une tuile.
+     *
+     * @param layer Couche de la tuile
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     * @return Les données compressées de la tuile ou null si elle n'est pas
+     * présente (ou illisible).
+     */
+    byte[] get(int layer, int zoom, int row, int col);
+
+    /**
+     * Indiquer si une tuile est présente.
+     *
+     * @param layer Couche de la tuile
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     */
+    boolean contains(int layer, int zoom, int row, int col);
+
+    /**
+     * Enregistrer les données d'une tuile. L'écriture effective peut être
+     * différée mais la tuile est immédiatement lisible.
+     *
+     * @param layer Couche de la tuile
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     * @param data  Données compressées de la tuile
+     * @return false si l'enregistrement a échoué
+     */
+    boolean put(int layer, int zoom, int row, int col, byte[] data);
+
+    /**
+     * Supprimer une tuile.
+     *
+     * @param layer Couche de la tuile
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     * @return true si la tuile était présente
+     */
+    boolean remove(int layer, int zoom, int row, int col);
+
+    /**
+     * Parcourir toutes les tuiles présentes (opération longue, à réserver à un
+     * fil d'exécution d'arrière-plan).
+     *
+     * @param visitor Appelé pour chaque tuile
+     */
+    void forEach(TileVisitor visitor);
+
+    /**
+     * Forcer l'écriture des tuiles en attente.
+     */
+    void flush();
+
+    /**
+     * Parcours des tuiles présentes.
+     */
+    interface TileVisitor {
+        /**
+         * @param layer Couche de la tuile
+         * @param zoom  Niveau de zoom
+         * @param row   Indice de ligne
+         * @param col   Indice de colonne
+         * @param size  Taille de la tuile (en octets)
+         */
+        void visit(int layer, int zoom, int row, int col, int size);
+    }
+}
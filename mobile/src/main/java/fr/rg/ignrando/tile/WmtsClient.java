@@ -0,0 +1,189 @@
+package fr.rg.ignrando.tile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Client HTTP des requêtes WMTS GetTile.
+ * <p/>
+ * Les connexions sont réutilisées (keep-alive) par le mécanisme de
+ * {@link HttpURLConnection}: une connexion n'est remise dans le pool que si le
+ * corps de la réponse a été entièrement lu avant la fermeture du flux, y
+ * compris en cas d'erreur. Les délais de connexion et de lecture sont bornés
+ * pour qu'une tuile ne bloque pas indéfiniment un fil d'exécution.
+ * <p/>
+ * Les tuiles JPEG étant déjà compressées, elles sont demandées sans
+ * compression gzip (qui n'apporterait que du temps de calcul).
+ */
+public class WmtsClient {
+
+    // Adresse du service WMTS de l'IGN
+    public static final String DEFAULT_BASE_URL = "https://wxs.ign.fr/";
+    // Couches WMTS
+    public static final String LAYER_MAPS = "GEOGRAPHICALGRIDSYSTEMS.MAPS";
+    public static final String LAYER_ORTHOPHOTOS = "ORTHOIMAGERY.ORTHOPHOTOS";
+    // Délais (en ms)
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+    public static final int READ_TIMEOUT_MS = 20000;
+    // Nombre maximal de connexions conservées par hôte
+    private static final int MAX_CONNECTIONS = 8;
+    // Taille du tampon de lecture
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    static {
+        // Paramètres du pool de connexions de HttpURLConnection
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS));
+        }
+        System.setProperty("http.keepAlive", "true");
+    }
+
+    /**
+     * Réponse HTTP autre que 200.
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int responseCode;
+
+        public HttpStatusException(int responseCode, String message) {
+            super("HTTP " + responseCode + ": " + message);
+            this.responseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+    }
+
+    // Début des URL (service et clé)
+    private final String serviceUrl;
+    // Nom du serveur
+    private final String host;
+
+    /**
+     * @param baseUrl Adresse du serveur (terminée par '/'), par exemple
+     *                {@link #DEFAULT_BASE_URL} ou celle d'un serveur local de
+     *                test.
+     * @param key     Clé de développement IGN
+     */
+    public WmtsClient(String baseUrl, String key) {
+        serviceUrl = baseUrl + key + "/wmts/?SERVICE=WMTS&REQUEST=GetTile&VERSION=1.0.0";
+        String h;
+        try {
+            h = new URL(baseUrl).getHost();
+        } catch (MalformedURLException e) {
+            h = baseUrl;
+        }
+        host = h;
+    }
+
+    /**
+     * Nom du serveur WMTS.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Adresse d'une tuile.
+     *
+     * @param layer Couche WMTS
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     */
+    public String tileUrl(String layer, int zoom, int row, int col) {
+        return serviceUrl + "&LAYER=" + layer + "&STYLE=normal&TILEMATRIXSET=PM&TILEMATRIX="
+                + zoom + "&TILEROW=" + row + "&TILECOL=" + col + "&FORMAT=image/jpeg";
+    }
+
+    /**
+     * Télécharger une tuile.
+     *
+     * @param layer Couche WMTS
+     * @param zoom  Niveau de zoom
+     * @param row   Indice de ligne
+     * @param col   Indice de colonne
+     * @return Les données (compressées) de la tuile.
+     * @throws HttpStatusException si le serveur ne renvoie pas la tuile
+     * @throws IOException         en cas d'erreur réseau
+     */
+    public byte[] getTile(String layer, int zoom, int row, int col) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                tileUrl(layer, zoom, row, col)).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Referer", "http://localhost/IGN/");
+        connection.setRequestProperty("Accept-Encoding", "identity");
+
+        InputStream in = null;
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                // Vider le corps de l'erreur pour conserver la connexion
+                in = connection.getErrorStream();
+                drain(in);
+                throw new HttpStatusException(code, connection.getResponseMessage());
+            }
+            in = connection.getInputStream();
+            return readFully(in, connection.getContentLength());
+        } catch (IOException e) {
+            if (in == null) { // Connexion inutilisable
+                connection.disconnect();
+            }
+            throw e;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (Exception ignored) {
+                }
+        }
+    }
+
+    /**
+     * Lire la totalité d'un flux.
+     *
+     * @param in     Flux à lire
+     * @param length Nombre d'octets attendus (ou -1 s'il est inconnu)
+     */
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        if (length >= 0) { // Taille connue: lecture directe dans le tableau
+            byte[] data = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int nRead = in.read(data, n, length - n);
+                if (nRead == -1) {
+                    throw new IOException("Réponse tronquée: " + n + "/" + length);
+                }
+                n += nRead;
+            }
+            return data;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] data = new byte[BUFFER_SIZE];
+        int nRead;
+        while ((nRead = in.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Lire et ignorer le reste d'un flux.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] data = new byte[BUFFER_SIZE];
+        while (in.read(data, 0, data.length) != -1) {
+            // ignorer
+        }
+    }
+}